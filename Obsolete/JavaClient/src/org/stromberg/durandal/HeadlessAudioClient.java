@@ -13,9 +13,13 @@ import java.util.Calendar;
 import java.util.HashMap;
 import org.stromberg.durandal.api.*;
 import org.stromberg.durandal.client.DialogHttpClient;
-import org.stromberg.durandal.net.DurandalHttpRequest;
+import org.stromberg.durandal.net.CircuitBreaker;
 import org.stromberg.durandal.net.DurandalHttpResponse;
 import org.stromberg.durandal.net.HttpClient;
+import org.stromberg.durandal.net.HttpConnectionPool;
+import org.stromberg.durandal.net.HttpEndpoint;
+import org.stromberg.durandal.net.RequestTemplate;
+import org.stromberg.durandal.net.RetryPolicy;
 import org.stromberg.durandal.security.ClientAuthenticator;
 import stromberg.audio.AudioChunk;
 import stromberg.audio.AudioUtils;
@@ -45,11 +49,31 @@ public class HeadlessAudioClient
     private DialogHttpClient client;
     private SquareDeltaCodec audioCodec;
     private ClientAuthenticator authenticator;
+    private HttpConnectionPool connectionPool;
+    private int triggerRequestCount = 0;
+    // Encoded once, since the trigger request is sent ten times a second
+    private RequestTemplate triggerRequestTemplate;
+    private boolean debugMode;
+    // While the trigger service is failing, we back off instead of polling it ten times a second
+    private static final RetryPolicy TRIGGER_BACKOFF = new RetryPolicy(Integer.MAX_VALUE, 100, 5000);
+    private int triggerFailures = 0;
+    private long nextTriggerTime = 0;
+    
+    // Parameters for recording in streaming upload mode
+    private static final int STREAMING_FRAME_MS = 100;
+    private static final int MAX_UTTERANCE_MS = 15000;
+    private static final int NO_SPEECH_TIMEOUT_MS = 4000;
+    private static final int END_OF_SPEECH_SILENCE_MS = 800;
+    private static final double SPEECH_TO_NOISE_RATIO = 4.0;
     
     public HeadlessAudioClient(Configuration configuration)
     {
         config = configuration;
-        client = new DialogHttpClient(config.getString("dialogHost"), config.getInt("dialogPort"));
+        // The dialog and trigger clients share one set of keepalive connections.
+        // Either host setting may list several servers, as "host1,host2:port2"
+        connectionPool = new HttpConnectionPool();
+        client = new DialogHttpClient(HttpEndpoint.parseList(config.getString("dialogHost"), config.getInt("dialogPort")), connectionPool);
+        client.setHedgingEnabled(config.getBool("hedgeRequests"));
         client.resetConversationState(config.getString("clientId"));
         
         confirm = new AudioChunk("./data/Confirm.wav");
@@ -67,8 +91,8 @@ public class HeadlessAudioClient
         
         System.out.println("Starting to run headless audio client...");
         System.out.println("Client id is " + config.getString("clientId"));
-        System.out.println("Dialog host is " + config.getString("dialogHost") + ":" + config.getInt("dialogPort"));
-        System.out.println("Trigger host is " + config.getString("triggerHost") + ":" + config.getInt("triggerPort"));
+        System.out.println("Dialog host is " + client.getConnectionString());
+        System.out.println("Trigger host is " + config.getString("triggerHost") + " (default port " + config.getInt("triggerPort") + ")");
         
         System.out.println("Loading auth info...");
         if (!authenticator.loadPrivateKeyFromFile("client_authorization.xml"))
@@ -110,9 +134,15 @@ public class HeadlessAudioClient
         audioIn = new JavaMicrophone(config.getInt("microphoneSampleRate"), config.getInt("inputMixerLine"));
         audioIn.startRecording();
 
-        HttpClient triggerClient = new HttpClient(config.getString("triggerHost"), config.getInt("triggerPort"));
+        HttpClient triggerClient = new HttpClient(HttpEndpoint.parseList(config.getString("triggerHost"), config.getInt("triggerPort")), connectionPool);
+        triggerRequestTemplate = triggerClient.createRequestTemplate("POST", "/trigger?c=" + config.getString("clientId"));
+        debugMode = config.getBool("debugMode");
         SquareDeltaCodec codec = new SquareDeltaCodec();
         
+        if (config.getBool("streamingUpload"))
+        {
+            System.out.println("Streaming upload will be used once the dialog server advertises support for it");
+        }
         System.out.println("Listening for input queries");
         System.out.println("(Any input to the console will stop the program)");
         
@@ -129,37 +159,64 @@ public class HeadlessAudioClient
             boolean triggered = false;
             //byte[] compressedAudio = codec.compress(chunk);
 
-            DurandalHttpResponse triggerResponse = sendTriggerRequest(triggerClient, chunk.getDataAsBytes());
-            if (triggerResponse != null && triggerResponse.ResponseCode == 200)
+            if (System.currentTimeMillis() >= nextTriggerTime)
             {
-                if (triggerResponse.ResponseHeaders.containsKey("Triggered") &&
-                    triggerResponse.ResponseHeaders.get("Triggered").equalsIgnoreCase("true"))
+                DurandalHttpResponse triggerResponse = sendTriggerRequest(triggerClient, chunk.getDataAsBytes());
+                if (triggerResponse != null && triggerResponse.ResponseCode == 200)
                 {
-                    triggered = true;
+                    triggerFailures = 0;
+                    if (triggerResponse.ResponseHeaders.containsKey("Triggered") &&
+                        triggerResponse.ResponseHeaders.get("Triggered").equalsIgnoreCase("true"))
+                    {
+                        triggered = true;
+                    }
+                }
+                else
+                {
+                    CircuitBreaker breaker = triggerClient.getCircuitBreaker();
+                    long backoff = TRIGGER_BACKOFF.getDelay(triggerFailures++, breaker == null ? 0 : breaker.getRemainingOpenTime());
+                    nextTriggerTime = System.currentTimeMillis() + backoff;
+                    if (debugMode)
+                    {
+                        System.out.println("No response from trigger service; waiting " + backoff + "ms");
+                    }
                 }
             }
-            else if (config.getBool("debugMode"))
+
+            long dialogRetryDelay = client.getCircuitBreaker() == null ? 0 : client.getCircuitBreaker().getRemainingOpenTime();
+            if (triggered && dialogRetryDelay > 0)
             {
-                System.out.println("No response from trigger service");
+                // No point in recording a query that we already know we can't send
+                System.out.println("Dialog service is unavailable; try again in " + ((dialogRetryDelay + 999) / 1000) + " seconds");
+                audioOut.playSound(fail, false);
             }
-
-            if (triggered)
+            else if (triggered)
             {
                 audioOut.playSound(prompt, false);
                 audioIn.clearBuffers();
-                System.out.println("Recording utterance...");
-                AudioChunk utterance = AudioUtils.recordUtteranceDynamic(audioIn);
-                if (utterance == null || utterance.Data.length == 0)
+                // Streaming needs server support that has to be advertised first; until then, queries are buffered
+                if (config.getBool("streamingUpload") && client.isStreamingQuerySupported())
                 {
-                    System.out.println("No audio recorded");
-                    audioOut.playSound(fail, false);
+                    System.out.println("Recording and streaming utterance to " + client.getConnectionString());
+                    ClientResponse response = streamUtterance(amplify);
+                    handleResponse(response);
                 }
                 else
                 {
-                    utterance = utterance.normalize();
-                    System.out.println("Sending audio request to " + client.getConnectionString());
-                    ClientResponse response = client.makeQueryRequest(createAudioQuery(utterance));
-                    handleResponse(response);
+                    System.out.println("Recording utterance...");
+                    AudioChunk utterance = AudioUtils.recordUtteranceDynamic(audioIn);
+                    if (utterance == null || utterance.Data.length == 0)
+                    {
+                        System.out.println("No audio recorded");
+                        audioOut.playSound(fail, false);
+                    }
+                    else
+                    {
+                        utterance = utterance.normalize();
+                        System.out.println("Sending audio request to " + client.getConnectionString());
+                        ClientResponse response = client.makeQueryRequest(createAudioQuery(utterance));
+                        handleResponse(response);
+                    }
                 }
             }
             
@@ -178,25 +235,88 @@ public class HeadlessAudioClient
         
         authenticator.savePrivateKeyToFile("client_authorization.xml");
         audioIn.stopRecording();
+        connectionPool.closeAll();
     }
     
     private DurandalHttpResponse sendTriggerRequest(HttpClient triggerClient, byte[] payload)
     {
-        DurandalHttpRequest thisRequest = new DurandalHttpRequest();
-        thisRequest.RequestFile = "/trigger?c=" + config.getString("clientId");
-        thisRequest.RequestMethod = "POST";
-        if (payload != null)
-            thisRequest.PayloadData = payload;
         long startTime = System.currentTimeMillis();
-        DurandalHttpResponse triggerResponse = triggerClient.sendRequest(thisRequest, 100);
+        DurandalHttpResponse triggerResponse = triggerClient.sendRequest(triggerRequestTemplate, payload, 100);
         long endTime = System.currentTimeMillis();
-        if (config.getBool("debugMode"))
+        if (debugMode)
         {
             System.out.println("Trigger latency: " + (endTime - startTime) + "ms");
+            // Report connection reuse about once every 10 seconds
+            if (++triggerRequestCount % 100 == 0)
+            {
+                System.out.println("Connection pool: " + connectionPool.getStatistics());
+            }
         }
         return triggerResponse;
     }
     
+    /// <summary>
+    /// Records an utterance in 100ms frames and uploads each compressed frame as soon as it is captured,
+    /// so that by the time the user stops talking most of the audio is already at the server.
+    /// Since the utterance is never held in full, it is not normalized; only the microphone preamp is applied.
+    /// </summary>
+    private ClientResponse streamUtterance(float amplify)
+    {
+        DialogHttpClient.StreamingQuery query = client.beginStreamingQuery();
+        if (query == null)
+        {
+            return null;
+        }
+
+        // Simple energy-based endpointing, relative to the quietest frame we have heard so far
+        double noiseFloor = -1;
+        boolean speechDetected = false;
+        int recordedMs = 0;
+        int trailingSilenceMs = 0;
+        while (recordedMs < MAX_UTTERANCE_MS)
+        {
+            AudioChunk frame = audioIn.readMicrophone(new TimeSpan(STREAMING_FRAME_MS));
+            frame = frame.resampleTo(16000, Resampler.MAGIC);
+            frame = frame.amplify(amplify);
+            if (!query.writeAudio(audioCodec.compress(frame)))
+            {
+                query.abort();
+                return null;
+            }
+
+            recordedMs += STREAMING_FRAME_MS;
+            double volume = frame.volume();
+            noiseFloor = noiseFloor < 0 ? volume : Math.min(noiseFloor, volume);
+            if (volume > (noiseFloor * SPEECH_TO_NOISE_RATIO) + 1)
+            {
+                speechDetected = true;
+                trailingSilenceMs = 0;
+            }
+            else
+            {
+                trailingSilenceMs += STREAMING_FRAME_MS;
+            }
+
+            if (speechDetected && trailingSilenceMs >= END_OF_SPEECH_SILENCE_MS)
+            {
+                break;
+            }
+            if (!speechDetected && recordedMs >= NO_SPEECH_TIMEOUT_MS)
+            {
+                System.out.println("No audio recorded");
+                query.abort();
+                return null;
+            }
+        }
+
+        AudioData queryAudio = new AudioData();
+        queryAudio.setSampleRate(16000);
+        queryAudio.setCodec(audioCodec.getFormatCode());
+        queryAudio.setCodecParams("");
+        queryAudio.setData(new BondBlob(new byte[0], 0, 0));
+        return query.finish(createAudioQuery(queryAudio));
+    }
+    
     private void handleResponse(ClientResponse response)
     {
         if (response == null || response.getExecutionResult() != Result.Success)
@@ -256,11 +376,6 @@ public class HeadlessAudioClient
     
     private ClientRequest createAudioQuery(AudioChunk audio)
     {
-        ClientRequest returnVal = new ClientRequest();
-        returnVal.setSource(InputMethod.Spoken);
-        
-        returnVal.setQueries(new ArrayList<SpeechHypothesis>());
-        
         audio = audio.resampleTo(16000);
         byte[] compressedAudio = audioCodec.compress(audio);
         
@@ -269,6 +384,15 @@ public class HeadlessAudioClient
         queryAudio.setCodec(audioCodec.getFormatCode());
         queryAudio.setCodecParams("");
         queryAudio.setData(new BondBlob(compressedAudio, 0, compressedAudio.length));
+        return createAudioQuery(queryAudio);
+    }
+    
+    private ClientRequest createAudioQuery(AudioData queryAudio)
+    {
+        ClientRequest returnVal = new ClientRequest();
+        returnVal.setSource(InputMethod.Spoken);
+        
+        returnVal.setQueries(new ArrayList<SpeechHypothesis>());
         returnVal.setQueryAudio(queryAudio);
         
         returnVal.setPreferredAudioCodec(audioCodec.getFormatCode());
@@ -4,13 +4,31 @@
  */
 package org.stromberg.durandal;
 
+import com.microsoft.bond.BondBlob;
+import com.microsoft.bond.CompactBinaryWriter;
+import com.microsoft.bond.io.MemoryBondOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.Scanner;
+import org.stromberg.durandal.api.AudioData;
+import org.stromberg.durandal.api.ClientRequest;
+import org.stromberg.durandal.api.ClientResponse;
+import org.stromberg.durandal.api.Result;
+import org.stromberg.durandal.client.DialogHttpClient;
+import org.stromberg.durandal.net.DurandalHttpRequest;
+import org.stromberg.durandal.net.DurandalHttpResponse;
+import org.stromberg.durandal.net.HttpConnectionPool;
 import stromberg.audio.AudioChunk;
 import stromberg.audio.AudioUtils;
 import stromberg.audio.IAudioPlayer;
 import stromberg.audio.IMicrophone;
 import stromberg.audio.JavaMicrophone;
 import stromberg.audio.JavaSoundPlayer;
+import stromberg.audio.SquareDeltaCodec;
 import stromberg.config.Configuration;
 
 /**
@@ -29,6 +47,7 @@ public class Main
             System.out.println("1) Run headless audio client");
             System.out.println("2) Run mic / speaker check");
             System.out.println("3) Run debug client");
+            System.out.println("4) Run streaming upload latency check");
             Scanner scanner = new Scanner(System.in);
             selection = scanner.nextInt();
         }
@@ -45,6 +64,9 @@ public class Main
             case 3:
                 //runDebugClient();
                 break;
+            case 4:
+                runStreamingUploadCheck();
+                break;
         }
         
         System.out.println("Shutting down...");
@@ -87,6 +109,184 @@ public class Main
         }
     }
     
+    // Parameters for the streaming upload check
+    private static final int STAND_IN_SERVER_PORT = 62399;
+    private static final int STAND_IN_UPLINK_BYTES_PER_SECOND = 16000;
+    private static final int CHECK_UTTERANCE_FRAMES = 30;
+    
+    /// <summary>
+    /// Compares the time between end of speech and response for a buffered query and a streaming query.
+    /// The queries go to a local stand-in dialog server which reads request bodies no faster than a constrained uplink,
+    /// so the buffered query should take about one upload duration longer than the streaming one.
+    /// </summary>
+    private static void runStreamingUploadCheck()
+    {
+        StandInDialogServer server = new StandInDialogServer();
+        if (!server.bind())
+        {
+            return;
+        }
+        server.start();
+        
+        DialogHttpClient client = new DialogHttpClient("127.0.0.1", STAND_IN_SERVER_PORT, new HttpConnectionPool());
+        SquareDeltaCodec codec = new SquareDeltaCodec();
+        
+        // Buffered: record everything, then compress and send it
+        System.out.println("Simulating " + (CHECK_UTTERANCE_FRAMES * 100) + "ms utterance with buffered upload...");
+        AudioChunk utterance = null;
+        for (int frame = 0; frame < CHECK_UTTERANCE_FRAMES; frame++)
+        {
+            AudioChunk nextFrame = recordSyntheticFrame(frame);
+            utterance = utterance == null ? nextFrame : utterance.concatenate(nextFrame);
+        }
+        long endOfSpeech = System.currentTimeMillis();
+        byte[] compressedAudio = codec.compress(utterance);
+        ClientResponse response = client.makeQueryRequest(createCheckQuery(codec, compressedAudio));
+        long bufferedLatency = System.currentTimeMillis() - endOfSpeech;
+        System.out.println("Buffered upload: " + (response == null ? "FAILED" : "response") + " after " + bufferedLatency + "ms");
+        
+        // Streaming: send each frame as soon as it is recorded
+        System.out.println("Simulating " + (CHECK_UTTERANCE_FRAMES * 100) + "ms utterance with streaming upload...");
+        DialogHttpClient.StreamingQuery query = client.beginStreamingQuery();
+        if (query == null)
+        {
+            server.shutdown();
+            return;
+        }
+        for (int frame = 0; frame < CHECK_UTTERANCE_FRAMES; frame++)
+        {
+            query.writeAudio(codec.compress(recordSyntheticFrame(frame)));
+        }
+        endOfSpeech = System.currentTimeMillis();
+        response = query.finish(createCheckQuery(codec, new byte[0]));
+        long streamingLatency = System.currentTimeMillis() - endOfSpeech;
+        System.out.println("Streaming upload: " + (response == null ? "FAILED" : "response") + " after " + streamingLatency + "ms");
+        
+        long uploadMs = (long)compressedAudio.length * 1000 / STAND_IN_UPLINK_BYTES_PER_SECOND;
+        System.out.println("Simulated upload duration was " + uploadMs + "ms; streaming saved " + (bufferedLatency - streamingLatency) + "ms");
+        server.shutdown();
+    }
+    
+    /// <summary>
+    /// Produces 100ms of a 16Khz test tone, taking as long as a real microphone would
+    /// </summary>
+    private static AudioChunk recordSyntheticFrame(int frameNum)
+    {
+        try
+        {
+            Thread.sleep(100);
+        }
+        catch (InterruptedException e) {}
+        
+        short[] samples = new short[1600];
+        for (int c = 0; c < samples.length; c++)
+        {
+            samples[c] = (short)(8000 * Math.sin(2 * Math.PI * 440 * (frameNum * samples.length + c) / 16000.0));
+        }
+        return new AudioChunk(samples, 16000);
+    }
+    
+    private static ClientRequest createCheckQuery(SquareDeltaCodec codec, byte[] compressedAudio)
+    {
+        AudioData queryAudio = new AudioData();
+        queryAudio.setSampleRate(16000);
+        queryAudio.setCodec(codec.getFormatCode());
+        queryAudio.setCodecParams("");
+        queryAudio.setData(new BondBlob(compressedAudio, 0, compressedAudio.length));
+        ClientRequest returnVal = new ClientRequest();
+        returnVal.setQueryAudio(queryAudio);
+        return returnVal;
+    }
+    
+    /**
+     * Stands in for a dialog server on a slow link: it reads each request body at a fixed byte rate
+     * and then answers with an empty successful ClientResponse. It advertises support for streaming queries,
+     * which the real dialog server does not have.
+     */
+    private static class StandInDialogServer extends Thread
+    {
+        private ServerSocket serverSocket;
+        
+        public boolean bind()
+        {
+            try
+            {
+                serverSocket = new ServerSocket();
+                // Keep the kernel from absorbing the whole upload on our behalf
+                serverSocket.setReceiveBufferSize(4096);
+                serverSocket.bind(new InetSocketAddress("127.0.0.1", STAND_IN_SERVER_PORT));
+                return true;
+            }
+            catch (IOException e)
+            {
+                System.err.println("Could not start stand-in server: " + e.getMessage());
+                return false;
+            }
+        }
+        
+        public void shutdown()
+        {
+            try
+            {
+                serverSocket.close();
+            }
+            catch (IOException e) {}
+        }
+        
+        @Override
+        public void run()
+        {
+            while (!serverSocket.isClosed())
+            {
+                try
+                {
+                    Socket socket = serverSocket.accept();
+                    DurandalHttpRequest request = DurandalHttpRequest.readRequestFromStream(new ThrottledInputStream(socket.getInputStream()));
+                    DurandalHttpResponse response = DurandalHttpResponse.ServerErrorResponse();
+                    if (request != null)
+                    {
+                        ClientResponse clientResponse = new ClientResponse();
+                        clientResponse.setExecutionResult(Result.Success);
+                        MemoryBondOutputStream outStream = new MemoryBondOutputStream();
+                        clientResponse.write(CompactBinaryWriter.createV1(outStream));
+                        response = DurandalHttpResponse.OKResponse();
+                        response.PayloadData = outStream.toByteArray();
+                        response.ResponseHeaders.put(DialogHttpClient.STREAMING_QUERY_HEADER, "audio");
+                    }
+                    response.writeToStream(socket.getOutputStream());
+                    socket.close();
+                }
+                catch (IOException e)
+                {
+                    // Server socket was closed
+                }
+            }
+        }
+    }
+    
+    private static class ThrottledInputStream extends FilterInputStream
+    {
+        public ThrottledInputStream(InputStream inner)
+        {
+            super(inner);
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int bytesRead = super.read(b, off, Math.min(len, 1024));
+            if (bytesRead > 0)
+            {
+                try
+                {
+                    Thread.sleep((long)bytesRead * 1000 / STAND_IN_UPLINK_BYTES_PER_SECOND);
+                }
+                catch (InterruptedException e) {}
+            }
+            return bytesRead;
+        }
+    }
+    
     /*private ClientRequest createTextQuery(String text, String clientId)
     {
         ClientRequest returnVal = new ClientRequest();
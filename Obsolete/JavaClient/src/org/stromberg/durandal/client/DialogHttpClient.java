@@ -6,21 +6,32 @@ import com.microsoft.bond.CompactBinaryWriter;
 import com.microsoft.bond.ProtocolReader;
 import com.microsoft.bond.ProtocolWriter;
 import com.microsoft.bond.io.MemoryBondOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
 import java.net.SocketException;
 import java.nio.charset.Charset;
 import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.stromberg.durandal.api.ClientRequest;
 import org.stromberg.durandal.api.ClientResponse;
+import org.stromberg.durandal.api.Result;
+import org.stromberg.durandal.net.CircuitBreaker;
 import org.stromberg.durandal.net.DurandalHttpRequest;
 import org.stromberg.durandal.net.DurandalHttpResponse;
 import org.stromberg.durandal.net.HttpClient;
+import org.stromberg.durandal.net.HttpConnectionPool;
+import org.stromberg.durandal.net.HttpEndpoint;
+import org.stromberg.durandal.net.HttpHelpers;
+import org.stromberg.durandal.net.RetryPolicy;
+import org.stromberg.durandal.net.StreamingHttpRequest;
 import org.stromberg.durandal.security.ClientAuthenticator;
 import org.stromberg.durandal.security.DurandalAuthentication;
 import org.stromberg.durandal.security.PublicKey;
@@ -31,11 +42,35 @@ import org.stromberg.durandal.security.PublicKey;
  */
 public class DialogHttpClient extends HttpClient
 {
+    // Resetting state is idempotent, and a client that fails to do it at startup starts off confused
+    private static final RetryPolicy RESET_RETRY_POLICY = new RetryPolicy(3);
+
+    /// <summary>
+    /// Response header with which a dialog server advertises that it accepts streaming queries (see StreamingQuery)
+    /// </summary>
+    public static final String STREAMING_QUERY_HEADER = "X-Durandal-Streaming-Query";
+
+    // Only set once the server has told us it understands streaming queries
+    private volatile boolean _streamingQuerySupported = false;
+
     public DialogHttpClient(String hostName, int remotePort)
     {
         super(hostName, remotePort);
     }
 
+    public DialogHttpClient(String hostName, int remotePort, HttpConnectionPool connectionPool)
+    {
+        super(hostName, remotePort, connectionPool);
+    }
+
+    /// <summary>
+    /// Creates a client that spreads its queries over several dialog servers
+    /// </summary>
+    public DialogHttpClient(List<HttpEndpoint> endpoints, HttpConnectionPool connectionPool)
+    {
+        super(endpoints, connectionPool);
+    }
+
     public String getConnectionString()
     {
         return this.getServerAddress();
@@ -75,8 +110,109 @@ public class DialogHttpClient extends HttpClient
             return null;
         }
 
-        byte[] result = sendRequest(input, "/query", 10000);
-        if (result.length == 0)
+        // Deserialize straight off the socket rather than buffering the whole (possibly audio-heavy) body first
+        DurandalHttpResponse httpResponse = sendRequestStreaming(createRequest(input, "/query"), 10000);
+        if (httpResponse == null)
+        {
+            return null;
+        }
+
+        learnServerCapabilities(httpResponse);
+        try
+        {
+            if (httpResponse.ResponseCode != 200 || httpResponse.PayloadStream == null)
+            {
+                return null;
+            }
+
+            ClientResponse response = new ClientResponse();
+            if (deserializeBond(httpResponse.PayloadStream, response))
+            {
+                return honorRetryDelay(response);
+            }
+
+            return null;
+        }
+        finally
+        {
+            closePayload(httpResponse);
+        }
+    }
+
+    /// <summary>
+    /// Sends a query without blocking the calling thread. The future completes with null
+    /// in the same cases where makeQueryRequest would return null.
+    /// Cancelling the future aborts the underlying HTTP request.
+    /// </summary>
+    public CompletableFuture<ClientResponse> makeQueryRequestAsync(ClientRequest request)
+    {
+        if (request == null)
+        {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        byte[] input = serializeBond(request);
+        if (input.length == 0)
+        {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<DurandalHttpResponse> httpResponse = sendRequestAsync(createRequest(input, "/query"), 10000);
+        CompletableFuture<ClientResponse> returnVal = httpResponse.handle((response, error) ->
+        {
+            if (error != null || response == null)
+            {
+                return null;
+            }
+            learnServerCapabilities(response);
+            if (response.ResponseCode != 200)
+            {
+                return null;
+            }
+            return honorRetryDelay(parseClientResponse(response.PayloadData));
+        });
+        return HttpHelpers.propagateCancellation(returnVal, httpResponse);
+    }
+
+    /// <summary>
+    /// If the server failed a query and suggested how long to wait (in milliseconds) before trying again,
+    /// holds off every request from this client until then
+    /// </summary>
+    private ClientResponse honorRetryDelay(ClientResponse response)
+    {
+        CircuitBreaker breaker = getCircuitBreaker();
+        if (response != null && breaker != null &&
+            response.getExecutionResult() != Result.Success &&
+            response.getSuggestedRetryDelay() > 0)
+        {
+            breaker.holdOff(response.getSuggestedRetryDelay());
+        }
+        return response;
+    }
+
+    /// <summary>
+    /// Notes whether the server that sent a query response accepts streaming queries
+    /// </summary>
+    private void learnServerCapabilities(DurandalHttpResponse response)
+    {
+        if (response != null && response.ResponseCode == 200)
+        {
+            _streamingQuerySupported = "audio".equalsIgnoreCase(response.ResponseHeaders.get(STREAMING_QUERY_HEADER));
+        }
+    }
+
+    /// <summary>
+    /// True once the dialog server has advertised (with STREAMING_QUERY_HEADER on a query response) that it accepts
+    /// streaming queries. Until then, beginStreamingQuery refuses to start one.
+    /// </summary>
+    public boolean isStreamingQuerySupported()
+    {
+        return _streamingQuerySupported;
+    }
+
+    private static ClientResponse parseClientResponse(byte[] result)
+    {
+        if (result == null || result.length == 0)
         {
             return null;
         }
@@ -90,6 +226,125 @@ public class DialogHttpClient extends HttpClient
         return null;
     }
     
+    // Record types used in the body of a streaming query
+    private static final int STREAM_RECORD_AUDIO = 1;
+    private static final int STREAM_RECORD_CLIENT_REQUEST = 2;
+
+    /**
+     * A query whose audio is uploaded while it is still being recorded.
+     * The request is sent to /query?stream=audio with a chunked body that consists of
+     * a sequence of records, each one a type byte followed by a 4-byte big-endian length
+     * and that many bytes of data. Type 1 records carry one independently compressed
+     * audio frame each; the single type 2 record at the end carries the Bond-serialized
+     * ClientRequest, whose QueryAudio describes the codec and sample rate but has no data.
+     * The server concatenates the frames to form the query audio.
+     *
+     * This framing is specific to this client; the dialog server in this repository does not implement
+     * it. A streaming query is therefore only started against a server that has advertised support
+     * for it with an "X-Durandal-Streaming-Query: audio" header on an ordinary query response.
+     */
+    public class StreamingQuery
+    {
+        private final StreamingHttpRequest _httpRequest;
+        private final DataOutputStream _records;
+
+        private StreamingQuery(StreamingHttpRequest httpRequest)
+        {
+            _httpRequest = httpRequest;
+            _records = new DataOutputStream(httpRequest.getOutputStream());
+        }
+
+        /// <summary>
+        /// Sends one compressed audio frame to the server immediately. Returns false if the upload has failed,
+        /// in which case the query should be aborted.
+        /// </summary>
+        public boolean writeAudio(byte[] compressedFrame)
+        {
+            return writeRecord(STREAM_RECORD_AUDIO, compressedFrame);
+        }
+
+        /// <summary>
+        /// Ends the upload by sending the final ClientRequest, and waits for the response
+        /// </summary>
+        public ClientResponse finish(ClientRequest request)
+        {
+            byte[] input = serializeBond(request);
+            if (input.length == 0 || !writeRecord(STREAM_RECORD_CLIENT_REQUEST, input))
+            {
+                abort();
+                return null;
+            }
+
+            DurandalHttpResponse response = _httpRequest.finish(10000);
+            if (response == null)
+            {
+                return null;
+            }
+            if (response.ResponseCode != 200)
+            {
+                if (response.ResponseCode == 400 || response.ResponseCode == 404 || response.ResponseCode == 405 ||
+                    response.ResponseCode == 415 || response.ResponseCode == 501)
+                {
+                    // The server didn't understand the upload after all; go back to buffered queries
+                    System.err.println("Dialog server rejected a streaming query (" + response.ResponseCode + "); streaming is now disabled");
+                    _streamingQuerySupported = false;
+                }
+                return null;
+            }
+
+            return honorRetryDelay(parseClientResponse(response.PayloadData));
+        }
+
+        public void abort()
+        {
+            _httpRequest.abort();
+        }
+
+        private boolean writeRecord(int recordType, byte[] data)
+        {
+            try
+            {
+                _records.writeByte(recordType);
+                _records.writeInt(data.length);
+                _records.write(data);
+                _records.flush();
+                return true;
+            }
+            catch (IOException e)
+            {
+                System.err.println(e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    /// <summary>
+    /// Opens a streaming query to the dialog server. Returns null if the server could not be reached, or if it
+    /// has not advertised support for streaming queries (see isStreamingQuerySupported).
+    /// </summary>
+    public StreamingQuery beginStreamingQuery()
+    {
+        if (!_streamingQuerySupported)
+        {
+            System.err.println("Dialog server at " + getConnectionString() + " has not advertised support for streaming queries");
+            return null;
+        }
+
+        DurandalHttpRequest request = new DurandalHttpRequest();
+        request.RequestMethod = "POST";
+        request.RequestFile = "/query";
+        request.GetParameters.put("stream", "audio");
+        request.RequestHeaders.put("Content-Type", "application/octet-stream");
+        StreamingHttpRequest httpRequest = beginStreamingRequest(request);
+        if (httpRequest == null)
+        {
+            System.err.println("Could not open streaming query to " + getConnectionString());
+            return null;
+        }
+
+        return new StreamingQuery(httpRequest);
+    }
+
     public class AuthHelloResponse
     {
         public boolean Success;
@@ -218,6 +473,33 @@ public class DialogHttpClient extends HttpClient
         }
     }
 
+    private static boolean deserializeBond(InputStream that, BondSerializable container)
+    {
+        try
+        {
+            ProtocolReader reader = CompactBinaryReader.createV1(new StreamingBondInputStream(that));
+            container.read(reader);
+            return true;
+        }
+        catch (IOException e)
+        {
+            System.err.println(e.getMessage());
+            return false;
+        }
+    }
+
+    private static void closePayload(DurandalHttpResponse response)
+    {
+        if (response.PayloadStream != null)
+        {
+            try
+            {
+                response.PayloadStream.close();
+            }
+            catch (IOException e) {}
+        }
+    }
+
     /*public ClientResponse MakeViewRequest(ClientRequest request)
     {
         try
@@ -237,16 +519,29 @@ public class DialogHttpClient extends HttpClient
     }*/
 
     public boolean resetConversationState(String clientId)
+    {
+        DurandalHttpResponse response = sendRequestWithRetry(createResetRequest(clientId), 10000, RESET_RETRY_POLICY);
+        if (response == null || response.ResponseCode != 200)
+            return false;
+        return true;
+    }
+
+    public CompletableFuture<Boolean> resetConversationStateAsync(String clientId)
+    {
+        CompletableFuture<DurandalHttpResponse> httpResponse = sendRequestAsync(createResetRequest(clientId), 10000);
+        CompletableFuture<Boolean> returnVal = httpResponse.handle((response, error) ->
+                error == null && response != null && response.ResponseCode == 200);
+        return HttpHelpers.propagateCancellation(returnVal, httpResponse);
+    }
+
+    private static DurandalHttpRequest createResetRequest(String clientId)
     {
         DurandalHttpRequest request = new DurandalHttpRequest();
         request.RequestMethod = "POST";
         request.RequestFile = "/reset";
         request.ProtocolVersion = "HTTP/1.0";
         request.GetParameters.put("clientid", clientId);
-        DurandalHttpResponse response = sendRequest(request, 10000);
-        if (response == null || response.ResponseCode != 200)
-            return false;
-        return true;
+        return request;
     }
 
     /*public ClientResponse MakeDialogActionRequest(ClientRequest request, string url)
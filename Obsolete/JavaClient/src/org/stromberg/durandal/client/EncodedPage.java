@@ -0,0 +1,68 @@
+package org.stromberg.durandal.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import org.stromberg.durandal.net.HttpCompression;
+import org.stromberg.durandal.utils.CachedItem;
+
+/**
+ * A page of HTML held the way it will be sent: encoded as UTF-8, and also gzipped if that makes it smaller.
+ * All the encoding happens once, when the page is stored, since a page is served many more times than it is
+ * created, so a request for it only has to pick the right bytes. Each variant has its own ETag, because the
+ * two are different representations of the page as far as caches are concerned.
+ * @author lostromb
+ */
+public class EncodedPage
+{
+    private final byte[] _identity;
+    private final byte[] _gzip;
+    private final String _etag;
+
+    public EncodedPage(String html)
+    {
+        _identity = html.getBytes(StandardCharsets.UTF_8);
+        _etag = CachedItem.computeETag(_identity);
+
+        // The page is only compressed once, so it's worth spending the extra CPU on the best ratio gzip can get
+        byte[] gzip = null;
+        if (_identity.length >= HttpCompression.DEFAULT_COMPRESSION_THRESHOLD)
+        {
+            gzip = HttpCompression.compress(_identity, HttpCompression.GZIP, Deflater.BEST_COMPRESSION);
+            if (gzip.length >= _identity.length)
+            {
+                gzip = null;
+            }
+        }
+        _gzip = gzip;
+    }
+
+    /// <summary>
+    /// Picks the Content-Encoding to send for an Accept-Encoding header: "gzip", or null for the page as it is
+    /// </summary>
+    public String selectEncoding(String acceptEncoding)
+    {
+        return _gzip != null && HttpCompression.GZIP.equals(HttpCompression.selectEncoding(acceptEncoding)) ? HttpCompression.GZIP : null;
+    }
+
+    /// <summary>
+    /// Returns the bytes to send for an encoding chosen by selectEncoding(). The array is shared, so it must not be modified.
+    /// </summary>
+    public byte[] getBody(String encoding)
+    {
+        return encoding == null ? _identity : _gzip;
+    }
+
+    public String getHtml()
+    {
+        return new String(_identity, StandardCharsets.UTF_8);
+    }
+
+    public String getETag(String encoding)
+    {
+        if (encoding == null || _etag == null)
+        {
+            return _etag;
+        }
+        return _etag.substring(0, _etag.length() - 1) + "-" + encoding + "\"";
+    }
+}
@@ -1,16 +1,36 @@
 package org.stromberg.durandal.client;
 
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.nio.charset.Charset;
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import org.stromberg.durandal.api.ClientRequest;
 import org.stromberg.durandal.api.ClientResponse;
 import org.stromberg.durandal.api.Result;
+import org.stromberg.durandal.net.ConcurrencyLimiter;
 import org.stromberg.durandal.net.DurandalHttpRequest;
 import org.stromberg.durandal.net.DurandalHttpResponse;
+import org.stromberg.durandal.net.FileHandleCache;
 import org.stromberg.durandal.net.HttpClient;
+import org.stromberg.durandal.net.HttpEndpoint;
+import org.stromberg.durandal.net.HttpHelpers;
+import org.stromberg.durandal.net.HttpResponseCache;
+import org.stromberg.durandal.net.HttpReverseProxy;
 import org.stromberg.durandal.net.HttpServer;
+import org.stromberg.durandal.net.LoadBalancer;
+import org.stromberg.durandal.net.ServerSentEventHub;
+import org.stromberg.durandal.net.ServerSentEventStream;
+import org.stromberg.durandal.net.StaticFileHandler;
 import org.stromberg.durandal.utils.Cache;
+import org.stromberg.durandal.utils.CachedItem;
 
 /**
  *
@@ -18,85 +38,363 @@ import org.stromberg.durandal.utils.Cache;
  */
 public class PresentationWebServer extends HttpServer
 {
+    // Each subscriber is an open connection, so this also bounds how many of those the event streams can take up
+    private static final int MAX_EVENT_SUBSCRIBERS = 256;
+    private static final int MAX_TRACKED_CLIENTS = 1024;
+
     private DialogHttpClient dialogConnection;
-    private Cache<String> pageCache;
+    private Cache<EncodedPage> pageCache;
+    private StaticFileHandler viewFiles = null;
+    private HttpReverseProxy viewProxy;
+    private HttpResponseCache viewCache;
+    private ServerSentEventHub pageEvents;
+    // The key of the last page shown to each client, so a browser that reconnects can catch up on what it missed
+    private final Map<String, String> latestPages = new LinkedHashMap<String, String>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+        {
+            return size() > MAX_TRACKED_CLIENTS;
+        }
+    };
+    // The secret that each client's event streams must present, since client IDs are not secret (see getEventStreamPath)
+    private final Map<String, String> eventTokens = new LinkedHashMap<String, String>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+        {
+            return size() > MAX_TRACKED_CLIENTS;
+        }
+    };
+    private final SecureRandom tokenGenerator = new SecureRandom();
     
     public PresentationWebServer(DialogHttpClient dialogClient,
             int serverPort)
+    {
+        this(dialogClient, serverPort, null);
+    }
+
+    /// <summary>
+    /// Creates a server that serves view assets from a local mirror of the dialog server's /views directory
+    /// where it can, and only proxies the requests for files that aren't in it. viewDirectory may be null.
+    /// </summary>
+    public PresentationWebServer(DialogHttpClient dialogClient,
+            int serverPort,
+            File viewDirectory)
     {
         super(serverPort, true);
+        // Browsers hold connections open between page loads; on the event loop those cost no threads
+        setEngine(Engine.EVENT_LOOP);
+        // Under overload, shed view assets (the browser retries them) before the dialog pages themselves
+        setConcurrencyLimiter(ConcurrencyLimiter.createAdaptive(32, 4, 256));
+        setReadinessPath("/ready");
         dialogConnection = dialogClient;
-        pageCache = new Cache<String>(10);
+        viewProxy = new HttpReverseProxy(createViewClient(dialogClient), 10000);
+        viewCache = new HttpResponseCache(32 * 1024 * 1024);
+        pageCache = new Cache<EncodedPage>(10);
+        pageEvents = new ServerSentEventHub(MAX_EVENT_SUBSCRIBERS, ServerSentEventHub.DEFAULT_HEARTBEAT_INTERVAL_MS);
+        if (viewDirectory != null)
+        {
+            viewFiles = new StaticFileHandler(viewDirectory.toPath(), "/views", new FileHandleCache(FileHandleCache.DEFAULT_MAX_OPEN_FILES));
+        }
+
+        getRouter()
+                .add(null, "/action/*", this::handleActionRequest)
+                .add(null, "/dialog", this::handleDialogPageRequest)
+                .add("GET", "/events", this::handleEventsRequest)
+                .addAsync(null, "/views/*", this::handleViewRequest);
     }
     
-    @Override
-    public DurandalHttpResponse handleConnection(DurandalHttpRequest clientRequest)
+    /// <summary>
+    /// Creates the client that view requests are proxied through. It talks to the same servers over the same connection pool
+    /// as the dialog client, but has its own circuit breaker and endpoint health, so that failing view requests can't trip
+    /// the breaker or eject a server for dialog queries.
+    /// </summary>
+    private static HttpClient createViewClient(DialogHttpClient dialogClient)
     {
-        DurandalHttpResponse response = DurandalHttpResponse.NotFoundResponse();
+        List<HttpEndpoint> endpoints = new ArrayList<HttpEndpoint>();
+        for (HttpEndpoint endpoint : dialogClient.getLoadBalancer().getEndpoints())
+        {
+            endpoints.add(new HttpEndpoint(endpoint.getHost(), endpoint.getPort()));
+        }
+        return new HttpClient(new LoadBalancer(endpoints), dialogClient.getConnectionPool());
+    }
 
-        if (clientRequest.RequestFile.startsWith("/action"))
+    @Override
+    protected ConcurrencyLimiter.Priority getRequestPriority(DurandalHttpRequest clientRequest)
+    {
+        if (clientRequest.RequestFile.equals("/dialog"))
         {
-            // BEGIN TURN 2+ - Client's browser executes a dialog action
-            // The key to access the associated DialogAction is encoded in the URL
-            response = DurandalHttpResponse.ServerErrorResponse();
+            return ConcurrencyLimiter.Priority.CRITICAL;
+        }
+        else if (clientRequest.RequestFile.startsWith("/views"))
+        {
+            return ConcurrencyLimiter.Priority.SHEDDABLE;
+        }
+        return ConcurrencyLimiter.Priority.NORMAL;
+    }
+
+    @Override
+    protected boolean isLatencyLoadSignal(DurandalHttpRequest clientRequest)
+    {
+        // View assets that aren't mirrored locally wait on the dialog server, and event streams wait on new pages;
+        // neither says anything about how busy this server is
+        return !clientRequest.RequestFile.startsWith("/views") && !clientRequest.RequestFile.equals("/events");
+    }
+
+    private DurandalHttpResponse handleActionRequest(DurandalHttpRequest clientRequest)
+    {
+        // BEGIN TURN 2+ - Client's browser executes a dialog action
+        // The key to access the associated DialogAction is encoded in the URL
+        DurandalHttpResponse response = DurandalHttpResponse.ServerErrorResponse();
 
-            if (clientRequest.GetParameters.containsKey("key"))
+        if (clientRequest.GetParameters.containsKey("key"))
+        {
+            
+            /*ClientRequest request = new ClientRequest();
+            request.setProtocolVersion("1.0");
+            // Authenticate the request
+            if (_requestAuthenticator != null)
+            {
+                _requestAuthenticator.AddAuthTokenToRequest(ref request);
+            }
+            // Call the delegate to generate a request context for us
+            request.setClientContext(contextGenerator());
+            // TODO: Add client ID to action URL
+            String dialogTargetUri = "/action?key=" + clientRequest.GetParameters.get("key") + "&format=bond";
+            ClientResponse durandalResult = dialogConnection.makeDialogActionRequest(request, dialogTargetUri);
+            if (durandalResult != null && durandalResult.getExecutionResult() == Result.Success)
             {
-                
-                /*ClientRequest request = new ClientRequest();
-                request.setProtocolVersion("1.0");
-                // Authenticate the request
-                if (_requestAuthenticator != null)
+                // Send an HTTP 303 to redirect the client to the new response
+                // (If we just write the response directly back to the user, it could lead to double-submission and stuff)
+                String redirectUrl = GeneratePresentationUrlFromResponse(durandalResult);
+                if (redirectUrl != null)
                 {
-                    _requestAuthenticator.AddAuthTokenToRequest(ref request);
+                    response = DurandalHttpResponse.RedirectResponse();
+                    response.ResponseHeaders.put("Location", redirectUrl);
                 }
-                // Call the delegate to generate a request context for us
-                request.setClientContext(contextGenerator());
-                // TODO: Add client ID to action URL
-                String dialogTargetUri = "/action?key=" + clientRequest.GetParameters.get("key") + "&format=bond";
-                ClientResponse durandalResult = dialogConnection.makeDialogActionRequest(request, dialogTargetUri);
-                if (durandalResult != null && durandalResult.getExecutionResult() == Result.Success)
-                {
-                    // Send an HTTP 303 to redirect the client to the new response
-                    // (If we just write the response directly back to the user, it could lead to double-submission and stuff)
-                    String redirectUrl = GeneratePresentationUrlFromResponse(durandalResult);
-                    if (redirectUrl != null)
-                    {
-                        response = DurandalHttpResponse.RedirectResponse();
-                        response.ResponseHeaders.put("Location", redirectUrl);
-                    }
-                }*/
-            }
+            }*/
+        }
+
+        return response;
+    }
+
+    private DurandalHttpResponse handleDialogPageRequest(DurandalHttpRequest clientRequest)
+    {
+        if (!clientRequest.GetParameters.containsKey("page"))
+        {
+            return DurandalHttpResponse.NotFoundResponse();
+        }
+
+        // AFTER TURN 1+ - Client's web browser talks to local cache server
+        // Execute the HTTP server workflow
+        String pageKey = clientRequest.GetParameters.get("page");
+        CachedItem<EncodedPage> cachedPage = pageCache.RetrieveItem(pageKey);
+        // If page is null, it has expired from the cache or never existed
+        /*if (webpage == null)
+        {
+            webpage = generateInfoPage("The requested page has expired from the server");
+        }*/
+        if (cachedPage == null)
+        {
+            return DurandalHttpResponse.NotFoundResponse();
+        }
+
+        // The page was encoded (and compressed) when it was stored, so all that's left is to pick the right bytes
+        EncodedPage webpage = cachedPage.Value;
+        String encoding = webpage.selectEncoding(clientRequest.RequestHeaders.get("Accept-Encoding"));
+        String etag = webpage.getETag(encoding);
+
+        // A stored page never changes, so the browser may reuse its copy for as long as we would keep ours,
+        // and after that a revalidation with its ETag costs us nothing more than a 304
+        DurandalHttpResponse response;
+        if (HttpHelpers.isNotModified(clientRequest, etag, cachedPage.StoreTime))
+        {
+            response = DurandalHttpResponse.NotModifiedResponse();
         }
-        else if (clientRequest.RequestFile.equals("/dialog") && clientRequest.GetParameters.containsKey("page"))
+        else
         {
-            // AFTER TURN 1+ - Client's web browser talks to local cache server
-            // Execute the HTTP server workflow
-            String pageKey = clientRequest.GetParameters.get("page");
             response = DurandalHttpResponse.OKResponse();
-            String webpage = pageCache.Retrieve(pageKey);
-            // If page is null, it has expired from the cache or never existed
-            /*if (webpage == null)
+            response.ResponseHeaders.put("Content-Type", "text/html; charset=utf-8");
+            response.PayloadData = webpage.getBody(encoding);
+            if (encoding != null)
             {
-                webpage = generateInfoPage("The requested page has expired from the server");
-            }*/
-            response.PayloadData = webpage.getBytes(Charset.forName("UTF-8"));
-            
+                response.ResponseHeaders.put("Content-Encoding", encoding);
+            }
         }
-        else if (clientRequest.RequestFile.startsWith("/views"))
+        long maxAgeSeconds = Math.max(0, (cachedPage.ExpireTime - System.currentTimeMillis()) / 1000);
+        response.ResponseHeaders.put("ETag", etag);
+        response.ResponseHeaders.put("Vary", "Accept-Encoding");
+        response.ResponseHeaders.put("Last-Modified", HttpHelpers.formatHttpDate(cachedPage.StoreTime));
+        response.ResponseHeaders.put("Cache-Control", "private, max-age=" + maxAgeSeconds);
+        return response;
+    }
+
+    /// <summary>
+    /// Stores a page of HTML to be served at /dialog?page=[key], and returns its key
+    /// </summary>
+    public String storePage(String html)
+    {
+        return pageCache.Store(new EncodedPage(html));
+    }
+
+    /// <summary>
+    /// Shows the HTML of a response from the dialog server to a client: stores it as a page, and pushes it to any
+    /// browsers that client has listening on /events. Returns the page key, or null if the response has no HTML.
+    /// Whatever displays dialog responses in a browser should call this; nothing in this client does yet, since
+    /// HeadlessAudioClient has no display and never creates a PresentationWebServer.
+    /// </summary>
+    public String presentResponse(String clientId, ClientResponse response)
+    {
+        String html = response.getHtmlToDisplay();
+        if (html == null || html.isEmpty())
+        {
+            return null;
+        }
+
+        String pageKey = storePage(html);
+        synchronized (latestPages)
+        {
+            latestPages.put(clientId, pageKey);
+        }
+        pageEvents.publish(getEventTopic(clientId, false), "page", pageKey, pageKey);
+        pageEvents.publish(getEventTopic(clientId, true), "page", pageKey, html);
+        return pageKey;
+    }
+
+    /// <summary>
+    /// Returns the path (with query) on which a browser showing this client's pages can listen for new ones. It carries
+    /// a random token for the client, created on first use, without which /events refuses to open the client's stream.
+    /// Hand it only to the browser that shows the client's pages; add "&format=html" to get the pages themselves.
+    /// </summary>
+    public String getEventStreamPath(String clientId)
+    {
+        String token;
+        synchronized (eventTokens)
         {
-            // Simply pipe the request to the (remote) dialog server
-            try
+            token = eventTokens.get(clientId);
+            if (token == null)
             {
-                HttpClient client = new HttpClient(new URL(dialogConnection.getConnectionString()));
-                response = client.sendRequest(clientRequest, 10000);
+                byte[] secret = new byte[16];
+                tokenGenerator.nextBytes(secret);
+                token = Base64.getUrlEncoder().withoutPadding().encodeToString(secret);
+                eventTokens.put(clientId, token);
             }
-            catch (MalformedURLException e)
+        }
+        try
+        {
+            return "/events?client=" + URLEncoder.encode(clientId, "UTF-8") + "&token=" + token;
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // Every JVM supports UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /// <summary>
+    /// Opens an event stream (/events?client=[id]&token=[token], see getEventStreamPath) on which a "page" event is pushed
+    /// each time a new page is shown to the client, so browsers don't have to poll for them. Each event's data is the page
+    /// key, or with format=html the page itself; its id is always the page key.
+    /// </summary>
+    private DurandalHttpResponse handleEventsRequest(DurandalHttpRequest clientRequest)
+    {
+        String clientId = clientRequest.GetParameters.get("client");
+        String token = clientRequest.GetParameters.get("token");
+        if (clientId == null || clientId.isEmpty() || token == null)
+        {
+            return DurandalHttpResponse.NotFoundResponse();
+        }
+
+        String expectedToken;
+        synchronized (eventTokens)
+        {
+            expectedToken = eventTokens.get(clientId);
+        }
+        // Compared in constant time, so the token can't be guessed one character at a time; a wrong token looks like an unknown client
+        if (expectedToken == null ||
+            !MessageDigest.isEqual(expectedToken.getBytes(StandardCharsets.US_ASCII), token.getBytes(StandardCharsets.US_ASCII)))
+        {
+            return DurandalHttpResponse.NotFoundResponse();
+        }
+
+        boolean html = "html".equals(clientRequest.GetParameters.get("format"));
+        ServerSentEventStream stream = pageEvents.subscribe(getEventTopic(clientId, html));
+        if (stream == null)
+        {
+            // Browsers retry event streams on their own, so this just spreads the reconnections out
+            return DurandalHttpResponse.ServiceUnavailableResponse(5);
+        }
+
+        // A browser that is reconnecting says which page it saw last; if there has been a new one since, it gets that straight away
+        String lastEventId = clientRequest.RequestHeaders.get("Last-Event-ID");
+        String latestPage;
+        synchronized (latestPages)
+        {
+            latestPage = latestPages.get(clientId);
+        }
+        if (lastEventId != null && latestPage != null && !latestPage.equals(lastEventId))
+        {
+            CachedItem<EncodedPage> cachedPage = pageCache.RetrieveItem(latestPage);
+            if (cachedPage != null)
             {
-                response = DurandalHttpResponse.ServerErrorResponse();
+                stream.send("page", latestPage, html ? cachedPage.Value.getHtml() : latestPage);
             }
         }
+        return stream.createResponse();
+    }
 
-        return response;
+    private static String getEventTopic(String clientId, boolean html)
+    {
+        return html ? clientId + "\nhtml" : clientId;
+    }
+
+    private CompletableFuture<DurandalHttpResponse> handleViewRequest(DurandalHttpRequest clientRequest)
+    {
+        // Local copies are sent straight from disk to the socket, which is much cheaper than a round trip to the dialog server
+        DurandalHttpResponse localFile = viewFiles == null ? null : viewFiles.serve(clientRequest);
+        if (localFile != null)
+        {
+            return CompletableFuture.completedFuture(localFile);
+        }
+        // View assets only change when the dialog server is redeployed, so most requests never need to leave this process
+        return viewCache.get(clientRequest, this::proxyViewRequest);
+    }
+
+    private CompletableFuture<DurandalHttpResponse> proxyViewRequest(DurandalHttpRequest clientRequest)
+    {
+        // Pipe the request to the (remote) dialog server over a pooled connection, and stream its answer back as it arrives.
+        // A page load asks for the same assets from many tabs and frames at once, and those are fetched only once.
+        return viewProxy.forward(clientRequest);
+    }
+
+    public HttpReverseProxy.Statistics getViewProxyStatistics()
+    {
+        return viewProxy.getStatistics();
+    }
+
+    public HttpResponseCache.Statistics getViewCacheStatistics()
+    {
+        return viewCache.getStatistics();
+    }
+
+    public ServerSentEventHub.Statistics getPageEventStatistics()
+    {
+        return pageEvents.getStatistics();
+    }
+
+    @Override
+    protected void writeMetrics(StringBuilder output)
+    {
+        viewCache.writePrometheus(output, "durandal_views_cache");
+        pageEvents.writePrometheus(output, "durandal_page_events");
+    }
+
+    @Override
+    public boolean shutdown(long drainTimeoutMs)
+    {
+        // Event streams never finish on their own, so they would hold up the drain until its deadline
+        pageEvents.close();
+        return super.shutdown(drainTimeoutMs);
     }
 }
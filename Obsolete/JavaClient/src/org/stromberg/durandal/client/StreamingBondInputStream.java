@@ -0,0 +1,43 @@
+package org.stromberg.durandal.client;
+
+import com.microsoft.bond.BondBlob;
+import com.microsoft.bond.io.GenericBondInputStream;
+import java.io.InputStream;
+
+/**
+ * Lets Bond deserialize directly from a network stream. GenericBondInputStream passes short
+ * reads straight through and does not implement readBlob at all, and both happen routinely
+ * when a large ClientResponse arrives over a socket.
+ * @author lostromb
+ */
+class StreamingBondInputStream extends GenericBondInputStream
+{
+    public StreamingBondInputStream(InputStream stream)
+    {
+        super(stream);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length)
+    {
+        int totalRead = 0;
+        while (totalRead < length)
+        {
+            int bytesRead = super.read(buffer, offset + totalRead, length - totalRead);
+            if (bytesRead <= 0)
+            {
+                break;
+            }
+            totalRead += bytesRead;
+        }
+        return totalRead;
+    }
+
+    @Override
+    public BondBlob readBlob(int size)
+    {
+        byte[] data = new byte[size];
+        int bytesRead = read(data, 0, size);
+        return new BondBlob(data, 0, bytesRead);
+    }
+}
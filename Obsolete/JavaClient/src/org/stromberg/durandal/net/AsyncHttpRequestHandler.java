@@ -0,0 +1,15 @@
+package org.stromberg.durandal.net;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Handles one route of an HttpServer without tying up a server thread while it waits, by returning a future
+ * that completes once the response is ready (for example, when an upstream call made with
+ * HttpClient.sendRequestAsync comes back). The future must always complete eventually, if only exceptionally;
+ * the connection stays open until it does.
+ * @author lostromb
+ */
+public interface AsyncHttpRequestHandler
+{
+    public CompletableFuture<DurandalHttpResponse> handle(DurandalHttpRequest request);
+}
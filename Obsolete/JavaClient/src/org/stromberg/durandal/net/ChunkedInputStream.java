@@ -0,0 +1,128 @@
+package org.stromberg.durandal.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes an HTTP/1.1 "Transfer-Encoding: chunked" body from an underlying stream.
+ * Reads never go past the terminating chunk and trailers, so the underlying stream
+ * is left positioned at the start of the next message.
+ * @author lostromb
+ */
+public class ChunkedInputStream extends InputStream
+{
+    private final InputStream _inner;
+    private final byte[] _singleByte = new byte[1];
+    private final StringBuilder _lineBuilder = new StringBuilder();
+    private int _chunkRemaining = 0;
+    private boolean _endOfStream = false;
+
+    public ChunkedInputStream(InputStream inner)
+    {
+        _inner = inner;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        int bytesRead = read(_singleByte, 0, 1);
+        if (bytesRead <= 0)
+            return -1;
+        return _singleByte[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (_endOfStream)
+            return -1;
+        if (len == 0)
+            return 0;
+
+        if (_chunkRemaining == 0)
+        {
+            _chunkRemaining = readChunkSize();
+            if (_chunkRemaining == 0)
+            {
+                // Last chunk. Skip over any trailers until the blank line
+                while (!readLine().isEmpty()) { }
+                _endOfStream = true;
+                return -1;
+            }
+        }
+
+        int bytesRead = _inner.read(b, off, Math.min(len, _chunkRemaining));
+        if (bytesRead < 0)
+        {
+            throw new EOFException("Stream ended in the middle of an HTTP chunk");
+        }
+
+        _chunkRemaining -= bytesRead;
+        if (_chunkRemaining == 0)
+        {
+            // Consume the CRLF that follows each chunk's data
+            readLine();
+        }
+
+        return bytesRead;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        if (_endOfStream)
+            return 0;
+        return Math.min(_chunkRemaining, _inner.available());
+    }
+
+    /// <summary>
+    /// Returns true once the terminating chunk has been read
+    /// </summary>
+    public boolean isFinished()
+    {
+        return _endOfStream;
+    }
+
+    private int readChunkSize() throws IOException
+    {
+        String sizeLine = readLine();
+        // Ignore chunk extensions
+        int extensionStart = sizeLine.indexOf(';');
+        if (extensionStart >= 0)
+        {
+            sizeLine = sizeLine.substring(0, extensionStart);
+        }
+
+        try
+        {
+            return Integer.parseInt(sizeLine.trim(), 16);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException("Invalid HTTP chunk size \"" + sizeLine + "\"");
+        }
+    }
+
+    private String readLine() throws IOException
+    {
+        _lineBuilder.setLength(0);
+        while (true)
+        {
+            int next = _inner.read();
+            if (next < 0)
+            {
+                throw new EOFException("Stream ended in the middle of an HTTP chunk header");
+            }
+            if (next == '\n')
+            {
+                break;
+            }
+            if (next != '\r')
+            {
+                _lineBuilder.append((char)next);
+            }
+        }
+        return _lineBuilder.toString();
+    }
+}
@@ -0,0 +1,89 @@
+package org.stromberg.durandal.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes data to an underlying stream using HTTP/1.1 "Transfer-Encoding: chunked" framing.
+ * Each call to write() becomes one chunk on the wire. Closing this stream writes the terminating
+ * zero-length chunk but leaves the underlying stream open, since it is usually a persistent connection.
+ * @author lostromb
+ */
+public class ChunkedOutputStream extends OutputStream
+{
+    private static final byte[] CRLF = new byte[] { 13, 10 };
+    private static final byte[] LAST_CHUNK = new byte[] { '0', 13, 10, 13, 10 };
+    private static final byte[] HEX_DIGITS = new byte[] { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+    private final OutputStream _inner;
+    private final byte[] _chunkHeader = new byte[10];
+    private final byte[] _singleByte = new byte[1];
+    private boolean _finished = false;
+
+    public ChunkedOutputStream(OutputStream inner)
+    {
+        _inner = inner;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        _singleByte[0] = (byte)b;
+        write(_singleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if (_finished)
+        {
+            throw new IOException("Cannot write to a chunked stream after it has been finished");
+        }
+
+        // A zero-length chunk would signal end of stream, so never write one here
+        if (len == 0)
+        {
+            return;
+        }
+
+        // Hex chunk size, most significant digit first, followed by CRLF
+        int headerStart = _chunkHeader.length - 2;
+        _chunkHeader[headerStart] = 13;
+        _chunkHeader[headerStart + 1] = 10;
+        int remaining = len;
+        do
+        {
+            _chunkHeader[--headerStart] = HEX_DIGITS[remaining & 0xF];
+            remaining >>>= 4;
+        } while (remaining != 0);
+
+        _inner.write(_chunkHeader, headerStart, _chunkHeader.length - headerStart);
+        _inner.write(b, off, len);
+        _inner.write(CRLF);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        _inner.flush();
+    }
+
+    /// <summary>
+    /// Writes the terminating chunk and flushes, without closing the underlying stream
+    /// </summary>
+    public void finish() throws IOException
+    {
+        if (!_finished)
+        {
+            _finished = true;
+            _inner.write(LAST_CHUNK);
+            _inner.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        finish();
+    }
+}
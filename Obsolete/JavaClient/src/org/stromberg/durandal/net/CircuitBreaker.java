@@ -0,0 +1,197 @@
+package org.stromberg.durandal.net;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Stops a client from sending requests to a service that is failing most of them. While closed, the breaker
+ * tracks the outcomes of recent requests; once enough of them fail, it opens and every request fails immediately
+ * without touching the network. After a while it lets a single trial request through (half-open): if that
+ * succeeds the breaker closes again, otherwise it stays open for twice as long. Open periods are jittered so
+ * that a fleet of clients which tripped together don't all come back at the same moment.
+ * @author lostromb
+ */
+public class CircuitBreaker
+{
+    public enum State
+    {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+    public static final int DEFAULT_MINIMUM_REQUESTS = 10;
+    public static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+    public static final long DEFAULT_OPEN_DURATION_MS = 5000;
+    public static final long DEFAULT_MAX_OPEN_DURATION_MS = 60000;
+
+    private final String _name;
+    private final boolean[] _failures;
+    private final int _minimumRequests;
+    private final double _failureRateThreshold;
+    private final long _baseOpenDuration;
+    private final long _maxOpenDuration;
+
+    private State _state = State.CLOSED;
+    private int _nextOutcome = 0;
+    private int _outcomeCount = 0;
+    private int _failureCount = 0;
+    private long _openDuration;
+    private long _openUntil = 0;
+    private long _trialStartTime = 0;
+
+    public CircuitBreaker(String name)
+    {
+        this(name, DEFAULT_WINDOW_SIZE, DEFAULT_MINIMUM_REQUESTS, DEFAULT_FAILURE_RATE_THRESHOLD, DEFAULT_OPEN_DURATION_MS, DEFAULT_MAX_OPEN_DURATION_MS);
+    }
+
+    /// <summary>
+    /// The breaker opens once at least minimumRequests of the last windowSize requests have completed and
+    /// the fraction of them that failed reaches failureRateThreshold
+    /// </summary>
+    public CircuitBreaker(String name, int windowSize, int minimumRequests, double failureRateThreshold, long openDurationMs, long maxOpenDurationMs)
+    {
+        _name = name;
+        _failures = new boolean[windowSize];
+        _minimumRequests = Math.min(minimumRequests, windowSize);
+        _failureRateThreshold = failureRateThreshold;
+        _baseOpenDuration = openDurationMs;
+        _maxOpenDuration = maxOpenDurationMs;
+        _openDuration = openDurationMs;
+    }
+
+    /// <summary>
+    /// Returns true if a request may be sent now. While half-open, only one trial request is allowed at a time;
+    /// if its outcome is never reported, another is allowed once the open duration has passed again.
+    /// </summary>
+    public synchronized boolean allowRequest()
+    {
+        long now = System.currentTimeMillis();
+        switch (_state)
+        {
+            case OPEN:
+                if (now < _openUntil)
+                {
+                    return false;
+                }
+                _state = State.HALF_OPEN;
+                _trialStartTime = now;
+                return true;
+            case HALF_OPEN:
+                if (now - _trialStartTime < _openDuration)
+                {
+                    return false;
+                }
+                _trialStartTime = now;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    public synchronized void recordSuccess()
+    {
+        if (_state == State.HALF_OPEN)
+        {
+            System.out.println("Circuit breaker for " + _name + " closed");
+            close();
+        }
+        else if (_state == State.CLOSED)
+        {
+            recordOutcome(false);
+        }
+    }
+
+    public synchronized void recordFailure()
+    {
+        if (_state == State.HALF_OPEN)
+        {
+            // The trial failed, so the service needs more time than we gave it
+            _openDuration = Math.min(_openDuration * 2, _maxOpenDuration);
+            open(_openDuration);
+        }
+        else if (_state == State.CLOSED)
+        {
+            recordOutcome(true);
+            if (_outcomeCount >= _minimumRequests && _failureCount >= _failureRateThreshold * _outcomeCount)
+            {
+                open(_openDuration);
+            }
+        }
+    }
+
+    /// <summary>
+    /// Opens the breaker for at least the given time because the service itself asked us to back off
+    /// (with Retry-After, for example). This does not make later open periods any longer.
+    /// </summary>
+    public synchronized void holdOff(long delayMs)
+    {
+        long until = System.currentTimeMillis() + delayMs;
+        if (_state != State.OPEN || until > _openUntil)
+        {
+            _state = State.OPEN;
+            _openUntil = until;
+            System.err.println("Circuit breaker for " + _name + " holding off for " + delayMs + "ms at the server's request");
+        }
+    }
+
+    public synchronized State getState()
+    {
+        return _state;
+    }
+
+    /// <summary>
+    /// How long until the breaker will let a request through again, or 0 if it would now
+    /// </summary>
+    public synchronized long getRemainingOpenTime()
+    {
+        if (_state == State.OPEN)
+        {
+            return Math.max(0, _openUntil - System.currentTimeMillis());
+        }
+        if (_state == State.HALF_OPEN)
+        {
+            return Math.max(0, _trialStartTime + _openDuration - System.currentTimeMillis());
+        }
+        return 0;
+    }
+
+    private void recordOutcome(boolean failure)
+    {
+        if (_outcomeCount == _failures.length)
+        {
+            if (_failures[_nextOutcome])
+            {
+                _failureCount--;
+            }
+        }
+        else
+        {
+            _outcomeCount++;
+        }
+        _failures[_nextOutcome] = failure;
+        if (failure)
+        {
+            _failureCount++;
+        }
+        _nextOutcome = (_nextOutcome + 1) % _failures.length;
+    }
+
+    private void open(long duration)
+    {
+        // Anywhere from half to all of the nominal duration
+        long jitteredDuration = (duration / 2) + ThreadLocalRandom.current().nextLong((duration / 2) + 1);
+        _state = State.OPEN;
+        _openUntil = System.currentTimeMillis() + jitteredDuration;
+        System.err.println("Circuit breaker for " + _name + " opened for " + jitteredDuration + "ms");
+    }
+
+    private void close()
+    {
+        _state = State.CLOSED;
+        _openDuration = _baseOpenDuration;
+        _nextOutcome = 0;
+        _outcomeCount = 0;
+        _failureCount = 0;
+    }
+}
@@ -0,0 +1,29 @@
+package org.stromberg.durandal.net;
+
+import java.io.IOException;
+
+/**
+ * Thrown (or used to fail a future) when a request is refused without being sent because the client's
+ * circuit breaker is open
+ * @author lostromb
+ */
+public class CircuitBreakerOpenException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final long _retryDelay;
+
+    public CircuitBreakerOpenException(String serviceName, long retryDelayMs)
+    {
+        super("Not sending request to " + serviceName + " because its circuit breaker is open (retry in " + retryDelayMs + "ms)");
+        _retryDelay = retryDelayMs;
+    }
+
+    /// <summary>
+    /// How long until the breaker will let a request through again
+    /// </summary>
+    public long getRetryDelay()
+    {
+        return _retryDelay;
+    }
+}
@@ -0,0 +1,226 @@
+package org.stromberg.durandal.net;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Limits how many requests a server works on at once, so that under overload the excess is turned away
+ * quickly instead of every request getting slower. The limit is either fixed, or adaptive: it creeps up
+ * while recent latency stays near its long-run average, and is cut back multiplicatively (AIMD) once
+ * recent latency shows that requests have started to queue. Requests have a priority, and lower priorities may
+ * only use part of the limit, so they are the first to be shed as load rises. Each priority's latency is
+ * tracked separately, since cheap and expensive requests usually fall into different priorities.
+ * @author lostromb
+ */
+public class ConcurrencyLimiter
+{
+    /**
+     * How important a request is. Each priority may only be admitted while the number of requests
+     * in flight is below its share of the limit.
+     */
+    public enum Priority
+    {
+        CRITICAL(1.0),
+        NORMAL(0.9),
+        SHEDDABLE(0.5);
+
+        private final double _share;
+
+        private Priority(double share)
+        {
+            _share = share;
+        }
+    }
+
+    // Recent latency this many times the long-run average means requests are queueing somewhere
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double DECREASE_FACTOR = 0.9;
+    // Weights of the moving averages of latency: the short one follows roughly the last 10 requests of a priority,
+    // and the long one roughly the last 500, so that a permanent change in how long requests take is eventually learned
+    private static final double SHORT_WINDOW_WEIGHT = 0.1;
+    private static final double LONG_WINDOW_WEIGHT = 0.002;
+    // A priority's latency isn't used to adjust the limit until this many of its requests have finished
+    private static final int MIN_LATENCY_SAMPLES = 20;
+
+    private final boolean _adaptive;
+    private final int _minLimit;
+    private final int _maxLimit;
+
+    private double _limit;
+    private int _inFlight = 0;
+    private int _peakInFlight = 0;
+    private long _admitted = 0;
+    private long _shed = 0;
+    private final LatencyWindow[] _latency = new LatencyWindow[Priority.values().length];
+    private long _lastDecreaseTime = System.nanoTime();
+
+    private ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, boolean adaptive)
+    {
+        _minLimit = Math.max(1, minLimit);
+        _maxLimit = Math.max(_minLimit, maxLimit);
+        _limit = Math.min(_maxLimit, Math.max(_minLimit, initialLimit));
+        _adaptive = adaptive;
+        for (int c = 0; c < _latency.length; c++)
+        {
+            _latency[c] = new LatencyWindow();
+        }
+    }
+
+    /// <summary>
+    /// Creates a limiter that always allows up to the given number of requests at once
+    /// </summary>
+    public static ConcurrencyLimiter createFixed(int limit)
+    {
+        return new ConcurrencyLimiter(limit, limit, limit, false);
+    }
+
+    /// <summary>
+    /// Creates a limiter that starts at initialLimit and adapts to observed latency, staying between minLimit and maxLimit
+    /// </summary>
+    public static ConcurrencyLimiter createAdaptive(int initialLimit, int minLimit, int maxLimit)
+    {
+        return new ConcurrencyLimiter(initialLimit, minLimit, maxLimit, true);
+    }
+
+    /// <summary>
+    /// Takes a slot for a request of the given priority. Returns false if the request should be shed instead;
+    /// otherwise release() must be called once the request is finished.
+    /// </summary>
+    public synchronized boolean tryAcquire(Priority priority)
+    {
+        int priorityLimit = Math.max(1, (int)(_limit * priority._share));
+        if (_inFlight >= priorityLimit)
+        {
+            _shed++;
+            return false;
+        }
+
+        _inFlight++;
+        _admitted++;
+        _peakInFlight = Math.max(_peakInFlight, _inFlight);
+        return true;
+    }
+
+    /// <summary>
+    /// Gives back the slot of a request that never ran (it was dropped after being admitted), so it tells us nothing about load
+    /// </summary>
+    public synchronized void release()
+    {
+        _inFlight = Math.max(0, _inFlight - 1);
+    }
+
+    /// <summary>
+    /// Gives back a slot, along with how long the request took from admission to response. Latency is only compared
+    /// against earlier requests of the same priority. A negative latency means the request's latency isn't a sign of
+    /// this server's load (such as a request that waited on another server), so only the slot is given back.
+    /// </summary>
+    public synchronized void release(Priority priority, long latencyNanos)
+    {
+        int inFlight = _inFlight;
+        _inFlight = Math.max(0, _inFlight - 1);
+        if (!_adaptive || latencyNanos < 0)
+        {
+            return;
+        }
+
+        LatencyWindow window = _latency[priority.ordinal()];
+        window.add(latencyNanos);
+        if (window.Samples < MIN_LATENCY_SAMPLES)
+        {
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (window.ShortAverage > window.LongAverage * LATENCY_TOLERANCE)
+        {
+            // Back off at most once per round trip, since every request in flight right now saw the same congestion
+            if (now - _lastDecreaseTime > latencyNanos)
+            {
+                _limit = Math.max(_minLimit, _limit * DECREASE_FACTOR);
+                _lastDecreaseTime = now;
+            }
+        }
+        else if (inFlight >= _limit / 2)
+        {
+            // Only probe for more capacity while the current limit is actually being used; this adds about one per full window
+            _limit = Math.min(_maxLimit, _limit + (1.0 / _limit));
+        }
+    }
+
+    public synchronized int getLimit()
+    {
+        return (int)_limit;
+    }
+
+    public synchronized int getInFlight()
+    {
+        return _inFlight;
+    }
+
+    public synchronized Statistics getStatistics()
+    {
+        Statistics returnVal = new Statistics();
+        returnVal.Limit = (int)_limit;
+        returnVal.InFlight = _inFlight;
+        returnVal.PeakInFlight = _peakInFlight;
+        returnVal.Admitted = _admitted;
+        returnVal.Shed = _shed;
+        for (Priority priority : Priority.values())
+        {
+            LatencyWindow window = _latency[priority.ordinal()];
+            if (window.Samples > 0)
+            {
+                returnVal.BaselineLatencyMs.put(priority, window.LongAverage / 1000000);
+            }
+        }
+        return returnVal;
+    }
+
+    /**
+     * Short- and long-window moving averages of the latency of one priority's requests
+     */
+    private static class LatencyWindow
+    {
+        public double ShortAverage = 0;
+        public double LongAverage = 0;
+        public long Samples = 0;
+
+        public void add(long latencyNanos)
+        {
+            if (Samples++ == 0)
+            {
+                ShortAverage = latencyNanos;
+                LongAverage = latencyNanos;
+                return;
+            }
+            ShortAverage += (latencyNanos - ShortAverage) * SHORT_WINDOW_WEIGHT;
+            LongAverage += (latencyNanos - LongAverage) * LONG_WINDOW_WEIGHT;
+        }
+    }
+
+    /**
+     * A point-in-time snapshot of the limiter's state
+     */
+    public static class Statistics
+    {
+        public int Limit;
+        public int InFlight;
+        public int PeakInFlight;
+        public long Admitted;
+        public long Shed;
+        // The long-run average latency of each priority that has had requests
+        public Map<Priority, Double> BaselineLatencyMs = new EnumMap<Priority, Double>(Priority.class);
+
+        @Override
+        public String toString()
+        {
+            StringBuilder baselines = new StringBuilder();
+            for (Map.Entry<Priority, Double> baseline : BaselineLatencyMs.entrySet())
+            {
+                baselines.append(String.format(" baseline[%s]=%.1fms", baseline.getKey(), baseline.getValue()));
+            }
+            return String.format("limit=%d inFlight=%d peak=%d admitted=%d shed=%d",
+                    Limit, InFlight, PeakInFlight, Admitted, Shed) + baselines;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.stromberg.durandal.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Exposes exactly Content-Length bytes of an underlying stream as a message body,
+ * then reports end of stream without touching anything that follows.
+ * @author lostromb
+ */
+public class ContentLengthInputStream extends InputStream
+{
+    private final InputStream _inner;
+    private long _remaining;
+
+    public ContentLengthInputStream(InputStream inner, long contentLength)
+    {
+        _inner = inner;
+        _remaining = contentLength;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (_remaining <= 0)
+            return -1;
+        int returnVal = _inner.read();
+        if (returnVal < 0)
+            throw new EOFException("Stream ended before Content-Length bytes were read");
+        _remaining--;
+        return returnVal;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (_remaining <= 0)
+            return -1;
+        if (len == 0)
+            return 0;
+        int bytesRead = _inner.read(b, off, (int)Math.min(len, _remaining));
+        if (bytesRead < 0)
+            throw new EOFException("Stream ended before Content-Length bytes were read");
+        _remaining -= bytesRead;
+        return bytesRead;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        return (int)Math.min(_remaining, _inner.available());
+    }
+
+    /// <summary>
+    /// The number of body bytes that have not been read yet
+    /// </summary>
+    public long getRemaining()
+    {
+        return _remaining;
+    }
+}
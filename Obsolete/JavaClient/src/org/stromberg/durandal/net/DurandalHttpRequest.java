@@ -7,6 +7,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.SocketException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
@@ -19,34 +20,91 @@ public class DurandalHttpRequest
 {
     public String RequestMethod = "GET";
     public String RequestFile = "/";
-    public Map<String, String> RequestHeaders = new HashMap<String, String>();
+    public HttpHeaders RequestHeaders = new HttpHeaders();
     public byte[] PayloadData = new byte[0];
     public String ProtocolVersion = "HTTP/1.0";
     public Map<String, String> GetParameters = new HashMap<String, String>();
+    // Only set on requests that were read with body size limits. If the body was spilled to disk, PayloadData is null
+    // and the body is only available from here (or from getPayloadBuffer()).
+    public HttpPayload Body = null;
+    // The size of the request line and headers as they arrived, which server metrics count towards the bytes received
+    int HeaderLength = 0;
     
     public DurandalHttpRequest()
     {
     }
 
+    /// <summary>
+    /// Returns a request that can have its headers and body replaced without touching this one.
+    /// The body itself is shared, not copied, so neither request should modify it in place.
+    /// </summary>
+    public DurandalHttpRequest copy()
+    {
+        DurandalHttpRequest returnVal = new DurandalHttpRequest();
+        returnVal.RequestMethod = RequestMethod;
+        returnVal.RequestFile = RequestFile;
+        returnVal.ProtocolVersion = ProtocolVersion;
+        returnVal.GetParameters = GetParameters;
+        returnVal.PayloadData = PayloadData;
+        returnVal.Body = Body;
+        returnVal.HeaderLength = HeaderLength;
+        returnVal.RequestHeaders = new HttpHeaders(RequestHeaders.size());
+        for (int c = 0; c < RequestHeaders.size(); c++)
+        {
+            returnVal.RequestHeaders.add(RequestHeaders.getName(c), RequestHeaders.getValue(c));
+        }
+        return returnVal;
+    }
+
     public static DurandalHttpRequest readRequestFromStream(InputStream stream)
     {
         try
         {
-            DurandalHttpRequest returnVal = new DurandalHttpRequest();
+            return parseRequest(HttpHelpers.readHttpData(stream, true));
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
 
-            HttpData data = HttpHelpers.readHttpData(stream);
+    /// <summary>
+    /// Reads a request whose body is subject to size limits. Bodies larger than spillThreshold are kept in a
+    /// temp file and exposed through Body, and PayloadData is null; the caller must close Body when done.
+    /// If the body is larger than maxBodySize, PayloadTooLargeException is thrown (before the body is read,
+    /// if it has a Content-Length). Returns null for any other failure.
+    /// </summary>
+    public static DurandalHttpRequest readRequestFromStream(InputStream stream, long spillThreshold, long maxBodySize) throws PayloadTooLargeException
+    {
+        try
+        {
+            HttpData data = HttpHelpers.readHttpData(stream, spillThreshold, maxBodySize, true);
+            DurandalHttpRequest returnVal = parseRequest(data);
+            if (returnVal == null)
+            {
+                data.Body.close();
+            }
+            return returnVal;
+        }
+        catch (PayloadTooLargeException e)
+        {
+            throw e;
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
 
-            String[] allRequestLines = data.Headers.split("\r\n");
-            if (allRequestLines.length == 0)
-                return null;
+    static DurandalHttpRequest parseRequest(HttpData data)
+    {
+        try
+        {
+            DurandalHttpRequest returnVal = new DurandalHttpRequest();
 
             // Interpret the "GET /index.html HTTP/1.1" line
-            String commandLine = allRequestLines[0];
-            if (commandLine == null || commandLine.isEmpty())
-                return null;
-
-            String[] commandParts = commandLine.split(" ", 3);
-            if (commandParts.length != 3)
+            String[] commandParts = data.StartLine;
+            if (commandParts == null || commandParts[2] == null)
                 return null;
 
             returnVal.RequestMethod = commandParts[0];
@@ -76,21 +134,12 @@ public class DurandalHttpRequest
                 }
             }
 
-            // Parse the headers
-            for (int c = 1; c < allRequestLines.length; c++)
-            {
-                if (allRequestLines[c] == null || allRequestLines[c].isEmpty())
-                    continue;
-                String[] parts = allRequestLines[c].split(":");
-                if (parts.length != 2)
-                    continue;
-                returnVal.RequestHeaders.put(parts[0].trim(), parts[1].trim());
-            }
+            returnVal.RequestHeaders = data.Headers;
+            returnVal.HeaderLength = data.HeaderLength;
 
-            // Copy the binary payload data
-            returnVal.PayloadData = new byte[data.Payload.length];
-            if (returnVal.PayloadData.length > 0)
-                System.arraycopy(data.Payload, 0, returnVal.PayloadData, 0, returnVal.PayloadData.length);
+            // The payload buffer is already ours; no need to copy it
+            returnVal.PayloadData = data.Payload;
+            returnVal.Body = data.Body;
 
             return returnVal;
         }
@@ -98,24 +147,84 @@ public class DurandalHttpRequest
         {
             return null;
         }
-        catch (IOException e)
-        {
-            return null;
-        }
+    }
+
+    /// <summary>
+    /// The body as a buffer, regardless of whether it is held in PayloadData or was spilled to disk
+    /// </summary>
+    public ByteBuffer getPayloadBuffer()
+    {
+        return Body != null ? Body.getBuffer() : ByteBuffer.wrap(PayloadData);
     }
 
     public boolean writeToStream(OutputStream stream)
     {
-        try
+        boolean chunked = isChunked();
+        if (!chunked)
         {
-            StringBuilder headerBuilder = new StringBuilder();
-
             // Generate the content-length header
-            int contentLength = PayloadData.length;
+            long contentLength = PayloadData != null ? PayloadData.length : Body.getLength();
             if (contentLength != 0 || RequestMethod != "GET")
             {
-                RequestHeaders.put("Content-Length", Integer.toString(contentLength));
+                RequestHeaders.put("Content-Length", Long.toString(contentLength));
             }
+        }
+
+        if (!writeHeadersToStream(stream))
+        {
+            return false;
+        }
+
+        try
+        {
+            // Send the payload as well
+            if (chunked)
+            {
+                ChunkedOutputStream chunkedStream = new ChunkedOutputStream(stream);
+                writePayload(chunkedStream);
+                chunkedStream.finish();
+            }
+            else
+            {
+                writePayload(stream);
+            }
+            return true;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    private void writePayload(OutputStream stream) throws IOException
+    {
+        if (PayloadData == null)
+        {
+            Body.writeTo(stream);
+        }
+        else if (PayloadData.length > 0)
+        {
+            stream.write(PayloadData);
+        }
+    }
+
+    /// <summary>
+    /// Returns true if this request's body will be sent with "Transfer-Encoding: chunked"
+    /// </summary>
+    public boolean isChunked()
+    {
+        return "chunked".equalsIgnoreCase(RequestHeaders.get("Transfer-Encoding"));
+    }
+
+    /// <summary>
+    /// Writes only the request line and headers. This is used for streaming requests, where the
+    /// caller writes the (chunked) body itself afterwards.
+    /// </summary>
+    public boolean writeHeadersToStream(OutputStream stream)
+    {
+        try
+        {
+            StringBuilder headerBuilder = new StringBuilder();
 
             String finalRequestUri = RequestFile;
             int getParametersInUri = finalRequestUri.contains("?") ? 1 : 0;
@@ -134,18 +243,13 @@ public class DurandalHttpRequest
             }
 
             headerBuilder.append(String.format("%s %s %s\r\n", RequestMethod, finalRequestUri, ProtocolVersion));
-            for (String headerKey : RequestHeaders.keySet())
+            for (int c = 0; c < RequestHeaders.size(); c++)
             {
-                headerBuilder.append(String.format("%s: %s\r\n", headerKey, RequestHeaders.get(headerKey)));
+                headerBuilder.append(RequestHeaders.getName(c)).append(": ").append(RequestHeaders.getValue(c)).append("\r\n");
             }
             headerBuilder.append("\r\n");
             byte[] binary = headerBuilder.toString().getBytes(Charset.forName("UTF-8"));
             stream.write(binary);
-            // Send the payload as well
-            if (PayloadData.length > 0)
-            {
-                stream.write(PayloadData);
-            }
             return true;
         }
         catch (UnsupportedEncodingException e)
@@ -186,6 +290,6 @@ public class DurandalHttpRequest
     
     public Map<String, String> getFormDataFromPayload()
     {
-        return HttpHelpers.getFormDataFromPayload(RequestHeaders, PayloadData);
+        return HttpHelpers.getFormDataFromPayload(RequestHeaders, getPayloadBuffer());
     }
 }
@@ -6,8 +6,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
-import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -16,92 +17,243 @@ import java.util.Map;
  */
 public class DurandalHttpResponse
 {
+    private static final int STREAM_BUFFER_SIZE = 16384;
+
     public int ResponseCode = 0;
     public String ResponseMessage = "";
-    public Map<String, String> ResponseHeaders = new HashMap<String, String>();
+    public HttpHeaders ResponseHeaders = new HttpHeaders();
     public byte[] PayloadData = new byte[0];
-    public String ProtocolVersion = "HTTP/1.0";
+    // Only set on responses whose body is being streamed; see readResponseHeadersFromStream. A server sends it as it
+    // is read, with its Content-Length if it has one and in chunks otherwise, and closes it afterwards
+    public InputStream PayloadStream = null;
+    public String ProtocolVersion = "HTTP/1.1";
+    // Only set on responses that were read with body size limits; see readResponseFromStream(InputStream, long, long).
+    // If the body was spilled to disk, PayloadData is null and the body is only available from here.
+    public HttpPayload Body = null;
+    // When set, the body is sent straight from this file instead of PayloadData, and the region is closed once written
+    public FileRegion FileBody = null;
+    // Set by the server on its reply to a HEAD request: the headers describe the body, but the body itself isn't sent
+    boolean OmitBody = false;
     
     public DurandalHttpResponse()
     {
     }
 
     public static DurandalHttpResponse readResponseFromStream(InputStream stream)
+    {
+        return readResponseFromStream(stream, null);
+    }
+
+    /// <summary>
+    /// Reads a response to a request that was sent with the given method. The reply to a HEAD request is read
+    /// without a body, whatever its Content-Length says.
+    /// </summary>
+    public static DurandalHttpResponse readResponseFromStream(InputStream stream, String requestMethod)
     {
         try
         {
-            DurandalHttpResponse returnVal = new DurandalHttpResponse();
+            return parseResponse(HttpHelpers.readHttpData(stream, requestMethod));
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
 
-            HttpData data = HttpHelpers.readHttpData(stream);
+    /// <summary>
+    /// Reads a response whose body is subject to size limits. Bodies larger than spillThreshold are kept in a
+    /// temp file and exposed through Body, and PayloadData is null; the caller must close Body when done.
+    /// If the body is larger than maxBodySize, PayloadTooLargeException is thrown (before the body is read,
+    /// if it has a Content-Length). Returns null for any other failure.
+    /// </summary>
+    public static DurandalHttpResponse readResponseFromStream(InputStream stream, long spillThreshold, long maxBodySize) throws PayloadTooLargeException
+    {
+        return readResponseFromStream(stream, null, spillThreshold, maxBodySize);
+    }
 
-            String[] allRequestLines = data.Headers.split("\r\n");
-            if (allRequestLines.length == 0)
-                return null;
+    /// <summary>
+    /// Reads a response with limits on its body, as above, to a request that was sent with the given method
+    /// </summary>
+    public static DurandalHttpResponse readResponseFromStream(InputStream stream, String requestMethod, long spillThreshold, long maxBodySize) throws PayloadTooLargeException
+    {
+        try
+        {
+            HttpData data = HttpHelpers.readHttpData(stream, requestMethod, spillThreshold, maxBodySize);
+            DurandalHttpResponse returnVal = parseResponse(data);
+            if (returnVal == null)
+            {
+                data.Body.close();
+            }
+            return returnVal;
+        }
+        catch (PayloadTooLargeException e)
+        {
+            throw e;
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
 
-            // Interpret the "GET /index.html HTTP/1.1" line
-            String commandLine = allRequestLines[0];
-            if (commandLine == null || commandLine.isEmpty())
-                return null;
+    /// <summary>
+    /// Reads only the status line and headers of a response. The body is not read; instead it is
+    /// exposed through PayloadStream, which yields exactly the bytes of the body as they arrive.
+    /// PayloadData is left empty.
+    /// </summary>
+    public static DurandalHttpResponse readResponseHeadersFromStream(InputStream stream)
+    {
+        return readResponseHeadersFromStream(stream, null);
+    }
 
-            String[] commandParts = commandLine.split(" ", 3);
-            if (commandParts.length != 3)
-                return null;
+    /// <summary>
+    /// Reads the status line and headers of a response to a request that was sent with the given method.
+    /// For a HEAD request, PayloadStream is empty.
+    /// </summary>
+    public static DurandalHttpResponse readResponseHeadersFromStream(InputStream stream, String requestMethod)
+    {
+        try
+        {
+            return parseResponse(HttpHelpers.readHttpHeaders(stream, requestMethod));
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
 
-            returnVal.ProtocolVersion = commandParts[0];
-            returnVal.ResponseCode = Integer.parseInt(commandParts[1]);
-            returnVal.ResponseMessage = commandParts[2];
+    /// <summary>
+    /// Builds a response out of a message that has already been read and parsed
+    /// </summary>
+    static DurandalHttpResponse parseResponse(HttpData data)
+    {
+        try
+        {
+            // Interpret the "HTTP/1.1 200 OK" line
+            if (data.StartLine == null || data.StartLine[2] == null)
+                return null;
 
-            // Parse the headers
-            for (int c = 1; c < allRequestLines.length; c++)
-            {
-                if (allRequestLines[c] == null || allRequestLines[c].isEmpty())
-                    continue;
-                String[] parts = allRequestLines[c].split(":");
-                if (parts.length != 2)
-                    continue;
-                returnVal.ResponseHeaders.put(parts[0].trim(), parts[1].trim());
-            }
+            DurandalHttpResponse returnVal = new DurandalHttpResponse();
+            returnVal.ProtocolVersion = data.StartLine[0];
+            returnVal.ResponseCode = Integer.parseInt(data.StartLine[1]);
+            returnVal.ResponseMessage = data.StartLine[2];
+            returnVal.ResponseHeaders = data.Headers;
 
-            // Copy the binary payload data
-            returnVal.PayloadData = new byte[data.Payload.length];
-            if (returnVal.PayloadData.length > 0)
-                System.arraycopy(data.Payload, 0, returnVal.PayloadData, 0, returnVal.PayloadData.length);
+            // The payload buffer is already ours; no need to copy it
+            returnVal.PayloadData = data.Payload;
+            returnVal.PayloadStream = data.PayloadStream;
+            returnVal.Body = data.Body;
 
             return returnVal;
         }
-        catch (UnsupportedEncodingException e)
+        catch (NumberFormatException e)
         {
             return null;
         }
-        catch (IOException e)
+    }
+
+    /// <summary>
+    /// For responses that were read with readResponseHeadersFromStream, returns the body as a channel
+    /// </summary>
+    public ReadableByteChannel getPayloadChannel()
+    {
+        return PayloadStream == null ? null : Channels.newChannel(PayloadStream);
+    }
+
+    /// <summary>
+    /// For responses that were read with readResponseHeadersFromStream, reads the rest of the
+    /// body into PayloadData and closes the stream.
+    /// </summary>
+    public void bufferPayload() throws IOException
+    {
+        if (PayloadStream != null)
         {
-            return null;
+            try
+            {
+                PayloadData = HttpHelpers.readFully(PayloadStream);
+            }
+            finally
+            {
+                PayloadStream.close();
+                PayloadStream = null;
+            }
         }
     }
 
-    public boolean writeToStream(OutputStream stream)
+    /// <summary>
+    /// If the body was sent with a gzip or deflate Content-Encoding, decodes it and removes the header.
+    /// A streamed body is wrapped so that it is inflated as it is read. Returns false if the body is corrupt.
+    /// </summary>
+    public boolean decodeContent()
     {
-        StringBuilder headerBuilder = new StringBuilder();
+        String encoding = ResponseHeaders.get("Content-Encoding");
+        if (!HttpCompression.isSupported(encoding))
+        {
+            return true;
+        }
 
-        // Generate the content-length header
-        int contentLength = PayloadData.length;
-        ResponseHeaders.put("Content-Length", Integer.toString(contentLength));
+        try
+        {
+            if (PayloadStream != null)
+            {
+                PayloadStream = HttpCompression.decompress(PayloadStream, encoding);
+                // The decoded length isn't known until it has all been read
+                ResponseHeaders.remove("Content-Length");
+            }
+            else if (PayloadData.length > 0)
+            {
+                PayloadData = HttpCompression.decompress(PayloadData, encoding);
+                ResponseHeaders.put("Content-Length", Integer.toString(PayloadData.length));
+            }
 
-        headerBuilder.append(String.format("%s %s %s\r\n", ProtocolVersion, ResponseCode, ResponseMessage));
-        for (String headerKey : ResponseHeaders.keySet())
+            ResponseHeaders.remove("Content-Encoding");
+            return true;
+        }
+        catch (IOException e)
         {
-            headerBuilder.append(String.format("%s: %s\r\n", headerKey, ResponseHeaders.get(headerKey)));
+            System.err.println("Could not decode " + encoding + " response body: " + e.getMessage());
+            return false;
         }
-        headerBuilder.append("\r\n");
+    }
+
+    public boolean writeToStream(OutputStream stream)
+    {
+        return writeToStream(stream, true);
+    }
+
+    /// <summary>
+    /// Writes the response, and closes the stream afterwards only if closeWhenDone is set. A server that keeps the
+    /// connection open for more requests passes false; the stream is then flushed instead.
+    /// </summary>
+    boolean writeToStream(OutputStream stream, boolean closeWhenDone)
+    {
         try
         {
-            byte[] binary = headerBuilder.toString().getBytes(Charset.forName("UTF-8"));
-            stream.write(binary);
+            stream.write(serializeHeaders());
             // Send the payload as well
-            if (PayloadData.length > 0)
+            if (OmitBody)
+            {
+            }
+            else if (FileBody != null)
+            {
+                FileBody.transferAll(Channels.newChannel(stream));
+            }
+            else if (PayloadStream != null)
+            {
+                writePayloadStream(stream);
+            }
+            else if (PayloadData == null)
+            {
+                Body.writeTo(stream);
+            }
+            else if (PayloadData.length > 0)
             {
                 stream.write(PayloadData);
             }
+            if (!closeWhenDone)
+            {
+                stream.flush();
+            }
         }
         catch (IOException e)
         {
@@ -110,14 +262,95 @@ public class DurandalHttpResponse
         }
         finally
         {
-            try
+            if (FileBody != null)
+            {
+                FileBody.close();
+            }
+            if (PayloadStream != null)
+            {
+                try
+                {
+                    PayloadStream.close();
+                }
+                catch (IOException e2) {}
+            }
+            if (closeWhenDone)
             {
-                stream.close();
+                try
+                {
+                    stream.close();
+                }
+                catch (IOException e2) {}
             }
-            catch (IOException e2) {}
         }
         return true;
     }
+
+    private void writePayloadStream(OutputStream stream) throws IOException
+    {
+        OutputStream target = isChunked() ? new ChunkedOutputStream(stream) : stream;
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        int read;
+        while ((read = PayloadStream.read(buffer)) > 0)
+        {
+            target.write(buffer, 0, read);
+            // Pass on what we have before waiting for more, so the client isn't held up by our buffering
+            if (PayloadStream.available() == 0)
+            {
+                target.flush();
+            }
+        }
+        if (target != stream)
+        {
+            // Writes the last chunk, but leaves the connection open
+            target.close();
+        }
+    }
+
+    /// <summary>
+    /// True if the body is sent with chunked transfer encoding
+    /// </summary>
+    boolean isChunked()
+    {
+        return "chunked".equalsIgnoreCase(ResponseHeaders.get("Transfer-Encoding"));
+    }
+
+    /// <summary>
+    /// Returns the status line and headers, including the Content-Length of the body, as they go on the wire
+    /// </summary>
+    byte[] serializeHeaders()
+    {
+        StringBuilder headerBuilder = new StringBuilder();
+
+        // Generate the content-length header. 304 and 204 responses never have a body, and for a 304 the header would
+        // describe the body of the resource that wasn't sent, so it's left out of both
+        if (ResponseCode == 304 || ResponseCode == 204)
+        {
+            ResponseHeaders.remove("Content-Length");
+        }
+        else if (PayloadStream != null)
+        {
+            // A streamed body keeps the length it was declared with. Without one, it is chunked; an HTTP/1.0 client
+            // can't read chunks, so for those the body just runs until the connection is closed (see HttpServer.applyKeepAlive)
+            if (!ResponseHeaders.containsKey("Content-Length") && !"HTTP/1.0".equalsIgnoreCase(ProtocolVersion))
+            {
+                ResponseHeaders.put("Transfer-Encoding", "chunked");
+            }
+        }
+        else
+        {
+            long contentLength = FileBody != null ? FileBody.getLength() : PayloadData != null ? PayloadData.length : Body.getLength();
+            ResponseHeaders.put("Content-Length", Long.toString(contentLength));
+        }
+
+        headerBuilder.append(String.format("%s %s %s\r\n", ProtocolVersion, ResponseCode, ResponseMessage));
+        for (int c = 0; c < ResponseHeaders.size(); c++)
+        {
+            headerBuilder.append(ResponseHeaders.getName(c)).append(": ").append(ResponseHeaders.getValue(c)).append("\r\n");
+        }
+        headerBuilder.append("\r\n");
+        return headerBuilder.toString().getBytes(Charset.forName("UTF-8"));
+    }
     
     public void setFormDataPayload(Map<String, String> postParameters)
     {
@@ -146,8 +379,7 @@ public class DurandalHttpResponse
         DurandalHttpResponse returnVal = new DurandalHttpResponse();
         returnVal.ResponseCode = 200;
         returnVal.ResponseMessage = "OK";
-        returnVal.ProtocolVersion = "HTTP/1.0";
-        returnVal.ResponseHeaders.put("Connection", "close");
+        returnVal.ProtocolVersion = "HTTP/1.1";
         return returnVal;
     }
 
@@ -156,8 +388,7 @@ public class DurandalHttpResponse
         DurandalHttpResponse returnVal = new DurandalHttpResponse();
         returnVal.ResponseCode = 404;
         returnVal.ResponseMessage = "Not Found";
-        returnVal.ProtocolVersion = "HTTP/1.0";
-        returnVal.ResponseHeaders.put("Connection", "close");
+        returnVal.ProtocolVersion = "HTTP/1.1";
         return returnVal;
     }
 
@@ -166,8 +397,19 @@ public class DurandalHttpResponse
         DurandalHttpResponse returnVal = new DurandalHttpResponse();
         returnVal.ResponseCode = 500;
         returnVal.ResponseMessage = "A server error occurred";
-        returnVal.ProtocolVersion = "HTTP/1.0";
-        returnVal.ResponseHeaders.put("Connection", "close");
+        returnVal.ProtocolVersion = "HTTP/1.1";
+        return returnVal;
+    }
+
+    /// <summary>
+    /// Tells the client that a server we forwarded its request to gave no usable response
+    /// </summary>
+    public static DurandalHttpResponse BadGatewayResponse()
+    {
+        DurandalHttpResponse returnVal = new DurandalHttpResponse();
+        returnVal.ResponseCode = 502;
+        returnVal.ResponseMessage = "Bad Gateway";
+        returnVal.ProtocolVersion = "HTTP/1.1";
         return returnVal;
     }
 
@@ -177,7 +419,44 @@ public class DurandalHttpResponse
         returnVal.ResponseCode = 303;
         returnVal.ResponseMessage = "See Other";
         returnVal.ProtocolVersion = "HTTP/1.1";
+        return returnVal;
+    }
+
+    /// <summary>
+    /// Tells the client that its cached copy is still current. The validators and caching headers of the full response
+    /// it stands in for (ETag, Last-Modified, Cache-Control and so on) should be copied onto it.
+    /// </summary>
+    public static DurandalHttpResponse NotModifiedResponse()
+    {
+        DurandalHttpResponse returnVal = new DurandalHttpResponse();
+        returnVal.ResponseCode = 304;
+        returnVal.ResponseMessage = "Not Modified";
+        returnVal.ProtocolVersion = "HTTP/1.1";
+        return returnVal;
+    }
+
+    public static DurandalHttpResponse PayloadTooLargeResponse()
+    {
+        DurandalHttpResponse returnVal = new DurandalHttpResponse();
+        returnVal.ResponseCode = 413;
+        returnVal.ResponseMessage = "Payload Too Large";
+        returnVal.ProtocolVersion = "HTTP/1.1";
+        // The oversized body was never read, so the connection can't be used for another request
+        returnVal.ResponseHeaders.put("Connection", "close");
+        return returnVal;
+    }
+
+    /// <summary>
+    /// Tells the client that the server is too busy right now, and how many seconds to wait before trying again
+    /// </summary>
+    public static DurandalHttpResponse ServiceUnavailableResponse(int retryAfterSeconds)
+    {
+        DurandalHttpResponse returnVal = new DurandalHttpResponse();
+        returnVal.ResponseCode = 503;
+        returnVal.ResponseMessage = "Service Unavailable";
+        returnVal.ProtocolVersion = "HTTP/1.1";
         returnVal.ResponseHeaders.put("Connection", "close");
+        returnVal.ResponseHeaders.put("Retry-After", Integer.toString(retryAfterSeconds));
         return returnVal;
     }
 }
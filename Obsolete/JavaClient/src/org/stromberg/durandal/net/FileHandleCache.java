@@ -0,0 +1,212 @@
+package org.stromberg.durandal.net;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps recently served files open, so that serving a popular file again costs neither an open() nor a close().
+ * Handles are shared by every request for the same file at once, which is safe because they are only ever read
+ * with positional transfers. Each handle is reference counted: evicting it from the cache only closes it once
+ * the last response using it has finished. A cached handle re-checks the file's size and modification time at
+ * most once a second, and a file that has changed is reopened.
+ * @author lostromb
+ */
+public class FileHandleCache
+{
+    public static final int DEFAULT_MAX_OPEN_FILES = 256;
+    private static final long REVALIDATE_INTERVAL_MS = 1000;
+
+    private final int _maxOpenFiles;
+    private final Map<Path, Handle> _handles = new ConcurrentHashMap<Path, Handle>();
+
+    public FileHandleCache(int maxOpenFiles)
+    {
+        _maxOpenFiles = Math.max(1, maxOpenFiles);
+    }
+
+    /**
+     * An open file, along with the size and modification time it had when it was opened
+     */
+    public static class Handle
+    {
+        private final Path _path;
+        private final FileChannel _channel;
+        private final long _size;
+        private final long _lastModified;
+        // One reference for the cache itself, plus one per user
+        private final AtomicInteger _references = new AtomicInteger(1);
+        private volatile long _lastUsed;
+        private volatile long _lastValidated;
+
+        private Handle(Path path, FileChannel channel, BasicFileAttributes attributes)
+        {
+            _path = path;
+            _channel = channel;
+            _size = attributes.size();
+            _lastModified = attributes.lastModifiedTime().toMillis();
+            _lastUsed = System.currentTimeMillis();
+            _lastValidated = _lastUsed;
+        }
+
+        public FileChannel getChannel()
+        {
+            return _channel;
+        }
+
+        public long getSize()
+        {
+            return _size;
+        }
+
+        public long getLastModified()
+        {
+            return _lastModified;
+        }
+
+        /// <summary>
+        /// Takes a reference, unless the handle has already been closed
+        /// </summary>
+        private boolean retain()
+        {
+            int references;
+            do
+            {
+                references = _references.get();
+                if (references <= 0)
+                {
+                    return false;
+                }
+            }
+            while (!_references.compareAndSet(references, references + 1));
+            return true;
+        }
+
+        /// <summary>
+        /// Gives back a reference taken by FileHandleCache.open(). The file is closed once nobody is using it.
+        /// </summary>
+        public void release()
+        {
+            if (_references.decrementAndGet() == 0)
+            {
+                try
+                {
+                    _channel.close();
+                }
+                catch (IOException e) {}
+            }
+        }
+    }
+
+    /// <summary>
+    /// Returns an open handle to a regular file, or null if it doesn't exist or can't be read.
+    /// The caller must release() the handle when done with it.
+    /// </summary>
+    public Handle open(Path path)
+    {
+        Handle cached = _handles.get(path);
+        if (cached != null)
+        {
+            long now = System.currentTimeMillis();
+            if (now - cached._lastValidated < REVALIDATE_INTERVAL_MS || isUnchanged(cached))
+            {
+                cached._lastValidated = Math.max(cached._lastValidated, now);
+                if (cached.retain())
+                {
+                    cached._lastUsed = now;
+                    return cached;
+                }
+            }
+            evict(cached);
+        }
+
+        Handle returnVal;
+        try
+        {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile())
+            {
+                return null;
+            }
+            returnVal = new Handle(path, FileChannel.open(path, StandardOpenOption.READ), attributes);
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+
+        // One reference for the caller; the cache keeps the one it was created with
+        returnVal.retain();
+        Handle existing = _handles.putIfAbsent(path, returnVal);
+        if (existing != null)
+        {
+            // Another thread opened it at the same time; keep theirs cached, and ours just for this caller
+            returnVal.release();
+        }
+        else if (_handles.size() > _maxOpenFiles)
+        {
+            evictLeastRecentlyUsed();
+        }
+        return returnVal;
+    }
+
+    public int getOpenFileCount()
+    {
+        return _handles.size();
+    }
+
+    /// <summary>
+    /// Closes every cached handle that isn't in use, and the rest as soon as they are released
+    /// </summary>
+    public void clear()
+    {
+        for (Handle handle : _handles.values())
+        {
+            evict(handle);
+        }
+    }
+
+    private static boolean isUnchanged(Handle handle)
+    {
+        try
+        {
+            BasicFileAttributes attributes = Files.readAttributes(handle._path, BasicFileAttributes.class);
+            return attributes.size() == handle._size && attributes.lastModifiedTime().toMillis() == handle._lastModified;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    private void evict(Handle handle)
+    {
+        // Only the thread that actually removes it gives back the cache's reference
+        if (_handles.remove(handle._path, handle))
+        {
+            handle.release();
+        }
+    }
+
+    private void evictLeastRecentlyUsed()
+    {
+        Handle oldest = null;
+        for (Handle handle : _handles.values())
+        {
+            if (oldest == null || handle._lastUsed < oldest._lastUsed)
+            {
+                oldest = handle;
+            }
+        }
+        if (oldest != null)
+        {
+            evict(oldest);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.stromberg.durandal.net;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A response body that is a byte range of a file, sent with FileChannel.transferTo rather than being read into
+ * memory first. When the target is a socket channel this becomes sendfile(), and the file's bytes go from the OS
+ * page cache to the socket without ever passing through the Java heap. The file handle comes from a
+ * FileHandleCache, and is given back when the region is closed.
+ * @author lostromb
+ */
+public class FileRegion implements Closeable
+{
+    private final FileHandleCache.Handle _handle;
+    private final long _offset;
+    private final long _length;
+    private long _transferred = 0;
+    private boolean _closed = false;
+
+    /// <summary>
+    /// Takes ownership of a handle returned by FileHandleCache.open(); it is released when the region is closed
+    /// </summary>
+    public FileRegion(FileHandleCache.Handle handle, long offset, long length)
+    {
+        _handle = handle;
+        _offset = offset;
+        _length = length;
+    }
+
+    public long getOffset()
+    {
+        return _offset;
+    }
+
+    public long getLength()
+    {
+        return _length;
+    }
+
+    public long getRemaining()
+    {
+        return _length - _transferred;
+    }
+
+    /// <summary>
+    /// Sends as much of the rest of the region as the target will take right now, and returns how many bytes that was.
+    /// A non-blocking target may take nothing at all, if its buffer is full.
+    /// </summary>
+    public long transferTo(WritableByteChannel target) throws IOException
+    {
+        long position = _offset + _transferred;
+        long returnVal = _handle.getChannel().transferTo(position, _length - _transferred, target);
+        if (returnVal == 0 && _transferred < _length && _handle.getChannel().size() <= position)
+        {
+            // transferTo() just returns 0 at the end of the file, which would otherwise leave us waiting forever
+            throw new EOFException("File was truncated while it was being sent");
+        }
+        _transferred += returnVal;
+        return returnVal;
+    }
+
+    /// <summary>
+    /// Sends the whole rest of the region to a blocking target
+    /// </summary>
+    public void transferAll(WritableByteChannel target) throws IOException
+    {
+        while (getRemaining() > 0)
+        {
+            transferTo(target);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if (!_closed)
+        {
+            _closed = true;
+            _handle.release();
+        }
+    }
+}
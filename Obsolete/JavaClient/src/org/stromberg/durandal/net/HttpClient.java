@@ -1,56 +1,224 @@
 package org.stromberg.durandal.net;
 
 import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.net.Inet4Address;
-import java.net.InetAddress;
-import java.net.MalformedURLException;
-import java.net.Socket;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.net.URLConnection;
-import javax.net.SocketFactory;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Base class for a simple HTTP client
+ * Base class for a simple HTTP client. Blocking requests are sent as HTTP/1.1 over persistent
+ * connections that are borrowed from an HttpConnectionPool; asynchronous requests go through
+ * a non-blocking NioHttpTransport instead. A client can be given several interchangeable
+ * servers, in which case a LoadBalancer picks one for each request.
  * @author lostromb
  */
 public class HttpClient
 {
-    private URL _remoteHost;
+    private final LoadBalancer _loadBalancer;
+    private final String _hostHeader;
+    private HttpConnectionPool _connectionPool;
+    private NioHttpTransport _asyncTransport = NioHttpTransport.getSharedTransport();
+
+    // Content coding settings. Unless an encoding is forced, request bodies are only compressed once
+    // the server has told us (with an Accept-Encoding response header) that it can decode them.
+    private boolean _acceptCompressedResponses = true;
+    private String _requestContentEncoding = null;
+    private volatile String _negotiatedRequestEncoding = null;
+    private int _compressionThreshold = HttpCompression.DEFAULT_COMPRESSION_THRESHOLD;
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+
+    // Hedging waits this long before its first few requests, until there is enough history to estimate the p95 latency
+    public static final int DEFAULT_HEDGE_DELAY_MS = 200;
+    private static final int MIN_HEDGE_DELAY_MS = 10;
+    private static final int MIN_LATENCY_SAMPLES = 20;
+    private static ScheduledExecutorService _hedgeScheduler = null;
+
+    private int _connectTimeout = DEFAULT_CONNECT_TIMEOUT_MS;
+    private volatile boolean _hedgingEnabled = false;
+    private final LatencyTracker _latencyTracker = new LatencyTracker(256);
+    private CircuitBreaker _circuitBreaker;
 
     public HttpClient(URL url)
     {
-        _remoteHost = url;
+        this(url, HttpConnectionPool.getSharedPool());
+    }
+
+    public HttpClient(URL url, HttpConnectionPool connectionPool)
+    {
+        this(new LoadBalancer(new HttpEndpoint(url.getHost(), url.getPort() < 0 ? url.getDefaultPort() : url.getPort())), connectionPool);
     }
 
     public HttpClient(String remoteHost, int remotePort)
     {
-        try
-        {
-            _remoteHost = new URL("http", remoteHost, remotePort, "/");
-        }
-        catch (MalformedURLException e)
-        {
-            
-        }
+        this(remoteHost, remotePort, HttpConnectionPool.getSharedPool());
+    }
+
+    public HttpClient(String remoteHost, int remotePort, HttpConnectionPool connectionPool)
+    {
+        this(new LoadBalancer(new HttpEndpoint(remoteHost, remotePort)), connectionPool);
+    }
+
+    /// <summary>
+    /// Creates a client that balances its requests over several replicas of the same service, and
+    /// health-checks them in the background. The first endpoint is the one named in Host headers.
+    /// </summary>
+    public HttpClient(List<HttpEndpoint> endpoints, HttpConnectionPool connectionPool)
+    {
+        this(new LoadBalancer(endpoints), connectionPool);
+        _loadBalancer.startHealthChecks(LoadBalancer.DEFAULT_HEALTH_CHECK_INTERVAL_MS);
+    }
+
+    public HttpClient(LoadBalancer loadBalancer, HttpConnectionPool connectionPool)
+    {
+        _loadBalancer = loadBalancer;
+        _connectionPool = connectionPool;
+        _hostHeader = loadBalancer.getPrimaryEndpoint().getPoolKey();
+        _circuitBreaker = new CircuitBreaker(_hostHeader);
     }
 
     /// <summary>
     /// The http://0.0.0.0:port form of the address used to connect to the server
+    /// (a comma-separated list of them if there are several servers)
     /// </summary>
     public String getServerAddress()
     {
-        return _remoteHost.toString();
+        StringBuilder returnVal = new StringBuilder();
+        for (HttpEndpoint endpoint : _loadBalancer.getEndpoints())
+        {
+            if (returnVal.length() > 0)
+            {
+                returnVal.append(", ");
+            }
+            returnVal.append("http://").append(endpoint.getPoolKey()).append("/");
+        }
+        return returnVal.toString();
     }
 
-    public byte[] sendRequest(byte[] payload, String targetFile, int readTimeout)
+    public LoadBalancer getLoadBalancer()
+    {
+        return _loadBalancer;
+    }
+
+    public HttpConnectionPool getConnectionPool()
+    {
+        return _connectionPool;
+    }
+
+    public NioHttpTransport getAsyncTransport()
+    {
+        return _asyncTransport;
+    }
+
+    /// <summary>
+    /// Changes the transport that is used by sendRequestAsync (the shared transport is used by default)
+    /// </summary>
+    public void setAsyncTransport(NioHttpTransport transport)
+    {
+        _asyncTransport = transport;
+    }
+
+    /// <summary>
+    /// Controls whether we advertise "Accept-Encoding: gzip, deflate" and transparently decode compressed responses (on by default)
+    /// </summary>
+    public void setAcceptCompressedResponses(boolean accept)
+    {
+        _acceptCompressedResponses = accept;
+    }
+
+    /// <summary>
+    /// Sets the coding for request bodies: "gzip" or "deflate" to always compress, "identity" to never compress,
+    /// or null (the default) to compress only with whatever coding the server has advertised it accepts.
+    /// </summary>
+    public void setRequestContentEncoding(String encoding)
+    {
+        _requestContentEncoding = encoding;
+    }
+
+    /// <summary>
+    /// Request bodies smaller than this many bytes are never compressed
+    /// </summary>
+    public void setCompressionThreshold(int thresholdBytes)
+    {
+        _compressionThreshold = thresholdBytes;
+    }
+
+    /// <summary>
+    /// The longest we wait for a new TCP connection to be established (0 to wait indefinitely). A request's own
+    /// deadline shortens this further.
+    /// </summary>
+    public void setConnectTimeout(int connectTimeoutMs)
+    {
+        _connectTimeout = connectTimeoutMs;
+    }
+
+    /// <summary>
+    /// Enables hedging for idempotent requests sent with sendRequestHedged (off by default, in which case they are sent once)
+    /// </summary>
+    public void setHedgingEnabled(boolean enabled)
+    {
+        _hedgingEnabled = enabled;
+    }
+
+    public boolean isHedgingEnabled()
+    {
+        return _hedgingEnabled;
+    }
+
+    public CircuitBreaker getCircuitBreaker()
+    {
+        return _circuitBreaker;
+    }
+
+    /// <summary>
+    /// Replaces the circuit breaker that guards every request from this client, or removes it if null
+    /// </summary>
+    public void setCircuitBreaker(CircuitBreaker breaker)
+    {
+        _circuitBreaker = breaker;
+    }
+
+    /// <summary>
+    /// Latencies of recent successful requests through this client
+    /// </summary>
+    public LatencyTracker getLatencyTracker()
+    {
+        return _latencyTracker;
+    }
+
+    private void recordLatency(long startTime)
+    {
+        _latencyTracker.record(System.currentTimeMillis() - startTime);
+    }
+
+    protected static DurandalHttpRequest createRequest(byte[] payload, String targetFile)
     {
         DurandalHttpRequest request = new DurandalHttpRequest();
         request.RequestMethod = "GET";
         request.RequestFile = targetFile;
-        request.ProtocolVersion = "HTTP/1.0";
+        request.ProtocolVersion = "HTTP/1.1";
         request.PayloadData = payload;
-        DurandalHttpResponse response = sendRequest(request, readTimeout);
+        return request;
+    }
+
+    public byte[] sendRequest(byte[] payload, String targetFile, int readTimeout)
+    {
+        DurandalHttpResponse response = sendRequest(createRequest(payload, targetFile), readTimeout);
         if (response != null && response.ResponseCode == 200)
         {
             return response.PayloadData;
@@ -61,44 +229,877 @@ public class HttpClient
 
     public DurandalHttpResponse sendRequest(DurandalHttpRequest request, int readTimeout)
     {
-        Socket remoteSocket = null;
-        try
+        return sendRequest(request, readTimeout, false);
+    }
+
+    /// <summary>
+    /// Sends a request and returns as soon as the response headers have arrived. The body is exposed
+    /// through the response's PayloadStream (or getPayloadChannel()), which yields data as it arrives from
+    /// the network. The caller must close PayloadStream when done; the connection goes back to the pool
+    /// only if the body was read to the end.
+    /// </summary>
+    public DurandalHttpResponse sendRequestStreaming(DurandalHttpRequest request, int readTimeout)
+    {
+        return sendRequest(request, readTimeout, true);
+    }
+
+    /// <summary>
+    /// Like sendRequestStreaming, but a compressed body is passed through as it is, Content-Encoding and all,
+    /// rather than being decoded. This is what a proxy wants, since its own client will decode it.
+    /// </summary>
+    public DurandalHttpResponse sendRequestStreamingEncoded(DurandalHttpRequest request, int readTimeout)
+    {
+        prepareRequest(request);
+        return sendRequest(request, null, null, readTimeout, true);
+    }
+
+    /// <summary>
+    /// Creates a template for a request that will be sent repeatedly through this client with different bodies.
+    /// The URI must already be URL-encoded.
+    /// </summary>
+    public RequestTemplate createRequestTemplate(String requestMethod, String requestUri)
+    {
+        HttpHeaders headers = new HttpHeaders();
+        headers.put("Host", _hostHeader);
+        headers.put("Connection", "keep-alive");
+        return new RequestTemplate(requestMethod, requestUri, headers);
+    }
+
+    /// <summary>
+    /// Sends a request that was pre-encoded as a template, with the given body (which may be null).
+    /// Apart from the response, this allocates nothing per request.
+    /// </summary>
+    public DurandalHttpResponse sendRequest(RequestTemplate template, byte[] payload, int readTimeout)
+    {
+        return decodeResponse(sendRequest(null, template, payload, readTimeout, false));
+    }
+
+    private DurandalHttpResponse sendRequest(DurandalHttpRequest request, int readTimeout, boolean streamResponse)
+    {
+        prepareRequest(request);
+        DurandalHttpRequest wireRequest = compressRequestBody(request);
+        DurandalHttpResponse response = sendRequest(wireRequest, null, null, readTimeout, streamResponse);
+        if (isCompressionRejected(response, request, wireRequest))
         {
-            InetAddress remoteAddress = Inet4Address.getByName(_remoteHost.getHost());
-            remoteSocket = SocketFactory.getDefault().createSocket(remoteAddress, _remoteHost.getPort());
-            
-            // Make the request
-            BufferedOutputStream output = new BufferedOutputStream(remoteSocket.getOutputStream());
-            request.writeToStream(output);
-            output.flush();
+            closePayload(response);
+            response = sendRequest(request, null, null, readTimeout, streamResponse);
+        }
+        return decodeResponse(response);
+    }
 
-            // Get the response
-            DurandalHttpResponse response = DurandalHttpResponse.readResponseFromStream(remoteSocket.getInputStream());
-            
-            remoteSocket.close();
-            
-            if (response == null)
-                return DurandalHttpResponse.NotFoundResponse();
-            return response;
+    /// <summary>
+    /// Sends either a request object, or a template plus its payload. The whole exchange, including connecting,
+    /// must finish within readTimeout milliseconds (if positive); otherwise null is returned. Null is also returned,
+    /// without sending anything, while the circuit breaker is open.
+    /// </summary>
+    private DurandalHttpResponse sendRequest(DurandalHttpRequest request, RequestTemplate template, byte[] templatePayload,
+            int readTimeout, boolean streamResponse)
+    {
+        CircuitBreaker breaker = _circuitBreaker;
+        if (breaker != null && !breaker.allowRequest())
+        {
+            return null;
+        }
+
+        DurandalHttpResponse response = sendRequestBalanced(request, template, templatePayload, readTimeout, streamResponse);
+        recordOutcome(breaker, response);
+        return response;
+    }
+
+    private DurandalHttpResponse sendRequestBalanced(DurandalHttpRequest request, RequestTemplate template, byte[] templatePayload,
+            int readTimeout, boolean streamResponse)
+    {
+        long startTime = System.currentTimeMillis();
+        long deadline = readTimeout > 0 ? startTime + readTimeout : 0;
+        HttpEndpoint endpoint = _loadBalancer.select(null);
+        boolean failedOver = false;
+        while (true)
+        {
+            HttpEndpoint alternate = null;
+            endpoint.onRequestStarted();
+            DurandalHttpResponse response = null;
+            try
+            {
+                response = sendRequest(endpoint, request, template, templatePayload, deadline, readTimeout, streamResponse);
+                if (response == null)
+                {
+                    if (isExpired(deadline))
+                    {
+                        // A slow server is not the same as a dead connection; retrying would only double the wait
+                        System.err.println("HTTP request to " + endpoint + " timed out after " + readTimeout + "ms");
+                        return null;
+                    }
+                    // Even a fresh connection was closed without an answer. That is a failure, not a 404, as far as
+                    // the circuit breaker, the load balancer and any retry policy are concerned
+                    System.err.println("HTTP request to " + endpoint + " got no response");
+                    return null;
+                }
+                recordLatency(startTime);
+                return response;
+            }
+            catch (ConnectException e)
+            {
+                // The server never saw the request, so it is safe to send it to another one (but only once,
+                // so that a request can't bounce around a cluster that is entirely down)
+                alternate = failedOver ? endpoint : _loadBalancer.select(endpoint);
+                if (alternate == endpoint || isExpired(deadline))
+                {
+                    System.err.println(e.getMessage());
+                    return null;
+                }
+                System.err.println("Could not connect to " + endpoint + "; trying " + alternate);
+            }
+            catch (IOException e)
+            {
+                System.err.println(e.getMessage());
+                return null;
+            }
+            finally
+            {
+                endpoint.onRequestFinished();
+                _loadBalancer.recordResult(endpoint, System.currentTimeMillis() - startTime, response != null && response.ResponseCode < 500);
+            }
+
+            endpoint = alternate;
+            failedOver = true;
+        }
+    }
+
+    /// <summary>
+    /// Sends a request to one endpoint. Returns null if there was no response at all, either because of
+    /// a timeout or because even a fresh connection was closed without answering.
+    /// </summary>
+    private DurandalHttpResponse sendRequest(HttpEndpoint endpoint, DurandalHttpRequest request, RequestTemplate template,
+            byte[] templatePayload, long deadline, int readTimeout, boolean streamResponse) throws IOException
+    {
+        // Try an idle pooled connection first. The server may have closed it since it was last used, in which case
+        // we get no response at all, and the request is transparently retried on a new socket. The server may also have
+        // acted on the request before failing, though, so a non-idempotent request is only retried if it never got out
+        // in full; to make that rare, its pooled connection is always checked for staleness first.
+        String requestMethod = template != null ? template.getRequestMethod() : request.RequestMethod;
+        boolean idempotent = HttpHelpers.isIdempotentMethod(requestMethod);
+        PooledHttpConnection connection = _connectionPool.acquire(endpoint.getPoolKey(), !idempotent);
+        if (connection != null)
+        {
+            boolean requestSent = true;
+            try
+            {
+                DurandalHttpResponse response = sendRequest(connection, request, template, templatePayload, deadline, readTimeout, streamResponse);
+                if (response != null)
+                {
+                    return response;
+                }
+            }
+            catch (RequestNotSentException e)
+            {
+                requestSent = false;
+            }
+            catch (PayloadTooLargeException e)
+            {
+                // The server did answer; sending the request again would just get the same oversized response
+                throw e;
+            }
+            catch (IOException e) { }
+
+            if (requestSent && !idempotent)
+            {
+                System.err.println("Connection to " + endpoint + " closed without a response to " + requestMethod + " " +
+                        (template != null ? template.getRequestUri() : request.RequestFile) + "; not resending it");
+                return null;
+            }
+            if (isExpired(deadline))
+            {
+                return null;
+            }
+            _connectionPool.recordRetry();
+        }
+
+        connection = _connectionPool.connect(endpoint.getPoolKey(), endpoint.getHost(), endpoint.getPort(), getConnectTimeout(endpoint, deadline));
+        return sendRequest(connection, request, template, templatePayload, deadline, readTimeout, streamResponse);
+    }
+
+    /// <summary>
+    /// Feeds the outcome of a request to the circuit breaker. Server errors, 429 (Too Many Requests) and no response
+    /// at all count as failures. A 429 or 503 with Retry-After holds off all requests for as long as it asks.
+    /// </summary>
+    static void recordOutcome(CircuitBreaker breaker, DurandalHttpResponse response)
+    {
+        if (breaker == null)
+        {
+            return;
+        }
+
+        if (!isRetryable(response))
+        {
+            breaker.recordSuccess();
+            return;
+        }
+
+        breaker.recordFailure();
+        if (response != null && (response.ResponseCode == 429 || response.ResponseCode == 503))
+        {
+            long retryAfter = HttpHelpers.getRetryAfter(response.ResponseHeaders);
+            if (retryAfter > 0)
+            {
+                breaker.holdOff(retryAfter);
+            }
+        }
+    }
+
+    /// <summary>
+    /// Returns true if a request got no response, or one that says trying again later might work
+    /// </summary>
+    private static boolean isRetryable(DurandalHttpResponse response)
+    {
+        return response == null || response.ResponseCode >= 500 || response.ResponseCode == 429;
+    }
+
+    /// <summary>
+    /// Sends an idempotent request, and if it fails with no response, a server error, or 429, tries again up to
+    /// the policy's limit. Retries wait for a jittered, exponentially growing delay, or for as long as the server
+    /// asked with Retry-After (or the circuit breaker is open), whichever is longer. Requests are sent with hedging
+    /// if that is enabled. Returns the last response, which is null if there never was one.
+    /// </summary>
+    public DurandalHttpResponse sendRequestWithRetry(DurandalHttpRequest request, int readTimeout, RetryPolicy policy)
+    {
+        for (int attempt = 1; ; attempt++)
+        {
+            DurandalHttpResponse response = sendRequestHedged(request, readTimeout);
+            if (!isRetryable(response) || attempt >= policy.getMaxAttempts())
+            {
+                return response;
+            }
+
+            long suggestedDelay = response == null ? -1 : HttpHelpers.getRetryAfter(response.ResponseHeaders);
+            CircuitBreaker breaker = _circuitBreaker;
+            if (breaker != null)
+            {
+                suggestedDelay = Math.max(suggestedDelay, breaker.getRemainingOpenTime());
+            }
+            long delay = policy.getDelay(attempt - 1, suggestedDelay);
+            System.err.println("Request to " + getServerAddress() + " failed (" +
+                    (response == null ? "no response" : Integer.toString(response.ResponseCode)) + "); retrying in " + delay + "ms");
+            try
+            {
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return response;
+            }
         }
-        catch (MalformedURLException e)
+    }
+
+    private static boolean isExpired(long deadline)
+    {
+        return deadline != 0 && System.currentTimeMillis() >= deadline;
+    }
+
+    /// <summary>
+    /// The connect timeout to use for a new socket: the configured one, shortened to fit within the request's deadline
+    /// </summary>
+    private int getConnectTimeout(HttpEndpoint endpoint, long deadline) throws SocketTimeoutException
+    {
+        if (deadline == 0)
         {
+            return _connectTimeout;
+        }
+
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0)
+        {
+            throw new SocketTimeoutException("HTTP request deadline expired before connecting to " + endpoint);
+        }
+        return _connectTimeout > 0 ? (int)Math.min(_connectTimeout, remaining) : (int)remaining;
+    }
+
+    /// <summary>
+    /// Sends the headers of a request whose body will be streamed afterwards using chunked transfer encoding.
+    /// The caller writes the body to the returned object and then calls finish() to get the response.
+    /// Returns null if the connection could not be established. Since the body is produced incrementally,
+    /// this request cannot be retried transparently, so pooled connections are always probed first.
+    /// </summary>
+    public StreamingHttpRequest beginStreamingRequest(DurandalHttpRequest request)
+    {
+        CircuitBreaker breaker = _circuitBreaker;
+        if (breaker != null && !breaker.allowRequest())
+        {
+            System.err.println(new CircuitBreakerOpenException(_hostHeader, breaker.getRemainingOpenTime()).getMessage());
             return null;
         }
+
+        prepareRequest(request);
+        request.RequestHeaders.remove("Content-Length");
+        request.RequestHeaders.put("Transfer-Encoding", "chunked");
+
+        // The upload may last as long as the user keeps talking, so it isn't counted as in flight;
+        // only a failure to start it feeds back into endpoint health
+        HttpEndpoint endpoint = _loadBalancer.select(null);
+        PooledHttpConnection connection = null;
+        try
+        {
+            connection = _connectionPool.acquire(endpoint.getPoolKey(), true);
+            if (connection == null)
+            {
+                connection = _connectionPool.connect(endpoint.getPoolKey(), endpoint.getHost(), endpoint.getPort(), _connectTimeout);
+            }
+
+            connection.markUsed();
+            if (!request.writeHeadersToStream(connection.getOutputStream()))
+            {
+                throw new IOException("Failed to write HTTP request to " + endpoint);
+            }
+
+            // Get the headers on the wire right away so the server can start processing
+            connection.getOutputStream().flush();
+            return new StreamingHttpRequest(_connectionPool, connection, breaker);
+        }
         catch (IOException e)
         {
+            System.err.println(e.getMessage());
+            _loadBalancer.recordResult(endpoint, 0, false);
+            recordOutcome(breaker, null);
+            if (connection != null)
+            {
+                _connectionPool.release(connection, false);
+            }
+            return null;
+        }
+    }
+
+    /// <summary>
+    /// Sends a request without blocking the calling thread. The returned future completes with the
+    /// response, or exceptionally if the request could not be sent or timed out after readTimeout
+    /// milliseconds. Cancelling the future aborts the request.
+    /// </summary>
+    public CompletableFuture<DurandalHttpResponse> sendRequestAsync(DurandalHttpRequest request, int readTimeout)
+    {
+        return sendRequestAsync(request, readTimeout, _loadBalancer.select(null));
+    }
+
+    private CompletableFuture<DurandalHttpResponse> sendRequestAsync(DurandalHttpRequest request, int readTimeout, HttpEndpoint endpoint)
+    {
+        final CircuitBreaker breaker = _circuitBreaker;
+        if (breaker != null && !breaker.allowRequest())
+        {
+            CompletableFuture<DurandalHttpResponse> returnVal = new CompletableFuture<DurandalHttpResponse>();
+            returnVal.completeExceptionally(new CircuitBreakerOpenException(_hostHeader, breaker.getRemainingOpenTime()));
+            return returnVal;
+        }
+
+        prepareRequest(request);
+        InetSocketAddress address = endpoint.getResolvedAddress();
+        if (address.isUnresolved())
+        {
+            _loadBalancer.recordResult(endpoint, 0, false);
+            recordOutcome(breaker, null);
+            CompletableFuture<DurandalHttpResponse> returnVal = new CompletableFuture<DurandalHttpResponse>();
+            returnVal.completeExceptionally(new UnknownHostException(endpoint.getHost()));
+            return returnVal;
+        }
+
+        final long startTime = System.currentTimeMillis();
+        final DurandalHttpRequest wireRequest = compressRequestBody(request);
+        endpoint.onRequestStarted();
+        // Whichever attempt is in progress is the one that a cancellation of the returned future has to abort
+        final AtomicReference<CompletableFuture<DurandalHttpResponse>> currentAttempt = new AtomicReference<CompletableFuture<DurandalHttpResponse>>();
+        currentAttempt.set(_asyncTransport.send(address, wireRequest, readTimeout));
+        CompletableFuture<DurandalHttpResponse> returnVal = currentAttempt.get().thenCompose((response) ->
+        {
+            if (isCompressionRejected(response, request, wireRequest))
+            {
+                CompletableFuture<DurandalHttpResponse> retry = _asyncTransport.send(address, request, readTimeout);
+                currentAttempt.set(retry);
+                return retry;
+            }
+            return CompletableFuture.completedFuture(response);
+        }).thenApply((response) ->
+        {
+            recordLatency(startTime);
+            return decodeResponse(response);
+        });
+        returnVal.whenComplete((response, error) ->
+        {
+            endpoint.onRequestFinished();
+            // A request that was cancelled (such as the losing half of a hedge) says nothing about the server
+            if (!(error instanceof CancellationException))
+            {
+                _loadBalancer.recordResult(endpoint, System.currentTimeMillis() - startTime,
+                        error == null && response != null && response.ResponseCode < 500);
+                recordOutcome(breaker, error == null ? response : null);
+            }
+        });
+        returnVal.whenComplete((response, error) ->
+        {
+            if (error instanceof CancellationException)
+            {
+                currentAttempt.get().cancel(true);
+            }
+        });
+        return returnVal;
+    }
+
+    /// <summary>
+    /// Sends a request with hedging, if it is enabled and the request method is idempotent. If no response has
+    /// arrived after about the p95 latency of recent requests, a second copy of the request is sent to another server
+    /// (or at least on another connection, if there is only one server), and whichever answers first wins (the other
+    /// is cancelled). This trims the latency tail at the cost of some extra load. A POST or other non-idempotent
+    /// request is always sent just once. Returns null if neither attempt succeeds.
+    /// </summary>
+    public DurandalHttpResponse sendRequestHedged(DurandalHttpRequest request, int readTimeout)
+    {
+        if (!isHedgeable(request))
+        {
+            return sendRequest(request, readTimeout);
+        }
+
+        try
+        {
+            return sendRequestHedgedAsync(request, readTimeout).get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException e)
+        {
+            System.err.println(e.getCause().getMessage());
             return null;
         }
+    }
+
+    /// <summary>
+    /// The asynchronous form of sendRequestHedged. Cancelling the future cancels every attempt.
+    /// </summary>
+    public CompletableFuture<DurandalHttpResponse> sendRequestHedgedAsync(DurandalHttpRequest request, int readTimeout)
+    {
+        if (!isHedgeable(request))
+        {
+            return sendRequestAsync(request, readTimeout);
+        }
+
+        HedgedRequest hedgedRequest = new HedgedRequest(request, readTimeout);
+        hedgedRequest.start(getHedgeDelay(readTimeout));
+        return hedgedRequest.Result;
+    }
+
+    private boolean isHedgeable(DurandalHttpRequest request)
+    {
+        return _hedgingEnabled && HttpHelpers.isIdempotentMethod(request.RequestMethod);
+    }
+
+    /// <summary>
+    /// How long a hedged request waits for its first attempt before sending the second
+    /// </summary>
+    public long getHedgeDelay(int readTimeout)
+    {
+        long returnVal = DEFAULT_HEDGE_DELAY_MS;
+        if (_latencyTracker.getSampleCount() >= MIN_LATENCY_SAMPLES)
+        {
+            returnVal = Math.max(MIN_HEDGE_DELAY_MS, _latencyTracker.getPercentile(0.95));
+        }
+        // There's no point in hedging so late that the second attempt can't finish before the timeout
+        if (readTimeout > 0)
+        {
+            returnVal = Math.min(returnVal, readTimeout / 2);
+        }
+        return returnVal;
+    }
+
+    private static synchronized ScheduledExecutorService getHedgeScheduler()
+    {
+        if (_hedgeScheduler == null)
+        {
+            _hedgeScheduler = Executors.newSingleThreadScheduledExecutor((runnable) ->
+            {
+                Thread thread = new Thread(runnable, "HttpClient-Hedging");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return _hedgeScheduler;
+    }
+
+    /**
+     * Tracks the attempts of a single hedged request. The first successful response completes the result.
+     * If the first attempt fails outright before the hedge delay is up, the second attempt is sent immediately.
+     */
+    private class HedgedRequest
+    {
+        public final CompletableFuture<DurandalHttpResponse> Result = new CompletableFuture<DurandalHttpResponse>();
+        private final DurandalHttpRequest _request;
+        private final int _readTimeout;
+        private final List<CompletableFuture<DurandalHttpResponse>> _attempts = new ArrayList<CompletableFuture<DurandalHttpResponse>>(2);
+        private ScheduledFuture<?> _hedgeTimer = null;
+        private HttpEndpoint _lastEndpoint = null;
+        private boolean _hedgeSent = false;
+        private int _outstandingAttempts = 0;
+
+        public HedgedRequest(DurandalHttpRequest request, int readTimeout)
+        {
+            _request = request;
+            _readTimeout = readTimeout;
+            Result.whenComplete((response, error) ->
+            {
+                if (Result.isCancelled())
+                {
+                    cancelAll();
+                }
+            });
+        }
+
+        public synchronized void start(long hedgeDelay)
+        {
+            sendAttempt();
+            if (!Result.isDone())
+            {
+                _hedgeTimer = getHedgeScheduler().schedule(this::sendHedge, hedgeDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private synchronized void sendHedge()
+        {
+            if (!_hedgeSent && !Result.isDone())
+            {
+                _hedgeSent = true;
+                sendAttempt();
+            }
+        }
+
+        private synchronized void sendAttempt()
+        {
+            _outstandingAttempts++;
+            _lastEndpoint = _loadBalancer.select(_lastEndpoint);
+            // Each attempt gets its own copy, since sending a request fills in its headers and the attempts run concurrently
+            CompletableFuture<DurandalHttpResponse> attempt = sendRequestAsync(_request.copy(), _readTimeout, _lastEndpoint);
+            _attempts.add(attempt);
+            attempt.whenComplete(this::onAttemptComplete);
+        }
+
+        private synchronized void onAttemptComplete(DurandalHttpResponse response, Throwable error)
+        {
+            _outstandingAttempts--;
+            if (Result.isDone())
+            {
+                return;
+            }
+
+            if (error == null && response != null && response.ResponseCode < 500)
+            {
+                Result.complete(response);
+                cancelAll();
+            }
+            else if (!_hedgeSent)
+            {
+                // Don't wait out the hedge delay when we already know the first attempt failed
+                _hedgeSent = true;
+                if (_hedgeTimer != null)
+                {
+                    _hedgeTimer.cancel(false);
+                }
+                sendAttempt();
+            }
+            else if (_outstandingAttempts == 0)
+            {
+                if (response != null)
+                {
+                    Result.complete(response);
+                }
+                else
+                {
+                    Result.completeExceptionally(error != null ? error : new IOException("No response from " + getServerAddress()));
+                }
+            }
+        }
+
+        private synchronized void cancelAll()
+        {
+            if (_hedgeTimer != null)
+            {
+                _hedgeTimer.cancel(false);
+            }
+            for (CompletableFuture<DurandalHttpResponse> attempt : _attempts)
+            {
+                attempt.cancel(true);
+            }
+        }
+    }
+
+    /// <summary>
+    /// Performs a single request/response exchange on the given connection and then either returns
+    /// it to the pool or closes it. Returns null if the remote host closed the connection without responding.
+    /// </summary>
+    private DurandalHttpResponse sendRequest(PooledHttpConnection connection, DurandalHttpRequest request,
+            RequestTemplate template, byte[] templatePayload, long deadline, int readTimeout, boolean streamResponse) throws IOException
+    {
+        if (streamResponse)
+        {
+            return sendRequestStreaming(connection, request, deadline, readTimeout);
+        }
+
+        boolean reusable = false;
+        try
+        {
+            connection.markUsed();
+            connection.setDeadline(deadline, 0);
+
+            // Make the request. A template's head and body are both collected in the connection's
+            // output buffer, so a typical request goes out in one write call.
+            BufferedOutputStream output = connection.getOutputStream();
+            try
+            {
+                if (template != null)
+                {
+                    template.writeToStream(output, templatePayload, 0, templatePayload == null ? 0 : templatePayload.length);
+                }
+                else if (!request.writeToStream(output))
+                {
+                    throw new IOException("Failed to write HTTP request to " + connection.getPoolKey());
+                }
+                output.flush();
+            }
+            catch (IOException e)
+            {
+                throw new RequestNotSentException(e);
+            }
+
+            // Get the response
+            String requestMethod = template != null ? template.getRequestMethod() : request.RequestMethod;
+            // The body is held in memory, so it is capped like NioHttpTransport's; with the spill threshold at the
+            // same size, it is never spilled and PayloadData is always filled in
+            DurandalHttpResponse response = DurandalHttpResponse.readResponseFromStream(connection.getInputStream(), requestMethod,
+                    HttpPayload.DEFAULT_MAX_BODY_SIZE, HttpPayload.DEFAULT_MAX_BODY_SIZE);
+            reusable = response != null && HttpHelpers.isPersistentConnection(response);
+            return response;
+        }
         finally
         {
-            if (remoteSocket != null && remoteSocket.isConnected())
+            _connectionPool.release(connection, reusable);
+        }
+    }
+
+    private DurandalHttpResponse sendRequestStreaming(PooledHttpConnection connection, DurandalHttpRequest request,
+            long deadline, int readTimeout) throws IOException
+    {
+        DurandalHttpResponse response = null;
+        try
+        {
+            connection.markUsed();
+            connection.setDeadline(deadline, 0);
+            BufferedOutputStream output = connection.getOutputStream();
+            try
             {
-                try
+                if (!request.writeToStream(output))
                 {
-                    remoteSocket.close();
+                    throw new IOException("Failed to write HTTP request to " + connection.getPoolKey());
                 }
-                catch (IOException e) {}
+                output.flush();
+            }
+            catch (IOException e)
+            {
+                throw new RequestNotSentException(e);
+            }
+
+            response = DurandalHttpResponse.readResponseHeadersFromStream(connection.getInputStream(), request.RequestMethod);
+            if (response != null)
+            {
+                // The body is consumed at the caller's pace, so from here on only individual reads are bounded
+                connection.setDeadline(0, readTimeout);
+
+                // The connection now belongs to the response body until it is read or closed
+                response.PayloadStream = new PooledPayloadStream(response.PayloadStream, connection,
+                        HttpHelpers.isPersistentConnection(response));
+            }
+            return response;
+        }
+        finally
+        {
+            if (response == null)
+            {
+                _connectionPool.release(connection, false);
+            }
+        }
+    }
+
+    /**
+     * Thrown when a request could not be written out in full, so the server can't have acted on it
+     * and it is safe to send it again whatever its method
+     */
+    private static class RequestNotSentException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public RequestNotSentException(IOException cause)
+        {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Wraps the body of a streamed response, and hands its connection back to the pool
+     * once the body has been read to the end (or closes it if the body is abandoned)
+     */
+    private class PooledPayloadStream extends FilterInputStream
+    {
+        private final PooledHttpConnection _connection;
+        private final boolean _persistent;
+        private boolean _released = false;
+
+        public PooledPayloadStream(InputStream body, PooledHttpConnection connection, boolean persistent)
+        {
+            super(body);
+            _connection = connection;
+            _persistent = persistent;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int returnVal = super.read();
+            if (returnVal < 0)
+            {
+                release(true);
+            }
+            return returnVal;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int returnVal = super.read(b, off, len);
+            if (returnVal < 0)
+            {
+                release(true);
+            }
+            return returnVal;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            release(isBodyComplete());
+        }
+
+        private boolean isBodyComplete()
+        {
+            if (in instanceof ContentLengthInputStream)
+            {
+                return ((ContentLengthInputStream)in).getRemaining() == 0;
+            }
+            if (in instanceof ChunkedInputStream)
+            {
+                return ((ChunkedInputStream)in).isFinished();
+            }
+            return false;
+        }
+
+        // A server may close the body from one thread while another is still reading it
+        private synchronized void release(boolean bodyComplete)
+        {
+            if (!_released)
+            {
+                _released = true;
+                _connectionPool.release(_connection, bodyComplete && _persistent);
+            }
+        }
+    }
+
+    private void prepareRequest(DurandalHttpRequest request)
+    {
+        request.ProtocolVersion = "HTTP/1.1";
+        if (!request.RequestHeaders.containsKey("Host"))
+        {
+            request.RequestHeaders.put("Host", _hostHeader);
+        }
+        if (!request.RequestHeaders.containsKey("Connection"))
+        {
+            request.RequestHeaders.put("Connection", "keep-alive");
+        }
+        if (_acceptCompressedResponses && !request.RequestHeaders.containsKey("Accept-Encoding"))
+        {
+            request.RequestHeaders.put("Accept-Encoding", HttpCompression.ACCEPTED_ENCODINGS);
+        }
+    }
+
+    /// <summary>
+    /// Returns a copy of the request with its body compressed, if it is big enough and the server can take it;
+    /// otherwise returns the request itself. The caller's request is never modified, so it can be resent as-is.
+    /// </summary>
+    private DurandalHttpRequest compressRequestBody(DurandalHttpRequest request)
+    {
+        String encoding = _requestContentEncoding != null ? _requestContentEncoding : _negotiatedRequestEncoding;
+        if (!HttpCompression.isSupported(encoding) ||
+            request.PayloadData == null ||
+            request.PayloadData.length < _compressionThreshold ||
+            request.RequestHeaders.containsKey("Content-Encoding"))
+        {
+            return request;
+        }
+
+        byte[] compressedPayload = HttpCompression.compress(request.PayloadData, encoding);
+        if (compressedPayload.length >= request.PayloadData.length)
+        {
+            // Already-compressed content like audio; sending it as-is is cheaper for both ends
+            return request;
+        }
+
+        DurandalHttpRequest returnVal = request.copy();
+        returnVal.PayloadData = compressedPayload;
+        returnVal.Body = null;
+        returnVal.RequestHeaders.put("Content-Encoding", encoding);
+        return returnVal;
+    }
+
+    /// <summary>
+    /// Returns true if the server refused a body that we compressed, in which case we stop compressing
+    /// (unless told to always do it) and the original request should be sent again
+    /// </summary>
+    private boolean isCompressionRejected(DurandalHttpResponse response, DurandalHttpRequest request, DurandalHttpRequest wireRequest)
+    {
+        if (response == null || wireRequest == request || response.ResponseCode != 415)
+        {
+            return false;
+        }
+
+        _negotiatedRequestEncoding = null;
+        return true;
+    }
+
+    /// <summary>
+    /// Decodes a compressed response body, and learns from the response whether the server accepts compressed requests
+    /// </summary>
+    private DurandalHttpResponse decodeResponse(DurandalHttpResponse response)
+    {
+        if (response == null)
+        {
+            return null;
+        }
+
+        String serverAcceptEncoding = response.ResponseHeaders.get("Accept-Encoding");
+        if (serverAcceptEncoding != null)
+        {
+            _negotiatedRequestEncoding = HttpCompression.selectEncoding(serverAcceptEncoding);
+        }
+
+        if (!response.decodeContent())
+        {
+            closePayload(response);
+            return null;
+        }
+        return response;
+    }
+
+    private static void closePayload(DurandalHttpResponse response)
+    {
+        if (response != null && response.PayloadStream != null)
+        {
+            try
+            {
+                response.PayloadStream.close();
             }
+            catch (IOException e) {}
         }
     }
 }
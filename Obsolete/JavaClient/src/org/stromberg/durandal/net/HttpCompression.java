@@ -0,0 +1,232 @@
+package org.stromberg.durandal.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Helpers for the "gzip" and "deflate" HTTP content codings
+ * @author lostromb
+ */
+public class HttpCompression
+{
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    public static final String IDENTITY = "identity";
+
+    /// <summary>
+    /// The value we send in Accept-Encoding
+    /// </summary>
+    public static final String ACCEPTED_ENCODINGS = "gzip, deflate";
+
+    /// <summary>
+    /// Bodies smaller than this are not worth the CPU (or the extra headers) to compress
+    /// </summary>
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    /// <summary>
+    /// Returns true if the given Content-Encoding is one we know how to handle
+    /// </summary>
+    public static boolean isSupported(String encoding)
+    {
+        return GZIP.equalsIgnoreCase(encoding) || DEFLATE.equalsIgnoreCase(encoding);
+    }
+
+    /// <summary>
+    /// Picks the coding we prefer out of an Accept-Encoding header, or null if it allows neither gzip nor deflate.
+    /// Quality values are only honored to the extent that "q=0" rules a coding out.
+    /// </summary>
+    public static String selectEncoding(String acceptEncoding)
+    {
+        if (acceptEncoding == null)
+            return null;
+
+        boolean gzip = false;
+        boolean deflate = false;
+        for (String coding : acceptEncoding.split(","))
+        {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (parts.length > 1 && parts[1].trim().matches("q=0(\\.0*)?"))
+                continue;
+            if (name.equalsIgnoreCase(GZIP))
+                gzip = true;
+            else if (name.equalsIgnoreCase(DEFLATE))
+                deflate = true;
+        }
+        return gzip ? GZIP : (deflate ? DEFLATE : null);
+    }
+
+    public static byte[] compress(byte[] data, String encoding)
+    {
+        return compress(data, encoding, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /// <summary>
+    /// Compresses a whole body. "deflate" produces a raw deflate stream with no zlib wrapper.
+    /// </summary>
+    public static byte[] compress(byte[] data, String encoding, int level)
+    {
+        ByteArrayOutputStream bucket = new ByteArrayOutputStream(data.length / 2 + 64);
+        try
+        {
+            if (GZIP.equalsIgnoreCase(encoding))
+            {
+                GZIPOutputStream gzipStream = new GZIPOutputStream(bucket, 8192)
+                {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+                gzipStream.write(data);
+                gzipStream.close();
+            }
+            else if (DEFLATE.equalsIgnoreCase(encoding))
+            {
+                Deflater deflater = new Deflater(level, true);
+                try
+                {
+                    deflater.setInput(data);
+                    deflater.finish();
+                    byte[] buffer = new byte[8192];
+                    while (!deflater.finished())
+                    {
+                        int bytesWritten = deflater.deflate(buffer);
+                        bucket.write(buffer, 0, bytesWritten);
+                    }
+                }
+                finally
+                {
+                    deflater.end();
+                }
+            }
+            else
+            {
+                throw new IllegalArgumentException("Unsupported content encoding " + encoding);
+            }
+        }
+        catch (IOException e)
+        {
+            // Can't happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+        return bucket.toByteArray();
+    }
+
+    public static byte[] decompress(byte[] data, String encoding) throws IOException
+    {
+        return decompress(data, encoding, HttpPayload.DEFAULT_MAX_BODY_SIZE);
+    }
+
+    /// <summary>
+    /// Decompresses a whole body, throwing PayloadTooLargeException as soon as it inflates past maxBodySize bytes
+    /// </summary>
+    public static byte[] decompress(byte[] data, String encoding, long maxBodySize) throws IOException
+    {
+        try (InputStream decompressedStream = decompress(new ByteArrayInputStream(data), encoding, maxBodySize))
+        {
+            return HttpHelpers.readFully(decompressedStream);
+        }
+    }
+
+    public static InputStream decompress(InputStream body, String encoding) throws IOException
+    {
+        return decompress(body, encoding, HttpPayload.DEFAULT_MAX_BODY_SIZE);
+    }
+
+    /// <summary>
+    /// Wraps a compressed body so that it is inflated as it is read. For "deflate", both raw deflate
+    /// and zlib-wrapped data are accepted, since servers disagree about which one the name means.
+    /// A small body can inflate to an enormous one, so reads fail with PayloadTooLargeException once
+    /// more than maxBodySize bytes have come out.
+    /// </summary>
+    public static InputStream decompress(InputStream body, String encoding, long maxBodySize) throws IOException
+    {
+        if (GZIP.equalsIgnoreCase(encoding))
+        {
+            return new SizeLimitedInputStream(new GZIPInputStream(body, 8192), maxBodySize);
+        }
+        else if (DEFLATE.equalsIgnoreCase(encoding))
+        {
+            PushbackInputStream peekStream = new PushbackInputStream(body, 2);
+            int first = peekStream.read();
+            int second = first < 0 ? -1 : peekStream.read();
+            if (second >= 0)
+                peekStream.unread(second);
+            if (first >= 0)
+                peekStream.unread(first);
+            boolean zlibWrapped = first >= 0 && second >= 0 && (first & 0x0F) == 8 && ((first << 8) | second) % 31 == 0;
+            return new SizeLimitedInputStream(new InflaterInputStream(peekStream, new Inflater(!zlibWrapped), 8192)
+            {
+                @Override
+                public void close() throws IOException
+                {
+                    super.close();
+                    // We supplied our own inflater, so the stream won't release it for us
+                    inf.end();
+                }
+            }, maxBodySize);
+        }
+
+        throw new IOException("Unsupported content encoding " + encoding);
+    }
+
+    private static class SizeLimitedInputStream extends FilterInputStream
+    {
+        private final long _maxBytes;
+        private long _bytesRead = 0;
+
+        public SizeLimitedInputStream(InputStream inner, long maxBytes)
+        {
+            super(inner);
+            _maxBytes = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int returnVal = super.read();
+            if (returnVal >= 0)
+            {
+                count(1);
+            }
+            return returnVal;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException
+        {
+            int returnVal = super.read(buffer, offset, length);
+            if (returnVal > 0)
+            {
+                count(returnVal);
+            }
+            return returnVal;
+        }
+
+        @Override
+        public long skip(long count) throws IOException
+        {
+            long returnVal = super.skip(count);
+            count(returnVal);
+            return returnVal;
+        }
+
+        private void count(long bytes) throws PayloadTooLargeException
+        {
+            _bytesRead += bytes;
+            if (_bytesRead > _maxBytes)
+            {
+                throw new PayloadTooLargeException(-1, _maxBytes);
+            }
+        }
+    }
+}
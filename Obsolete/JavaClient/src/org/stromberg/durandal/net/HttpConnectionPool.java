@@ -0,0 +1,289 @@
+package org.stromberg.durandal.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.SocketFactory;
+
+/**
+ * A pool of persistent HTTP/1.1 connections, keyed by host:port. Any number of
+ * HttpClients can share the same pool; idle connections are handed back to whichever
+ * client asks for the same host next.
+ * @author lostromb
+ */
+public class HttpConnectionPool
+{
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST = 8;
+    public static final int DEFAULT_IDLE_TIMEOUT_MS = 30000;
+
+    // Connections that have been idle for less than this are assumed to be alive without probing them.
+    // If that assumption is wrong, the client will transparently retry on a fresh socket.
+    private static final int STALE_CHECK_THRESHOLD_MS = 1000;
+
+    private static HttpConnectionPool _sharedPool = null;
+
+    private final Map<String, Deque<PooledHttpConnection>> _idleConnections = new HashMap<String, Deque<PooledHttpConnection>>();
+    private final int _maxIdleConnectionsPerHost;
+    private final int _idleTimeoutMs;
+    private final AtomicLong _lastEvictionTime = new AtomicLong();
+
+    private final AtomicLong _connectionsCreated = new AtomicLong();
+    private final AtomicLong _connectionsReused = new AtomicLong();
+    private final AtomicLong _staleConnectionsDiscarded = new AtomicLong();
+    private final AtomicLong _idleConnectionsEvicted = new AtomicLong();
+    private final AtomicLong _retriedRequests = new AtomicLong();
+
+    public HttpConnectionPool()
+    {
+        this(DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    public HttpConnectionPool(int maxIdleConnectionsPerHost, int idleTimeoutMs)
+    {
+        _maxIdleConnectionsPerHost = maxIdleConnectionsPerHost;
+        _idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /// <summary>
+    /// The pool that is used by HttpClients that were not given one explicitly
+    /// </summary>
+    public static synchronized HttpConnectionPool getSharedPool()
+    {
+        if (_sharedPool == null)
+        {
+            _sharedPool = new HttpConnectionPool();
+        }
+        return _sharedPool;
+    }
+
+    public static String getPoolKey(String host, int port)
+    {
+        return host + ":" + port;
+    }
+
+    /// <summary>
+    /// Returns a live idle connection to the given host, or null if there are none
+    /// </summary>
+    PooledHttpConnection acquire(String poolKey)
+    {
+        return acquire(poolKey, false);
+    }
+
+    /// <summary>
+    /// Returns a live idle connection to the given host, or null if there are none.
+    /// If alwaysCheckStale is set, even recently used connections are probed before being returned;
+    /// this is for callers that will not be able to transparently retry the request.
+    /// </summary>
+    PooledHttpConnection acquire(String poolKey, boolean alwaysCheckStale)
+    {
+        long now = System.currentTimeMillis();
+        while (true)
+        {
+            PooledHttpConnection connection;
+            synchronized (_idleConnections)
+            {
+                Deque<PooledHttpConnection> idleQueue = _idleConnections.get(poolKey);
+                if (idleQueue == null || idleQueue.isEmpty())
+                {
+                    return null;
+                }
+                // Most recently used first; it's the least likely to have been closed by the server
+                connection = idleQueue.pollFirst();
+            }
+
+            long idleTime = now - connection.getLastUsedTime();
+            if (idleTime > _idleTimeoutMs)
+            {
+                _idleConnectionsEvicted.incrementAndGet();
+                connection.close();
+            }
+            else if ((alwaysCheckStale || idleTime > STALE_CHECK_THRESHOLD_MS) && connection.isStale())
+            {
+                _staleConnectionsDiscarded.incrementAndGet();
+                connection.close();
+            }
+            else
+            {
+                _connectionsReused.incrementAndGet();
+                return connection;
+            }
+        }
+    }
+
+    /// <summary>
+    /// Opens a brand new connection to the given host, waiting at most connectTimeoutMs for it (0 to wait indefinitely)
+    /// </summary>
+    PooledHttpConnection connect(String poolKey, String host, int port, int connectTimeoutMs) throws IOException
+    {
+        InetAddress remoteAddress = InetAddress.getByName(host);
+        Socket socket = SocketFactory.getDefault().createSocket();
+        try
+        {
+            socket.connect(new InetSocketAddress(remoteAddress, port), connectTimeoutMs);
+        }
+        catch (IOException e)
+        {
+            socket.close();
+            throw e;
+        }
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        _connectionsCreated.incrementAndGet();
+        return new PooledHttpConnection(poolKey, socket);
+    }
+
+    /// <summary>
+    /// Returns a connection to the pool after a complete request/response exchange.
+    /// If the exchange did not leave the connection in a reusable state, it is closed instead.
+    /// </summary>
+    void release(PooledHttpConnection connection, boolean reusable)
+    {
+        connection.clearDeadline();
+        if (!reusable)
+        {
+            connection.close();
+            return;
+        }
+
+        boolean accepted = false;
+        synchronized (_idleConnections)
+        {
+            Deque<PooledHttpConnection> idleQueue = _idleConnections.get(connection.getPoolKey());
+            if (idleQueue == null)
+            {
+                idleQueue = new ArrayDeque<PooledHttpConnection>();
+                _idleConnections.put(connection.getPoolKey(), idleQueue);
+            }
+            if (idleQueue.size() < _maxIdleConnectionsPerHost)
+            {
+                idleQueue.offerFirst(connection);
+                accepted = true;
+            }
+        }
+
+        if (!accepted)
+        {
+            connection.close();
+        }
+
+        // Connections are released from many threads at once; only the one that wins the update does the sweep
+        long now = System.currentTimeMillis();
+        long lastEvictionTime = _lastEvictionTime.get();
+        if (now - lastEvictionTime > _idleTimeoutMs / 2 && _lastEvictionTime.compareAndSet(lastEvictionTime, now))
+        {
+            evictIdleConnections();
+        }
+    }
+
+    void recordRetry()
+    {
+        _retriedRequests.incrementAndGet();
+    }
+
+    /// <summary>
+    /// Closes every pooled connection that has been idle longer than the idle timeout
+    /// </summary>
+    public void evictIdleConnections()
+    {
+        long now = System.currentTimeMillis();
+        synchronized (_idleConnections)
+        {
+            for (Deque<PooledHttpConnection> idleQueue : _idleConnections.values())
+            {
+                Iterator<PooledHttpConnection> iter = idleQueue.iterator();
+                while (iter.hasNext())
+                {
+                    PooledHttpConnection connection = iter.next();
+                    if (now - connection.getLastUsedTime() > _idleTimeoutMs)
+                    {
+                        iter.remove();
+                        connection.close();
+                        _idleConnectionsEvicted.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    /// <summary>
+    /// Closes every idle connection in the pool. Connections that are currently in use are unaffected.
+    /// </summary>
+    public void closeAll()
+    {
+        synchronized (_idleConnections)
+        {
+            for (Deque<PooledHttpConnection> idleQueue : _idleConnections.values())
+            {
+                for (PooledHttpConnection connection : idleQueue)
+                {
+                    connection.close();
+                }
+            }
+            _idleConnections.clear();
+        }
+    }
+
+    public int getIdleConnectionCount()
+    {
+        int count = 0;
+        synchronized (_idleConnections)
+        {
+            for (Deque<PooledHttpConnection> idleQueue : _idleConnections.values())
+            {
+                count += idleQueue.size();
+            }
+        }
+        return count;
+    }
+
+    public Statistics getStatistics()
+    {
+        Statistics returnVal = new Statistics();
+        returnVal.ConnectionsCreated = _connectionsCreated.get();
+        returnVal.ConnectionsReused = _connectionsReused.get();
+        returnVal.StaleConnectionsDiscarded = _staleConnectionsDiscarded.get();
+        returnVal.IdleConnectionsEvicted = _idleConnectionsEvicted.get();
+        returnVal.RetriedRequests = _retriedRequests.get();
+        returnVal.IdleConnections = getIdleConnectionCount();
+        return returnVal;
+    }
+
+    /**
+     * A point-in-time snapshot of pool usage
+     */
+    public static class Statistics
+    {
+        public long ConnectionsCreated;
+        public long ConnectionsReused;
+        public long StaleConnectionsDiscarded;
+        public long IdleConnectionsEvicted;
+        public long RetriedRequests;
+        public int IdleConnections;
+
+        /// <summary>
+        /// The fraction of requests (0.0 to 1.0) that were sent over an already-open connection
+        /// </summary>
+        public double getReuseRate()
+        {
+            long total = ConnectionsCreated + ConnectionsReused;
+            if (total == 0)
+                return 0;
+            return (double)ConnectionsReused / (double)total;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("created=%d reused=%d (%.1f%%) stale=%d evicted=%d retried=%d idle=%d",
+                    ConnectionsCreated, ConnectionsReused, getReuseRate() * 100, StaleConnectionsDiscarded,
+                    IdleConnectionsEvicted, RetriedRequests, IdleConnections);
+        }
+    }
+}
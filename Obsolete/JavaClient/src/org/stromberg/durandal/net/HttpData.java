@@ -1,17 +1,35 @@
 package org.stromberg.durandal.net;
 
+import java.io.InputStream;
+
 /**
  *
  * @author lostromb
  */
 public class HttpData
 {
-    public String Headers;
+    // The request or status line, split into its three parts. Null if no message could be read.
+    public String[] StartLine;
+    public HttpHeaders Headers;
     public byte[] Payload;
+    public InputStream PayloadStream;
+    // Only set when the body was read with size limits; see HttpHelpers.readHttpData(InputStream, long, long)
+    public HttpPayload Body;
+    // The size in bytes of the start line and headers as they were received
+    public int HeaderLength;
 
-    public HttpData(String headers, byte[] payload)
+    public HttpData(String[] startLine, HttpHeaders headers, byte[] payload)
     {
+        StartLine = startLine;
         Headers = headers;
         Payload = payload;
     }
+
+    public HttpData(String[] startLine, HttpHeaders headers, InputStream payloadStream)
+    {
+        StartLine = startLine;
+        Headers = headers;
+        Payload = new byte[0];
+        PayloadStream = payloadStream;
+    }
 }
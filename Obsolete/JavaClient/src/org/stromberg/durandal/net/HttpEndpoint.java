@@ -0,0 +1,181 @@
+package org.stromberg.durandal.net;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One server that an HttpClient can send requests to, along with the live statistics that
+ * a LoadBalancer uses to choose between servers: the number of requests in flight, a moving
+ * average of recent latency, and whether the server has been ejected for failing.
+ * @author lostromb
+ */
+public class HttpEndpoint
+{
+    // Weight given to the newest latency sample in the moving average
+    private static final double LATENCY_DECAY = 0.3;
+
+    private final String _host;
+    private final int _port;
+    private final String _poolKey;
+    private InetSocketAddress _resolvedAddress = null;
+
+    private final AtomicInteger _inFlight = new AtomicInteger();
+    private volatile double _averageLatency = 0;
+    private int _consecutiveFailures = 0;
+    private volatile boolean _ejected = false;
+
+    public HttpEndpoint(String host, int port)
+    {
+        _host = host;
+        _port = port;
+        _poolKey = HttpConnectionPool.getPoolKey(host, port);
+    }
+
+    /// <summary>
+    /// Parses a comma-separated list of "host" or "host:port" entries, such as "10.0.0.5,10.0.0.6:62293".
+    /// Entries without a port use the default one.
+    /// </summary>
+    public static List<HttpEndpoint> parseList(String hosts, int defaultPort)
+    {
+        List<HttpEndpoint> returnVal = new ArrayList<HttpEndpoint>();
+        for (String entry : hosts.split(","))
+        {
+            entry = entry.trim();
+            if (entry.isEmpty())
+                continue;
+            int portSeparator = entry.lastIndexOf(':');
+            if (portSeparator > 0)
+            {
+                try
+                {
+                    returnVal.add(new HttpEndpoint(entry.substring(0, portSeparator), Integer.parseInt(entry.substring(portSeparator + 1))));
+                    continue;
+                }
+                catch (NumberFormatException e)
+                {
+                    System.err.println("Invalid port in HTTP endpoint " + entry);
+                    continue;
+                }
+            }
+            returnVal.add(new HttpEndpoint(entry, defaultPort));
+        }
+        return returnVal;
+    }
+
+    public String getHost()
+    {
+        return _host;
+    }
+
+    public int getPort()
+    {
+        return _port;
+    }
+
+    /// <summary>
+    /// The host:port form of this endpoint, which is also how the connection pool knows it
+    /// </summary>
+    public String getPoolKey()
+    {
+        return _poolKey;
+    }
+
+    /// <summary>
+    /// The address to connect to. The host is resolved once and kept, rather than doing a DNS lookup on every request.
+    /// </summary>
+    public InetSocketAddress getResolvedAddress()
+    {
+        InetSocketAddress returnVal = _resolvedAddress;
+        if (returnVal == null || returnVal.isUnresolved())
+        {
+            returnVal = new InetSocketAddress(_host, _port);
+            _resolvedAddress = returnVal;
+        }
+        return returnVal;
+    }
+
+    public int getInFlightCount()
+    {
+        return _inFlight.get();
+    }
+
+    /// <summary>
+    /// Exponentially weighted moving average of the latency of recent successful requests, in milliseconds
+    /// </summary>
+    public double getAverageLatency()
+    {
+        return _averageLatency;
+    }
+
+    public boolean isEjected()
+    {
+        return _ejected;
+    }
+
+    public synchronized int getConsecutiveFailures()
+    {
+        return _consecutiveFailures;
+    }
+
+    /// <summary>
+    /// The expected cost of sending one more request here; lower is better. Queueing behind the requests
+    /// already in flight is what makes a slow server slower, so latency is scaled by the in-flight count.
+    /// A server with no history yet scores zero so that it gets tried.
+    /// </summary>
+    double getLoadScore()
+    {
+        return _averageLatency * (_inFlight.get() + 1);
+    }
+
+    void onRequestStarted()
+    {
+        _inFlight.incrementAndGet();
+    }
+
+    void onRequestFinished()
+    {
+        _inFlight.decrementAndGet();
+    }
+
+    /// <summary>
+    /// Records a success, and returns true if this re-admitted an ejected endpoint. Health probes pass
+    /// a negative latency, since how fast a server answers a probe says little about how fast it answers queries.
+    /// </summary>
+    synchronized boolean recordSuccess(long latencyMs)
+    {
+        if (latencyMs >= 0)
+        {
+            double average = _averageLatency;
+            _averageLatency = average == 0 ? latencyMs : (LATENCY_DECAY * latencyMs) + ((1 - LATENCY_DECAY) * average);
+        }
+        _consecutiveFailures = 0;
+        if (_ejected)
+        {
+            _ejected = false;
+            return true;
+        }
+        return false;
+    }
+
+    /// <summary>
+    /// Records a failure, and returns true if this caused the endpoint to be ejected
+    /// </summary>
+    synchronized boolean recordFailure(int ejectionThreshold)
+    {
+        _consecutiveFailures++;
+        if (!_ejected && _consecutiveFailures >= ejectionThreshold)
+        {
+            _ejected = true;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString()
+    {
+        return _poolKey;
+    }
+}
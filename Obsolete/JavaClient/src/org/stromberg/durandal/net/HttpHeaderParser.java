@@ -0,0 +1,301 @@
+package org.stromberg.durandal.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An incremental parser for the start line and headers of an HTTP message. Bytes can be
+ * fed in pieces of any size as they arrive; the parser finds the blank line that ends the
+ * headers and splits out the start line and each header field in the same pass, without
+ * buffering the whole header block, rescanning it, or using regexes. Only the current line
+ * is held in a reusable buffer, so an instance should be reset() and reused between messages.
+ * @author lostromb
+ */
+public class HttpHeaderParser
+{
+    /// <summary>
+    /// Messages whose headers are longer than this are rejected, so a misbehaving peer can't make us buffer forever
+    /// </summary>
+    public static final int MAX_HEADER_BYTES = 65536;
+
+    private static final int STATE_START_LINE = 0;
+    private static final int STATE_HEADERS = 1;
+    private static final int STATE_COMPLETE = 2;
+
+    private ByteBuffer _line = ByteBuffer.allocate(256);
+    private int _state;
+    private int _colonIndex;
+    private int _headerBytes;
+
+    private String[] _startLine;
+    private HttpHeaders _headers;
+    private long _contentLength;
+    private boolean _chunked;
+    private boolean _keepAlive;
+
+    public HttpHeaderParser()
+    {
+        reset();
+    }
+
+    /// <summary>
+    /// Prepares the parser for a new message. The results of the previous message are not modified,
+    /// so they can still be handed off to whoever is consuming them.
+    /// </summary>
+    public void reset()
+    {
+        _line.clear();
+        _state = STATE_START_LINE;
+        _colonIndex = -1;
+        _headerBytes = 0;
+        _startLine = new String[3];
+        _headers = new HttpHeaders();
+        _contentLength = -1;
+        _chunked = false;
+        _keepAlive = false;
+    }
+
+    /// <summary>
+    /// Consumes bytes from the buffer until either the headers are complete or the buffer is empty.
+    /// Returns true if the headers are complete, in which case the buffer is left positioned at the
+    /// first byte of the body.
+    /// </summary>
+    public boolean parse(ByteBuffer input) throws IOException
+    {
+        while (_state != STATE_COMPLETE && input.hasRemaining())
+        {
+            accept(input.get());
+        }
+        return _state == STATE_COMPLETE;
+    }
+
+    /// <summary>
+    /// Reads from the stream until the headers are complete. No bytes past the end of the headers are
+    /// consumed, so the stream should be buffered. Returns false if the stream ended first.
+    /// </summary>
+    public boolean parse(InputStream stream) throws IOException
+    {
+        while (_state != STATE_COMPLETE)
+        {
+            int nextByte = stream.read();
+            if (nextByte < 0)
+            {
+                return false;
+            }
+            accept((byte)nextByte);
+        }
+        return true;
+    }
+
+    public boolean isComplete()
+    {
+        return _state == STATE_COMPLETE;
+    }
+
+    /// <summary>
+    /// The three space-separated parts of the request or status line, e.g. {"GET", "/index.html", "HTTP/1.1"}
+    /// or {"HTTP/1.1", "200", "OK"}. Parts that were missing from the message are null.
+    /// </summary>
+    public String[] getStartLine()
+    {
+        return _startLine;
+    }
+
+    public HttpHeaders getHeaders()
+    {
+        return _headers;
+    }
+
+    /// <summary>
+    /// The value of the Content-Length header, or -1 if there was none
+    /// </summary>
+    public long getContentLength()
+    {
+        return _contentLength;
+    }
+
+    /// <summary>
+    /// Returns true if the body uses "Transfer-Encoding: chunked"
+    /// </summary>
+    public boolean isChunked()
+    {
+        return _chunked;
+    }
+
+    /// <summary>
+    /// Returns true if the message had "Connection: keep-alive"
+    /// </summary>
+    public boolean isKeepAlive()
+    {
+        return _keepAlive;
+    }
+
+    /// <summary>
+    /// The number of bytes consumed so far, which once the headers are complete is the size of the start line and headers
+    /// </summary>
+    public int getHeaderLength()
+    {
+        return _headerBytes;
+    }
+
+    private void accept(byte nextByte) throws IOException
+    {
+        if (++_headerBytes > MAX_HEADER_BYTES)
+        {
+            throw new IOException("HTTP headers are longer than " + MAX_HEADER_BYTES + " bytes");
+        }
+
+        if (nextByte == '\n')
+        {
+            endOfLine();
+            return;
+        }
+
+        if (!_line.hasRemaining())
+        {
+            ByteBuffer newLine = ByteBuffer.allocate(_line.capacity() * 2);
+            _line.flip();
+            newLine.put(_line);
+            _line = newLine;
+        }
+
+        if (nextByte == ':' && _colonIndex < 0)
+        {
+            _colonIndex = _line.position();
+        }
+        _line.put(nextByte);
+    }
+
+    private void endOfLine()
+    {
+        byte[] data = _line.array();
+        int length = _line.position();
+        if (length > 0 && data[length - 1] == '\r')
+        {
+            length--;
+        }
+
+        if (_state == STATE_START_LINE)
+        {
+            // Stray blank lines before the start line are allowed (RFC 7230 section 3.5)
+            if (length > 0)
+            {
+                parseStartLine(data, length);
+                _state = STATE_HEADERS;
+            }
+        }
+        else if (length == 0)
+        {
+            _state = STATE_COMPLETE;
+        }
+        else if (data[0] == ' ' || data[0] == '\t')
+        {
+            // Obsolete line folding; the line continues the previous header's value
+            int lastHeader = _headers.size() - 1;
+            if (lastHeader >= 0)
+            {
+                String continuation = decode(data, 0, length);
+                if (!continuation.isEmpty())
+                {
+                    _headers.setValue(lastHeader, _headers.getValue(lastHeader) + " " + continuation);
+                }
+            }
+        }
+        else if (_colonIndex > 0)
+        {
+            // Only the first colon separates the name from the value; values like "Host: localhost:62292" can contain more
+            String name = decodeName(data, _colonIndex);
+            String value = decode(data, _colonIndex + 1, length);
+            _headers.add(name, value);
+            interpretHeader(name, value);
+        }
+
+        _line.clear();
+        _colonIndex = -1;
+    }
+
+    private void parseStartLine(byte[] data, int length)
+    {
+        int partStart = 0;
+        for (int part = 0; part < 2; part++)
+        {
+            int partEnd = partStart;
+            while (partEnd < length && data[partEnd] != ' ')
+            {
+                partEnd++;
+            }
+            if (partEnd >= length)
+            {
+                if (partEnd > partStart)
+                {
+                    _startLine[part] = new String(data, partStart, partEnd - partStart, StandardCharsets.UTF_8);
+                    // A status line is allowed to have an empty reason phrase
+                    if (part == 1)
+                    {
+                        _startLine[2] = "";
+                    }
+                }
+                return;
+            }
+            _startLine[part] = new String(data, partStart, partEnd - partStart, StandardCharsets.UTF_8);
+            partStart = partEnd + 1;
+        }
+        // The last part is the rest of the line, since a reason phrase can contain spaces
+        _startLine[2] = new String(data, partStart, length - partStart, StandardCharsets.UTF_8);
+    }
+
+    private void interpretHeader(String name, String value)
+    {
+        // Names of interest are always interned, so comparing references is enough
+        if (name == "Content-Length")
+        {
+            try
+            {
+                _contentLength = Long.parseLong(value);
+            }
+            catch (NumberFormatException e)
+            {
+                _contentLength = -1;
+            }
+        }
+        else if (name == "Transfer-Encoding")
+        {
+            _chunked = value.regionMatches(true, value.length() - 7, "chunked", 0, 7);
+        }
+        else if (name == "Connection")
+        {
+            _keepAlive = value.equalsIgnoreCase("keep-alive");
+        }
+    }
+
+    /// <summary>
+    /// Decodes a header name, using the shared instance if it is a well-known one
+    /// </summary>
+    private static String decodeName(byte[] data, int end)
+    {
+        while (end > 0 && (data[end - 1] == ' ' || data[end - 1] == '\t'))
+        {
+            end--;
+        }
+        String knownName = HttpHeaders.internName(data, 0, end);
+        return knownName != null ? knownName : new String(data, 0, end, StandardCharsets.UTF_8);
+    }
+
+    /// <summary>
+    /// Decodes a range of the line buffer as a string, with surrounding whitespace trimmed off
+    /// </summary>
+    private static String decode(byte[] data, int start, int end)
+    {
+        while (start < end && (data[start] == ' ' || data[start] == '\t'))
+        {
+            start++;
+        }
+        while (end > start && (data[end - 1] == ' ' || data[end - 1] == '\t'))
+        {
+            end--;
+        }
+        return new String(data, start, end - start, StandardCharsets.UTF_8);
+    }
+}
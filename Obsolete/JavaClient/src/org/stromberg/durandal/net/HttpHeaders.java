@@ -0,0 +1,249 @@
+package org.stromberg.durandal.net;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The header fields of an HTTP message. Names are matched without regard to case, the same
+ * name can appear more than once, and the order that fields were added in is preserved.
+ * Fields are kept in a pair of flat arrays rather than a hash table, since a typical message
+ * has fewer than 16 of them and a linear scan over that many is cheaper than hashing. Well-known
+ * names are interned, so they are usually matched by reference before falling back to a
+ * case-insensitive comparison.
+ * @author lostromb
+ */
+public class HttpHeaders
+{
+    private static final int DEFAULT_CAPACITY = 16;
+
+    // Canonical spellings of the headers we see the most. Parsed names that match one of these
+    // case-insensitively are replaced with the constant, so no string is allocated for them.
+    private static final String[] WELL_KNOWN_NAMES = new String[]
+    {
+        "Accept",
+        "Accept-Encoding",
+        "Authenticated",
+        "Cache-Control",
+        "Connection",
+        "Content-Encoding",
+        "Content-Length",
+        "Content-Type",
+        "Date",
+        "ETag",
+        "Host",
+        "If-Modified-Since",
+        "If-None-Match",
+        "Keep-Alive",
+        "Last-Modified",
+        "Location",
+        "Retry-After",
+        "Server",
+        "Transfer-Encoding",
+        "Triggered",
+        "User-Agent",
+        "Vary",
+    };
+
+    private String[] _names;
+    private String[] _values;
+    private int _count = 0;
+
+    public HttpHeaders()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public HttpHeaders(int initialCapacity)
+    {
+        _names = new String[initialCapacity];
+        _values = new String[initialCapacity];
+    }
+
+    /// <summary>
+    /// Returns the canonical instance of a well-known header name stored in the given bytes, or null
+    /// if the name is not one of the well-known ones. Used by the parser to avoid allocating names.
+    /// </summary>
+    static String internName(byte[] data, int start, int length)
+    {
+        for (String knownName : WELL_KNOWN_NAMES)
+        {
+            if (knownName.length() != length)
+                continue;
+            int c = 0;
+            while (c < length && toLowerAscii(data[start + c]) == toLowerAscii((byte)knownName.charAt(c)))
+            {
+                c++;
+            }
+            if (c == length)
+                return knownName;
+        }
+        return null;
+    }
+
+    /// <summary>
+    /// Returns the canonical instance of a well-known header name, or the name itself if it is not well-known
+    /// </summary>
+    public static String internName(String name)
+    {
+        for (String knownName : WELL_KNOWN_NAMES)
+        {
+            if (knownName.equalsIgnoreCase(name))
+                return knownName;
+        }
+        return name;
+    }
+
+    /// <summary>
+    /// Returns the first value of the given header, or null if it is not present
+    /// </summary>
+    public String get(String name)
+    {
+        int index = indexOf(name, 0);
+        return index < 0 ? null : _values[index];
+    }
+
+    /// <summary>
+    /// Returns every value of the given header in the order they appeared. The list is empty if the header is not present.
+    /// </summary>
+    public List<String> getAll(String name)
+    {
+        List<String> returnVal = new ArrayList<String>();
+        int index = indexOf(name, 0);
+        while (index >= 0)
+        {
+            returnVal.add(_values[index]);
+            index = indexOf(name, index + 1);
+        }
+        return returnVal;
+    }
+
+    public boolean containsKey(String name)
+    {
+        return indexOf(name, 0) >= 0;
+    }
+
+    /// <summary>
+    /// Sets the value of a header, replacing all of its existing values
+    /// </summary>
+    public void put(String name, String value)
+    {
+        int index = indexOf(name, 0);
+        if (index < 0)
+        {
+            add(name, value);
+            return;
+        }
+
+        _values[index] = value;
+        removeFrom(name, index + 1);
+    }
+
+    /// <summary>
+    /// Adds a value for a header, keeping any values it already has
+    /// </summary>
+    public void add(String name, String value)
+    {
+        if (_count == _names.length)
+        {
+            // A copy of an empty set of headers starts out with no room at all
+            int newCapacity = Math.max(DEFAULT_CAPACITY, _count * 2);
+            _names = Arrays.copyOf(_names, newCapacity);
+            _values = Arrays.copyOf(_values, newCapacity);
+        }
+        _names[_count] = name;
+        _values[_count] = value;
+        _count++;
+    }
+
+    /// <summary>
+    /// Removes every value of the given header. Returns true if there were any.
+    /// </summary>
+    public boolean remove(String name)
+    {
+        return removeFrom(name, 0);
+    }
+
+    public void clear()
+    {
+        Arrays.fill(_names, 0, _count, null);
+        Arrays.fill(_values, 0, _count, null);
+        _count = 0;
+    }
+
+    public int size()
+    {
+        return _count;
+    }
+
+    public boolean isEmpty()
+    {
+        return _count == 0;
+    }
+
+    /// <summary>
+    /// The name of the field at the given position. Together with getValue() and size(), this
+    /// allows iterating over every field without allocating.
+    /// </summary>
+    public String getName(int index)
+    {
+        return _names[index];
+    }
+
+    public String getValue(int index)
+    {
+        return _values[index];
+    }
+
+    void setValue(int index, String value)
+    {
+        _values[index] = value;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder returnVal = new StringBuilder("{");
+        for (int c = 0; c < _count; c++)
+        {
+            if (c > 0)
+                returnVal.append(", ");
+            returnVal.append(_names[c]).append('=').append(_values[c]);
+        }
+        return returnVal.append('}').toString();
+    }
+
+    private int indexOf(String name, int startIndex)
+    {
+        for (int c = startIndex; c < _count; c++)
+        {
+            if (_names[c] == name || _names[c].equalsIgnoreCase(name))
+                return c;
+        }
+        return -1;
+    }
+
+    private boolean removeFrom(String name, int startIndex)
+    {
+        int writeIndex = startIndex;
+        for (int readIndex = startIndex; readIndex < _count; readIndex++)
+        {
+            if (_names[readIndex] == name || _names[readIndex].equalsIgnoreCase(name))
+                continue;
+            _names[writeIndex] = _names[readIndex];
+            _values[writeIndex] = _values[readIndex];
+            writeIndex++;
+        }
+
+        boolean removedAny = writeIndex != _count;
+        Arrays.fill(_names, writeIndex, _count, null);
+        Arrays.fill(_values, writeIndex, _count, null);
+        _count = writeIndex;
+        return removedAny;
+    }
+
+    private static byte toLowerAscii(byte value)
+    {
+        return value >= 'A' && value <= 'Z' ? (byte)(value + 32) : value;
+    }
+}
@@ -4,16 +4,24 @@
  */
 package org.stromberg.durandal.net;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  *
@@ -29,102 +37,344 @@ public class HttpHelpers
     /// <returns></returns>
     public static HttpData readHttpData(InputStream stream) throws IOException
     {
-        ByteArrayOutputStream headerBucket = new ByteArrayOutputStream();
-        ByteArrayOutputStream payloadBucket = new ByteArrayOutputStream();
-
-        String headerString = "";
-        boolean readingPayload = false;
-        int contentRemaining = Integer.MAX_VALUE;
-        
-        byte[] inputBuf = new byte[1024];
-        int totalBytesRead = 0;
-        do
-        {
-            int bytesRead = 0;
-            bytesRead = stream.read(inputBuf);
-            if (bytesRead == 0)
-                continue;
-            if (bytesRead < 0) // End of stream
-                break;
-
-            if (readingPayload)
+        return readHttpData(stream, false);
+    }
+
+    /// <summary>
+    /// Reads a response to a request that was sent with the given method. A reply to HEAD never has a body,
+    /// even though its headers describe one, so it must not be read as if it had.
+    /// </summary>
+    public static HttpData readHttpData(InputStream stream, String requestMethod) throws IOException
+    {
+        HttpData returnVal = readHttpHeaders(stream, false, isHeadRequest(requestMethod));
+        returnVal.Payload = readFully(returnVal.PayloadStream);
+        returnVal.PayloadStream = null;
+        return returnVal;
+    }
+
+    static HttpData readHttpData(InputStream stream, boolean isRequest) throws IOException
+    {
+        HttpData returnVal = readHttpHeaders(stream, isRequest);
+        returnVal.Payload = readFully(returnVal.PayloadStream);
+        returnVal.PayloadStream = null;
+        return returnVal;
+    }
+
+    // Each thread reuses one parser, so reading a message allocates nothing beyond the header strings themselves
+    private static final ThreadLocal<HttpHeaderParser> _headerParser = ThreadLocal.withInitial(HttpHeaderParser::new);
+
+    /// <summary>
+    /// Reads a message like readHttpData(), but with limits on the body. A body whose Content-Length is over
+    /// maxBodySize is rejected with a PayloadTooLargeException before any of it is read, and a body bigger than
+    /// spillThreshold is written to a temp file rather than the heap. The body is returned in Body; Payload is
+    /// only filled in if the body is on the heap, and is null otherwise.
+    /// </summary>
+    public static HttpData readHttpData(InputStream stream, long spillThreshold, long maxBodySize) throws IOException
+    {
+        return readHttpData(stream, spillThreshold, maxBodySize, false);
+    }
+
+    /// <summary>
+    /// Reads a response with limits on the body, as above, to a request that was sent with the given method
+    /// </summary>
+    public static HttpData readHttpData(InputStream stream, String requestMethod, long spillThreshold, long maxBodySize) throws IOException
+    {
+        return readHttpData(stream, spillThreshold, maxBodySize, false, isHeadRequest(requestMethod));
+    }
+
+    static HttpData readHttpData(InputStream stream, long spillThreshold, long maxBodySize, boolean isRequest) throws IOException
+    {
+        return readHttpData(stream, spillThreshold, maxBodySize, isRequest, false);
+    }
+
+    private static HttpData readHttpData(InputStream stream, long spillThreshold, long maxBodySize, boolean isRequest, boolean isHeadResponse) throws IOException
+    {
+        HttpData returnVal = readHttpHeaders(stream, isRequest, isHeadResponse);
+        long contentLength = -1;
+        if (returnVal.PayloadStream instanceof ContentLengthInputStream)
+        {
+            contentLength = ((ContentLengthInputStream)returnVal.PayloadStream).getRemaining();
+        }
+
+        returnVal.Body = HttpPayload.read(returnVal.PayloadStream, contentLength, spillThreshold, maxBodySize);
+        returnVal.PayloadStream = null;
+        // A spilled body has no array; leaving Payload null makes code that expects one fail loudly instead of seeing no body
+        returnVal.Payload = returnVal.Body.isSpilled() ? null : returnVal.Body.getHeapData();
+        return returnVal;
+    }
+
+    /// <summary>
+    /// Reads only the headers of an HTTP message from a stream, and returns them along
+    /// with a stream that yields exactly the message body, framed by either Content-Length
+    /// or chunked encoding. Nothing past the end of this message is consumed from the
+    /// underlying stream as long as the body stream is read to completion.
+    /// </summary>
+    public static HttpData readHttpHeaders(InputStream stream) throws IOException
+    {
+        return readHttpHeaders(stream, false);
+    }
+
+    /// <summary>
+    /// Reads the headers of a response to a request that was sent with the given method (see readHttpData)
+    /// </summary>
+    public static HttpData readHttpHeaders(InputStream stream, String requestMethod) throws IOException
+    {
+        return readHttpHeaders(stream, false, isHeadRequest(requestMethod));
+    }
+
+    /// <summary>
+    /// Reads headers as above. The framing of a request body differs from a response's in one way: a request
+    /// with neither Content-Length nor chunking has no body, whereas a response's body would run until the
+    /// connection closes. Getting that wrong would hang every persistent connection waiting for a body.
+    /// </summary>
+    static HttpData readHttpHeaders(InputStream stream, boolean isRequest) throws IOException
+    {
+        return readHttpHeaders(stream, isRequest, false);
+    }
+
+    private static HttpData readHttpHeaders(InputStream stream, boolean isRequest, boolean isHeadResponse) throws IOException
+    {
+        // The parser reads one byte at a time so we never consume any of the body here. The buffered stream makes this cheap
+        InputStream bufferedStream = stream instanceof BufferedInputStream ? stream : new BufferedInputStream(stream);
+        HttpHeaderParser parser = _headerParser.get();
+        parser.reset();
+        if (!parser.parse(bufferedStream) || parser.getStartLine()[0] == null)
+        {
+            // Stream ended before the headers did
+            return new HttpData(null, parser.getHeaders(), new ByteArrayInputStream(new byte[0]));
+        }
+
+        HttpData returnVal = new HttpData(parser.getStartLine(), parser.getHeaders(), createPayloadStream(parser, bufferedStream, isRequest, isHeadResponse));
+        returnVal.HeaderLength = parser.getHeaderLength();
+        return returnVal;
+    }
+
+    private static InputStream createPayloadStream(HttpHeaderParser parser, InputStream stream, boolean isRequest, boolean isHeadResponse)
+    {
+        if (!isRequest && (isHeadResponse || isBodilessResponse(parser.getStartLine())))
+        {
+            return new ContentLengthInputStream(stream, 0);
+        }
+
+        if (parser.isChunked())
+        {
+            return new ChunkedInputStream(stream);
+        }
+
+        if (parser.getContentLength() >= 0)
+        {
+            return new ContentLengthInputStream(stream, parser.getContentLength());
+        }
+        else if (isRequest || parser.isKeepAlive())
+        {
+            // If connection == keepalive, and no content length was found, assume content-length is 0
+            return new ContentLengthInputStream(stream, 0);
+        }
+
+        // Otherwise the body runs until the connection closes
+        return stream;
+    }
+
+    /// <summary>
+    /// True for a response status that never has a body (1xx, 204 and 304), whatever its headers say
+    /// </summary>
+    static boolean isBodilessResponse(String[] statusLine)
+    {
+        String code = statusLine[1];
+        return code != null && (code.startsWith("1") || code.equals("204") || code.equals("304"));
+    }
+
+    static boolean isBodilessResponse(int responseCode)
+    {
+        return responseCode / 100 == 1 || responseCode == 204 || responseCode == 304;
+    }
+
+    static boolean isHeadRequest(String requestMethod)
+    {
+        return "HEAD".equalsIgnoreCase(requestMethod);
+    }
+
+    /// <summary>
+    /// True for the methods that RFC 7231 defines as idempotent, which a client may safely send more than once
+    /// </summary>
+    public static boolean isIdempotentMethod(String requestMethod)
+    {
+        return "GET".equalsIgnoreCase(requestMethod) ||
+                "HEAD".equalsIgnoreCase(requestMethod) ||
+                "OPTIONS".equalsIgnoreCase(requestMethod) ||
+                "TRACE".equalsIgnoreCase(requestMethod) ||
+                "PUT".equalsIgnoreCase(requestMethod) ||
+                "DELETE".equalsIgnoreCase(requestMethod);
+    }
+
+    public static byte[] readFully(InputStream stream) throws IOException
+    {
+        ByteArrayOutputStream bucket = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = stream.read(buf)) > 0)
+        {
+            bucket.write(buf, 0, bytesRead);
+        }
+        return bucket.toByteArray();
+    }
+
+    
+    /// <summary>
+    /// Determines whether the connection that a response was read from can be used for another request
+    /// </summary>
+    public static boolean isPersistentConnection(DurandalHttpResponse response)
+    {
+        String connectionHeader = response.ResponseHeaders.get("Connection");
+        if (connectionHeader != null && connectionHeader.equalsIgnoreCase("close"))
+        {
+            return false;
+        }
+
+        // HTTP/1.0 servers must opt in to keepalive explicitly
+        if (!response.ProtocolVersion.equals("HTTP/1.1") &&
+            (connectionHeader == null || !connectionHeader.equalsIgnoreCase("keep-alive")))
+        {
+            return false;
+        }
+
+        // Without a content length or chunking, the body was delimited by the server closing the socket
+        // (unless the response is one that never has a body)
+        return response.ResponseHeaders.containsKey("Content-Length") ||
+                "chunked".equalsIgnoreCase(response.ResponseHeaders.get("Transfer-Encoding")) ||
+                isBodilessResponse(response.ResponseCode);
+    }
+
+    /// <summary>
+    /// Returns the delay that a response's Retry-After header asks for, in milliseconds, or -1 if there isn't one.
+    /// Both the delay-seconds and the HTTP-date forms are understood.
+    /// </summary>
+    public static long getRetryAfter(HttpHeaders headers)
+    {
+        String value = headers.get("Retry-After");
+        if (value == null)
+        {
+            return -1;
+        }
+
+        value = value.trim();
+        try
+        {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        }
+        catch (NumberFormatException e) { }
+
+        try
+        {
+            long retryTime = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            return Math.max(0, retryTime - System.currentTimeMillis());
+        }
+        catch (DateTimeParseException e)
+        {
+            return -1;
+        }
+    }
+
+    /// <summary>
+    /// Formats a time as an HTTP-date (RFC 1123), as used in Last-Modified, Expires and the like
+    /// </summary>
+    public static String formatHttpDate(long timeMillis)
+    {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(timeMillis), ZoneOffset.UTC));
+    }
+
+    /// <summary>
+    /// Parses an HTTP-date into milliseconds since the epoch, or returns -1 if it is missing or malformed
+    /// </summary>
+    public static long parseHttpDate(String value)
+    {
+        if (value == null)
+        {
+            return -1;
+        }
+
+        try
+        {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        }
+        catch (DateTimeParseException e)
+        {
+            return -1;
+        }
+    }
+
+    /// <summary>
+    /// Decides whether the client's cached copy of a resource is still current, so that it can be sent 304 Not Modified
+    /// instead of the resource. Only GET and HEAD requests are considered. If-None-Match is checked against etag if the
+    /// request has it; otherwise If-Modified-Since is checked against lastModified (milliseconds, or -1 if unknown).
+    /// </summary>
+    public static boolean isNotModified(DurandalHttpRequest request, String etag, long lastModified)
+    {
+        if (!"GET".equalsIgnoreCase(request.RequestMethod) && !"HEAD".equalsIgnoreCase(request.RequestMethod))
+        {
+            return false;
+        }
+
+        String ifNoneMatch = request.RequestHeaders.get("If-None-Match");
+        if (ifNoneMatch != null)
+        {
+            if (etag == null)
             {
-                payloadBucket.write(inputBuf, 0, bytesRead);
-                contentRemaining -= bytesRead;
+                return false;
             }
-            else
-            {
-                headerBucket.write(inputBuf, 0, bytesRead);
-                int headerLength = findHttpDelimiter(headerBucket.toByteArray());
 
-                // The client has done sending headers. See if there's any payload to read
-                if (headerLength >= 0)
+            // If-None-Match uses the weak comparison, so W/ prefixes don't matter
+            String opaqueTag = etag.startsWith("W/") ? etag.substring(2) : etag;
+            for (String candidate : ifNoneMatch.split(","))
+            {
+                candidate = candidate.trim();
+                if (candidate.equals("*") || (candidate.startsWith("W/") ? candidate.substring(2) : candidate).equals(opaqueTag))
                 {
-                    // Split the incoming data between the two buckets
-                    int bytesOfHeaderInThisChunk = headerLength - totalBytesRead;
-                    int bytesOfPayloadAlreadyRead = bytesRead - bytesOfHeaderInThisChunk;
-                    if (bytesOfPayloadAlreadyRead > 0)
-                    {
-                        payloadBucket.write(inputBuf, bytesOfHeaderInThisChunk, bytesOfPayloadAlreadyRead);
-                    }
-
-                    // Parse the content-length header, if it exists
-                    byte[] actualHeaderBytes = new byte[totalBytesRead + bytesOfHeaderInThisChunk];
-                    System.arraycopy(headerBucket.toByteArray(), 0, actualHeaderBytes, 0, actualHeaderBytes.length);
-                    
-                    headerString = new String(actualHeaderBytes, Charset.forName("UTF-8"));
-
-                    Matcher contentLengthRipper = Pattern.compile("[Cc]ontent-?[Ll]ength: ?([0-9]+)").matcher(headerString);
-                    if (contentLengthRipper.find())
-                    {
-                        contentRemaining = Integer.parseInt(contentLengthRipper.group(1)) - bytesOfPayloadAlreadyRead;
-                    }
-                    else if (headerString.contains("keep-alive"))
-                    {
-                        // If connection == keepalive, and no content length was found, assume content-length is 0
-                        contentRemaining = 0;
-                    }
-
-                    readingPayload = true;
+                    return true;
                 }
             }
+            return false;
+        }
 
-            totalBytesRead += bytesRead;
-        } while (contentRemaining > 0);
-
-        return new HttpData(headerString, payloadBucket.toByteArray());
+        long ifModifiedSince = parseHttpDate(request.RequestHeaders.get("If-Modified-Since"));
+        // HTTP dates only have whole seconds
+        return lastModified >= 0 && ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
     }
 
-    // Find the \r\n\r\n delimiter between the headers and the payload, or -1 if it doesn't exist
-    // The index that is returned is the index of the start of the payload
-    private static int findHttpDelimiter(byte[] data)
+    /// <summary>
+    /// Makes cancellation of a future that was derived from another one (via thenApply, etc.)
+    /// flow back to the original, so that cancelling a high-level request aborts the underlying I/O.
+    /// </summary>
+    public static <T> CompletableFuture<T> propagateCancellation(CompletableFuture<T> derived, final CompletableFuture<?> source)
     {
-        int delimiterLocation = -1;
-        for (int c = 3; c < data.length && delimiterLocation < 0; c++)
+        derived.whenComplete((result, error) ->
         {
-            if (data[c - 3] == 13 &&
-                data[c - 2] == 10 &&
-                data[c - 1] == 13 &&
-                data[c - 0] == 10)
-                delimiterLocation = c + 1;
-        }
-        return delimiterLocation;
+            if (error instanceof CancellationException)
+            {
+                source.cancel(true);
+            }
+        });
+        return derived;
     }
-    
-    public static Map<String, String> getFormDataFromPayload(Map<String, String> requestHeaders, byte[] payloadData)
+
+    public static Map<String, String> getFormDataFromPayload(HttpHeaders requestHeaders, byte[] payloadData)
+    {
+        return getFormDataFromPayload(requestHeaders, ByteBuffer.wrap(payloadData));
+    }
+
+    /// <summary>
+    /// Parses a form-encoded body from a buffer, such as DurandalHttpRequest.getPayloadBuffer() returns
+    /// </summary>
+    public static Map<String, String> getFormDataFromPayload(HttpHeaders requestHeaders, ByteBuffer payloadData)
     {
-        if (!(requestHeaders.containsKey("Content-Type") &&
-            requestHeaders.get("Content-Type").contains("application/x-www-form-urlencoded")) &&
-            !(requestHeaders.containsKey("Content-type") &&
-            requestHeaders.get("Content-type").contains("application/x-www-form-urlencoded")) &&
-            !(requestHeaders.containsKey("content-type") &&
-            requestHeaders.get("content-type").contains("application/x-www-form-urlencoded")))
+        String contentType = requestHeaders.get("Content-Type");
+        if (contentType == null || !contentType.contains("application/x-www-form-urlencoded"))
         {
             return null;
         }
 
         Map<String, String> returnVal = new HashMap<String, String>();
-        String bigString = new String(payloadData, Charset.forName("UTF-8"));
+        String bigString = Charset.forName("UTF-8").decode(payloadData).toString();
         String[] parts = bigString.split("&");
         for (String part : parts)
         {
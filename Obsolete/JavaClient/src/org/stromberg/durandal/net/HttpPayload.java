@@ -0,0 +1,275 @@
+package org.stromberg.durandal.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The body of an HTTP message that was read with size limits. Bodies up to a threshold are held
+ * in a byte array; anything bigger is spilled to a temp file as it is read, and then exposed as a
+ * read-only MappedByteBuffer so it never has to be copied onto the heap. Call close() when done
+ * with the body so the temp file is deleted.
+ * @author lostromb
+ */
+public class HttpPayload implements Closeable
+{
+    public static final long DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+    public static final long DEFAULT_MAX_BODY_SIZE = 64L * 1024 * 1024;
+
+    private static final int COPY_BUFFER_SIZE = 65536;
+
+    private final byte[] _heapData;
+    private final File _spillFile;
+    private final long _length;
+    private MappedByteBuffer _mappedData;
+
+    private HttpPayload(byte[] heapData)
+    {
+        _heapData = heapData;
+        _spillFile = null;
+        _length = heapData.length;
+        _mappedData = null;
+    }
+
+    private HttpPayload(File spillFile, MappedByteBuffer mappedData)
+    {
+        _heapData = null;
+        _spillFile = spillFile;
+        _length = mappedData.capacity();
+        _mappedData = mappedData;
+    }
+
+    /// <summary>
+    /// Reads an entire body from a stream. If the body's length is known ahead of time (contentLength >= 0)
+    /// and exceeds maxBodySize, this fails before reading anything; otherwise the limit is enforced as the
+    /// body is read. Bodies longer than spillThreshold are written to a temp file instead of the heap.
+    /// </summary>
+    public static HttpPayload read(InputStream body, long contentLength, long spillThreshold, long maxBodySize) throws IOException
+    {
+        // Mapped buffers are indexed by int, so that caps the size of any one body
+        maxBodySize = Math.min(maxBodySize, Integer.MAX_VALUE);
+        if (contentLength > maxBodySize)
+        {
+            throw new PayloadTooLargeException(contentLength, maxBodySize);
+        }
+
+        if (contentLength >= 0 && contentLength <= spillThreshold)
+        {
+            // The common case; read straight into an array of exactly the right size
+            byte[] data = new byte[(int)contentLength];
+            int bytesRead = readFully(body, data, 0, data.length);
+            if (bytesRead < data.length)
+            {
+                data = Arrays.copyOf(data, bytesRead);
+            }
+            return new HttpPayload(data);
+        }
+
+        if (contentLength > spillThreshold)
+        {
+            // Known to be big, so don't bother buffering any of it on the heap
+            return spillToDisk(body, new byte[0], 0, maxBodySize, contentLength);
+        }
+
+        // The length is unknown, so buffer on the heap until the body crosses the threshold
+        int heapLimit = (int)Math.min(Math.min(spillThreshold, maxBodySize), Integer.MAX_VALUE - 16);
+        byte[] heapBuffer = new byte[Math.min(8192, heapLimit + 1)];
+        int heapLength = 0;
+        while (heapLength <= heapLimit)
+        {
+            if (heapLength == heapBuffer.length)
+            {
+                heapBuffer = Arrays.copyOf(heapBuffer, (int)Math.min((long)heapBuffer.length * 2, heapLimit + 1L));
+            }
+            int bytesRead = body.read(heapBuffer, heapLength, heapBuffer.length - heapLength);
+            if (bytesRead < 0)
+            {
+                return new HttpPayload(Arrays.copyOf(heapBuffer, heapLength));
+            }
+            heapLength += bytesRead;
+        }
+
+        if (heapLength > maxBodySize)
+        {
+            throw new PayloadTooLargeException(contentLength, maxBodySize);
+        }
+
+        return spillToDisk(body, heapBuffer, heapLength, maxBodySize, contentLength);
+    }
+
+    private static HttpPayload spillToDisk(InputStream body, byte[] head, int headLength, long maxBodySize, long contentLength) throws IOException
+    {
+        File spillFile = File.createTempFile("durandal-http", ".body");
+        boolean success = false;
+        try (RandomAccessFile file = new RandomAccessFile(spillFile, "rw"))
+        {
+            FileChannel channel = file.getChannel();
+            long totalLength = headLength;
+            file.write(head, 0, headLength);
+
+            byte[] copyBuffer = head.length >= COPY_BUFFER_SIZE ? head : new byte[COPY_BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = body.read(copyBuffer, 0, COPY_BUFFER_SIZE)) > 0)
+            {
+                totalLength += bytesRead;
+                if (totalLength > maxBodySize)
+                {
+                    throw new PayloadTooLargeException(contentLength, maxBodySize);
+                }
+                file.write(copyBuffer, 0, bytesRead);
+            }
+
+            MappedByteBuffer mappedData = channel.map(FileChannel.MapMode.READ_ONLY, 0, totalLength);
+            success = true;
+            return new HttpPayload(spillFile, mappedData);
+        }
+        finally
+        {
+            if (!success)
+            {
+                spillFile.delete();
+            }
+        }
+    }
+
+    private static int readFully(InputStream stream, byte[] buffer, int offset, int length) throws IOException
+    {
+        int totalRead = 0;
+        while (totalRead < length)
+        {
+            int bytesRead = stream.read(buffer, offset + totalRead, length - totalRead);
+            if (bytesRead < 0)
+            {
+                break;
+            }
+            totalRead += bytesRead;
+        }
+        return totalRead;
+    }
+
+    /// <summary>
+    /// Wraps an existing array as a payload, without copying it
+    /// </summary>
+    public static HttpPayload wrap(byte[] data)
+    {
+        return new HttpPayload(data);
+    }
+
+    public long getLength()
+    {
+        return _length;
+    }
+
+    /// <summary>
+    /// Returns true if the body was too big to keep on the heap and lives in a temp file
+    /// </summary>
+    public boolean isSpilled()
+    {
+        return _spillFile != null;
+    }
+
+    /// <summary>
+    /// The body as an array, or null if it was spilled to disk. This is not a copy.
+    /// </summary>
+    public byte[] getHeapData()
+    {
+        return _heapData;
+    }
+
+    /// <summary>
+    /// The body as a read-only buffer, whether it is on the heap or mapped from disk. Each call returns
+    /// an independent view positioned at the start of the body.
+    /// </summary>
+    public ByteBuffer getBuffer()
+    {
+        if (_heapData != null)
+        {
+            return ByteBuffer.wrap(_heapData).asReadOnlyBuffer();
+        }
+        if (_mappedData == null)
+        {
+            throw new IllegalStateException("This payload has been closed");
+        }
+        return _mappedData.duplicate();
+    }
+
+    /// <summary>
+    /// Writes the whole body to a stream, copying a spilled body through a small buffer rather than onto the heap all at once
+    /// </summary>
+    public void writeTo(OutputStream stream) throws IOException
+    {
+        if (_heapData != null)
+        {
+            stream.write(_heapData);
+            return;
+        }
+
+        ByteBuffer buffer = getBuffer();
+        byte[] copyBuffer = new byte[Math.min(COPY_BUFFER_SIZE, buffer.remaining())];
+        while (buffer.hasRemaining())
+        {
+            int length = Math.min(copyBuffer.length, buffer.remaining());
+            buffer.get(copyBuffer, 0, length);
+            stream.write(copyBuffer, 0, length);
+        }
+    }
+
+    public InputStream getInputStream()
+    {
+        if (_heapData != null)
+        {
+            return new ByteArrayInputStream(_heapData);
+        }
+        final ByteBuffer buffer = getBuffer();
+        return new InputStream()
+        {
+            @Override
+            public int read()
+            {
+                return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len)
+            {
+                if (!buffer.hasRemaining())
+                    return -1;
+                int bytesRead = Math.min(len, buffer.remaining());
+                buffer.get(b, off, bytesRead);
+                return bytesRead;
+            }
+
+            @Override
+            public int available()
+            {
+                return buffer.remaining();
+            }
+        };
+    }
+
+    /// <summary>
+    /// Deletes the temp file behind a spilled body. Only on platforms that don't allow deleting a file while it is
+    /// mapped is it left to be removed when the process exits; registering every spilled body for that up front
+    /// would grow the JVM's exit list without bound in a long-running server.
+    /// </summary>
+    @Override
+    public void close()
+    {
+        if (_spillFile != null && _mappedData != null)
+        {
+            _mappedData = null;
+            if (!_spillFile.delete())
+            {
+                _spillFile.deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package org.stromberg.durandal.net;
+
+/**
+ * Handles one route of an HttpServer, producing the response on the calling thread
+ * @author lostromb
+ */
+public interface HttpRequestHandler
+{
+    public DurandalHttpResponse handle(DurandalHttpRequest request);
+}
@@ -0,0 +1,600 @@
+package org.stromberg.durandal.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A shared HTTP cache that sits in front of an origin (usually an HttpReverseProxy), storing 200 responses
+ * to GETs in memory. Entries are keyed by URI plus the values of the request headers named by the response's
+ * Vary, and the cache is bounded by the total size of what it holds rather than by the number of entries,
+ * evicting the least recently used. Freshness comes from the origin's Cache-Control max-age (or Expires);
+ * once an entry is stale it is revalidated with a conditional request, and a 304 makes it fresh again
+ * without sending the body. Responses marked no-store or private are never stored.
+ *
+ * Responses are stored as they stream through to the first client that asked for them, so a miss is no
+ * slower than it would be without the cache.
+ * @author lostromb
+ */
+public class HttpResponseCache
+{
+    // No single response may take more than this fraction of the cache
+    private static final int MAX_ENTRY_FRACTION = 8;
+    // A rough allowance for the bookkeeping of each entry, so that lots of tiny responses are still bounded
+    private static final int ENTRY_OVERHEAD_BYTES = 256;
+    private static final String[] VALIDATOR_HEADERS = { "ETag", "Last-Modified", "Cache-Control", "Expires", "Date" };
+
+    private final long _maxBytes;
+    private final long _maxEntryBytes;
+
+    // Both guarded by this. Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    // The Vary header names last seen for each URI, needed to work out a request's key before looking it up
+    private final Map<String, String[]> _varyByUri = new HashMap<String, String[]>();
+    // Keys whose responses are streaming into the cache right now, so that coalesced copies aren't all captured
+    private final Set<String> _pendingStores = new HashSet<String>();
+    private long _bytesUsed = 0;
+
+    private long _hits = 0;
+    private long _misses = 0;
+    private long _revalidations = 0;
+    private long _stores = 0;
+    private long _evictions = 0;
+
+    public HttpResponseCache(long maxBytes)
+    {
+        _maxBytes = maxBytes;
+        _maxEntryBytes = maxBytes / MAX_ENTRY_FRACTION;
+    }
+
+    /**
+     * A stored response
+     */
+    private static class Entry
+    {
+        public final String Key;
+        public final HttpHeaders Headers;
+        public final byte[] Body;
+        public final long Size;
+        // When the origin last vouched for this response, by sending it or by a 304; Age counts from here
+        public long ValidatedTime;
+        public long FreshUntil;
+
+        public Entry(String key, HttpHeaders headers, byte[] body, long freshUntil)
+        {
+            Key = key;
+            Headers = headers;
+            Body = body;
+            ValidatedTime = System.currentTimeMillis();
+            FreshUntil = freshUntil;
+            long size = body.length + ENTRY_OVERHEAD_BYTES;
+            for (int c = 0; c < headers.size(); c++)
+            {
+                size += headers.getName(c).length() + headers.getValue(c).length();
+            }
+            Size = size;
+        }
+
+        public boolean hasValidators()
+        {
+            return Headers.containsKey("ETag") || Headers.containsKey("Last-Modified");
+        }
+    }
+
+    /// <summary>
+    /// Answers a request from the cache if it can, and otherwise from the origin, storing the origin's response if it is cacheable
+    /// </summary>
+    public CompletableFuture<DurandalHttpResponse> get(DurandalHttpRequest request, AsyncHttpRequestHandler origin)
+    {
+        if (!isCacheableRequest(request))
+        {
+            return origin.handle(request);
+        }
+
+        String uri = getUri(request);
+        final Entry entry;
+        synchronized (this)
+        {
+            entry = _entries.get(getKey(uri, _varyByUri.get(uri), request));
+            if (entry != null && entry.FreshUntil > System.currentTimeMillis() && !requiresRevalidation(request))
+            {
+                _hits++;
+                return CompletableFuture.completedFuture(createResponse(entry));
+            }
+            _misses++;
+        }
+
+        // We want a full response to store, not a 304 for whatever copy the client has; if the client's copy turns out
+        // to be current, HttpServer answers it with a 304 from our response's validators anyway
+        DurandalHttpRequest originRequest = request.copy();
+        originRequest.RequestHeaders.remove("If-None-Match");
+        originRequest.RequestHeaders.remove("If-Modified-Since");
+        if (entry == null || !entry.hasValidators())
+        {
+            return origin.handle(originRequest).thenApply((response) -> store(uri, request, response));
+        }
+
+        String etag = entry.Headers.get("ETag");
+        String lastModified = entry.Headers.get("Last-Modified");
+        if (etag != null)
+        {
+            originRequest.RequestHeaders.put("If-None-Match", etag);
+        }
+        if (lastModified != null)
+        {
+            originRequest.RequestHeaders.put("If-Modified-Since", lastModified);
+        }
+        return origin.handle(originRequest).thenApply((response) ->
+        {
+            if (response == null || response.ResponseCode != 304)
+            {
+                return store(uri, request, response);
+            }
+
+            closeBody(response);
+            return createResponse(refresh(entry, response));
+        });
+    }
+
+    /// <summary>
+    /// Stores a response from the origin if it is cacheable, and returns the response to send the client. A streamed
+    /// body is stored once the client has read all of it.
+    /// </summary>
+    private DurandalHttpResponse store(String uri, DurandalHttpRequest request, DurandalHttpResponse response)
+    {
+        if (response == null || response.ResponseCode != 200 || !isCacheableResponse(response))
+        {
+            return response;
+        }
+
+        long contentLength = -1;
+        String contentLengthHeader = response.ResponseHeaders.get("Content-Length");
+        if (contentLengthHeader != null)
+        {
+            try
+            {
+                contentLength = Long.parseLong(contentLengthHeader.trim());
+            }
+            catch (NumberFormatException e) {}
+        }
+        if (contentLength > _maxEntryBytes || (response.PayloadStream == null && response.PayloadData.length > _maxEntryBytes))
+        {
+            return response;
+        }
+
+        String[] vary = getVaryHeaders(response);
+        final String key = getKey(uri, vary, request);
+        final HttpHeaders headers = copyHeaders(response.ResponseHeaders);
+        final long freshUntil = getFreshUntil(response.ResponseHeaders);
+        synchronized (this)
+        {
+            _varyByUri.put(uri, vary);
+            if (response.PayloadStream != null && !_pendingStores.add(key))
+            {
+                return response;
+            }
+        }
+
+        if (response.PayloadStream == null)
+        {
+            insert(new Entry(key, headers, response.PayloadData, freshUntil));
+        }
+        else
+        {
+            response.PayloadStream = new CapturingInputStream(response.PayloadStream, key, headers, freshUntil);
+        }
+        return response;
+    }
+
+    /// <summary>
+    /// Updates a stale entry from the 304 that revalidated it
+    /// </summary>
+    private synchronized Entry refresh(Entry entry, DurandalHttpResponse notModified)
+    {
+        _revalidations++;
+        for (String header : VALIDATOR_HEADERS)
+        {
+            String value = notModified.ResponseHeaders.get(header);
+            if (value != null)
+            {
+                entry.Headers.put(header, value);
+            }
+        }
+        entry.ValidatedTime = System.currentTimeMillis();
+        entry.FreshUntil = getFreshUntil(entry.Headers);
+        return entry;
+    }
+
+    private synchronized void insert(Entry entry)
+    {
+        Entry previous = _entries.put(entry.Key, entry);
+        if (previous != null)
+        {
+            _bytesUsed -= previous.Size;
+        }
+        _bytesUsed += entry.Size;
+        _stores++;
+
+        Iterator<Entry> leastRecentlyUsed = _entries.values().iterator();
+        while (_bytesUsed > _maxBytes && leastRecentlyUsed.hasNext())
+        {
+            Entry victim = leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+            _bytesUsed -= victim.Size;
+            _evictions++;
+        }
+    }
+
+    private synchronized void endPendingStore(String key)
+    {
+        _pendingStores.remove(key);
+    }
+
+    /// <summary>
+    /// Builds a response from an entry. This holds the lock because a revalidation may be updating the entry's headers.
+    /// </summary>
+    private synchronized DurandalHttpResponse createResponse(Entry entry)
+    {
+        DurandalHttpResponse returnVal = DurandalHttpResponse.OKResponse();
+        returnVal.ResponseHeaders = copyHeaders(entry.Headers);
+        returnVal.ResponseHeaders.put("Age", Long.toString(Math.max(0, (System.currentTimeMillis() - entry.ValidatedTime) / 1000)));
+        // An entry's body is never modified after it is stored, so every response can share it
+        returnVal.PayloadData = entry.Body;
+        return returnVal;
+    }
+
+    /// <summary>
+    /// Only plain GETs are answered from the cache; partial, authorized and no-store requests always go to the origin
+    /// </summary>
+    private static boolean isCacheableRequest(DurandalHttpRequest request)
+    {
+        String cacheControl = request.RequestHeaders.get("Cache-Control");
+        return "GET".equalsIgnoreCase(request.RequestMethod) &&
+                !request.RequestHeaders.containsKey("Range") &&
+                !request.RequestHeaders.containsKey("Authorization") &&
+                !hasDirective(cacheControl, "no-store");
+    }
+
+    /// <summary>
+    /// A browser that is reloading asks for its copies to be revalidated with no-cache or max-age=0
+    /// </summary>
+    private static boolean requiresRevalidation(DurandalHttpRequest request)
+    {
+        String cacheControl = request.RequestHeaders.get("Cache-Control");
+        return hasDirective(cacheControl, "no-cache") ||
+                getDirectiveValue(cacheControl, "max-age") == 0 ||
+                "no-cache".equalsIgnoreCase(request.RequestHeaders.get("Pragma"));
+    }
+
+    private static boolean isCacheableResponse(DurandalHttpResponse response)
+    {
+        String cacheControl = response.ResponseHeaders.get("Cache-Control");
+        String vary = response.ResponseHeaders.get("Vary");
+        return !hasDirective(cacheControl, "no-store") &&
+                !hasDirective(cacheControl, "private") &&
+                !response.ResponseHeaders.containsKey("Set-Cookie") &&
+                (vary == null || !vary.trim().equals("*"));
+    }
+
+    /// <summary>
+    /// When a response stops being fresh: max-age if it has one, otherwise Expires. A response with neither
+    /// (or with no-cache) is stale right away, and is revalidated every time it is used.
+    /// </summary>
+    private static long getFreshUntil(HttpHeaders headers)
+    {
+        long now = System.currentTimeMillis();
+        String cacheControl = headers.get("Cache-Control");
+        if (hasDirective(cacheControl, "no-cache"))
+        {
+            return now;
+        }
+
+        long maxAge = getDirectiveValue(cacheControl, "s-maxage");
+        if (maxAge < 0)
+        {
+            maxAge = getDirectiveValue(cacheControl, "max-age");
+        }
+        if (maxAge >= 0)
+        {
+            // The response may already have spent some of its lifetime in another cache
+            long age = 0;
+            try
+            {
+                String ageHeader = headers.get("Age");
+                age = ageHeader == null ? 0 : Long.parseLong(ageHeader.trim());
+            }
+            catch (NumberFormatException e) {}
+            return now + (Math.max(0, maxAge - age) * 1000);
+        }
+
+        long expires = HttpHelpers.parseHttpDate(headers.get("Expires"));
+        return expires >= 0 ? expires : now;
+    }
+
+    private static boolean hasDirective(String cacheControl, String directive)
+    {
+        return getDirective(cacheControl, directive) != null;
+    }
+
+    /// <summary>
+    /// Returns the numeric value of a directive like max-age=60, or -1 if it isn't there (or isn't a number)
+    /// </summary>
+    private static long getDirectiveValue(String cacheControl, String directive)
+    {
+        String value = getDirective(cacheControl, directive);
+        if (value == null || !value.startsWith("="))
+        {
+            return -1;
+        }
+
+        try
+        {
+            return Long.parseLong(value.substring(1).trim().replace("\"", ""));
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /// <summary>
+    /// Finds a directive in a Cache-Control header, and returns whatever follows its name ("" or "=value"), or null if it isn't there
+    /// </summary>
+    private static String getDirective(String cacheControl, String directive)
+    {
+        if (cacheControl == null)
+        {
+            return null;
+        }
+
+        for (String token : cacheControl.split(","))
+        {
+            token = token.trim();
+            if (token.regionMatches(true, 0, directive, 0, directive.length()) &&
+                (token.length() == directive.length() || token.charAt(directive.length()) == '=' || token.charAt(directive.length()) == ' '))
+            {
+                return token.substring(directive.length()).trim();
+            }
+        }
+        return null;
+    }
+
+    private static String[] getVaryHeaders(DurandalHttpResponse response)
+    {
+        String vary = response.ResponseHeaders.get("Vary");
+        if (vary == null || vary.trim().isEmpty())
+        {
+            return new String[0];
+        }
+
+        String[] returnVal = vary.split(",");
+        for (int c = 0; c < returnVal.length; c++)
+        {
+            returnVal[c] = returnVal[c].trim().toLowerCase(Locale.ROOT);
+        }
+        return returnVal;
+    }
+
+    private static String getUri(DurandalHttpRequest request)
+    {
+        StringBuilder returnVal = new StringBuilder(request.RequestFile);
+        // Parameters come out of a hash map, so they are sorted to make the key independent of their order
+        char separator = '?';
+        for (Map.Entry<String, String> parameter : new TreeMap<String, String>(request.GetParameters).entrySet())
+        {
+            returnVal.append(separator).append(parameter.getKey()).append('=').append(parameter.getValue());
+            separator = '&';
+        }
+        return returnVal.toString();
+    }
+
+    private static String getKey(String uri, String[] vary, DurandalHttpRequest request)
+    {
+        if (vary == null || vary.length == 0)
+        {
+            return uri;
+        }
+
+        StringBuilder returnVal = new StringBuilder(uri);
+        for (String header : vary)
+        {
+            String value = request.RequestHeaders.get(header);
+            returnVal.append('\n').append(header).append(':').append(value == null ? "" : value);
+        }
+        return returnVal.toString();
+    }
+
+    private static HttpHeaders copyHeaders(HttpHeaders headers)
+    {
+        HttpHeaders returnVal = new HttpHeaders(headers.size());
+        for (int c = 0; c < headers.size(); c++)
+        {
+            returnVal.add(headers.getName(c), headers.getValue(c));
+        }
+        return returnVal;
+    }
+
+    private static void closeBody(DurandalHttpResponse response)
+    {
+        if (response.PayloadStream != null)
+        {
+            try
+            {
+                response.PayloadStream.close();
+            }
+            catch (IOException e) {}
+        }
+    }
+
+    public synchronized void clear()
+    {
+        _entries.clear();
+        _varyByUri.clear();
+        _bytesUsed = 0;
+    }
+
+    public synchronized Statistics getStatistics()
+    {
+        Statistics returnVal = new Statistics();
+        returnVal.Hits = _hits;
+        returnVal.Misses = _misses;
+        returnVal.Revalidations = _revalidations;
+        returnVal.Stores = _stores;
+        returnVal.Evictions = _evictions;
+        returnVal.Entries = _entries.size();
+        returnVal.BytesUsed = _bytesUsed;
+        returnVal.MaxBytes = _maxBytes;
+        return returnVal;
+    }
+
+    /// <summary>
+    /// Appends the cache's statistics in Prometheus text format, with the given metric name prefix (e.g. "durandal_views_cache")
+    /// </summary>
+    public void writePrometheus(StringBuilder output, String prefix)
+    {
+        Statistics statistics = getStatistics();
+        output.append("# HELP ").append(prefix).append("_requests_total Cacheable requests, by whether they were answered from the cache\n");
+        output.append("# TYPE ").append(prefix).append("_requests_total counter\n");
+        output.append(prefix).append("_requests_total{result=\"hit\"} ").append(statistics.Hits).append('\n');
+        output.append(prefix).append("_requests_total{result=\"miss\"} ").append(statistics.Misses).append('\n');
+        output.append("# HELP ").append(prefix).append("_revalidations_total Stale entries that the origin confirmed with 304 Not Modified\n");
+        output.append("# TYPE ").append(prefix).append("_revalidations_total counter\n");
+        output.append(prefix).append("_revalidations_total ").append(statistics.Revalidations).append('\n');
+        output.append("# HELP ").append(prefix).append("_evictions_total Entries evicted to make room for others\n");
+        output.append("# TYPE ").append(prefix).append("_evictions_total counter\n");
+        output.append(prefix).append("_evictions_total ").append(statistics.Evictions).append('\n');
+        output.append("# HELP ").append(prefix).append("_entries Responses held in the cache\n");
+        output.append("# TYPE ").append(prefix).append("_entries gauge\n");
+        output.append(prefix).append("_entries ").append(statistics.Entries).append('\n');
+        output.append("# HELP ").append(prefix).append("_bytes Bytes held in the cache, and the most it may hold\n");
+        output.append("# TYPE ").append(prefix).append("_bytes gauge\n");
+        output.append(prefix).append("_bytes{kind=\"used\"} ").append(statistics.BytesUsed).append('\n');
+        output.append(prefix).append("_bytes{kind=\"max\"} ").append(statistics.MaxBytes).append('\n');
+    }
+
+    /**
+     * A point-in-time snapshot of cache usage
+     */
+    public static class Statistics
+    {
+        public long Hits;
+        // Includes requests for stale entries, whether or not revalidation then found them current
+        public long Misses;
+        public long Revalidations;
+        public long Stores;
+        public long Evictions;
+        public int Entries;
+        public long BytesUsed;
+        public long MaxBytes;
+
+        public double getHitRate()
+        {
+            long total = Hits + Misses;
+            return total == 0 ? 0 : (double)Hits / total;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("hits=%d misses=%d hitRate=%.2f revalidated=%d stored=%d evicted=%d entries=%d bytes=%d/%d",
+                    Hits, Misses, getHitRate(), Revalidations, Stores, Evictions, Entries, BytesUsed, MaxBytes);
+        }
+    }
+
+    /**
+     * Copies a response body into the cache as it streams through to the client. The entry is stored once the
+     * body has been read to the end; if the client goes away first, or the body turns out to be too big, it isn't.
+     */
+    private class CapturingInputStream extends FilterInputStream
+    {
+        private final String _key;
+        private final HttpHeaders _headers;
+        private final long _freshUntil;
+        private ByteArrayOutputStream _captured = new ByteArrayOutputStream();
+        private boolean _finished = false;
+
+        public CapturingInputStream(InputStream body, String key, HttpHeaders headers, long freshUntil)
+        {
+            super(body);
+            _key = key;
+            _headers = headers;
+            _freshUntil = freshUntil;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int returnVal = super.read();
+            if (returnVal < 0)
+            {
+                finish(true);
+            }
+            else if (_captured != null)
+            {
+                _captured.write(returnVal);
+                checkSize();
+            }
+            return returnVal;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int returnVal = super.read(b, off, len);
+            if (returnVal < 0)
+            {
+                finish(true);
+            }
+            else if (_captured != null)
+            {
+                _captured.write(b, off, returnVal);
+                checkSize();
+            }
+            return returnVal;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            finish(false);
+            super.close();
+        }
+
+        private void checkSize()
+        {
+            if (_captured.size() > _maxEntryBytes)
+            {
+                _captured = null;
+            }
+        }
+
+        private synchronized void finish(boolean complete)
+        {
+            if (_finished)
+            {
+                return;
+            }
+
+            _finished = true;
+            if (complete && _captured != null)
+            {
+                // The body is streamed without a length if the origin didn't give one, so the entry gets the real one
+                _headers.remove("Transfer-Encoding");
+                _headers.put("Content-Length", Integer.toString(_captured.size()));
+                insert(new Entry(_key, _headers, _captured.toByteArray(), _freshUntil));
+            }
+            _captured = null;
+            endPendingStore(_key);
+        }
+    }
+}
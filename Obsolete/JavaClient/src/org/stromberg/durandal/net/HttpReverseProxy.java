@@ -0,0 +1,547 @@
+package org.stromberg.durandal.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Forwards requests to an upstream server and streams the responses back. Upstream requests go through
+ * an HttpClient, so they reuse its pooled keep-alive connections, and a response is handed back as soon
+ * as its headers arrive, with the body as a PayloadStream that HttpServer sends on as it is read.
+ * Compressed bodies are passed through without being decoded.
+ *
+ * Identical GETs that arrive while one is already waiting on the upstream are coalesced: only one is
+ * sent, and its body is teed to every client that asked for it. Requests are identical if they have
+ * the same URI and the same values for the request headers a response usually depends on. A client that
+ * falls too far behind the others reading a shared body is cut off rather than have the body pile up for it.
+ * @author lostromb
+ */
+public class HttpReverseProxy
+{
+    public static final int DEFAULT_MAX_FETCHES = 32;
+
+    // Headers that only describe one connection, and so must not be forwarded in either direction
+    private static final Set<String> HOP_BY_HOP_HEADERS = new HashSet<String>(Arrays.asList(
+            "connection", "keep-alive", "proxy-authenticate", "proxy-authorization", "proxy-connection",
+            "te", "trailer", "transfer-encoding", "upgrade"));
+    // The request headers that two requests must agree on for one response to serve them both
+    private static final String[] COALESCING_KEY_HEADERS = { "Accept", "Accept-Encoding", "Accept-Language", "Authorization",
+            "Cookie", "Range", "If-Range", "If-None-Match", "If-Modified-Since" };
+
+    private final HttpClient _upstream;
+    private final int _readTimeout;
+    private final WorkerPool _fetchPool;
+    private final Map<String, Flight> _inFlight = new ConcurrentHashMap<String, Flight>();
+
+    private final AtomicLong _forwarded = new AtomicLong();
+    private final AtomicLong _coalesced = new AtomicLong();
+    private final AtomicLong _failed = new AtomicLong();
+
+    /// <summary>
+    /// Creates a proxy that sends its upstream requests through the given client. Upstream errors and timeouts feed that
+    /// client's circuit breaker and load balancer, so it shouldn't be one that other, more important requests go through.
+    /// </summary>
+    public HttpReverseProxy(HttpClient upstream, int readTimeout)
+    {
+        this(upstream, readTimeout, WorkerPool.createBounded("HttpReverseProxy", DEFAULT_MAX_FETCHES, WorkerPool.DEFAULT_QUEUE_CAPACITY));
+    }
+
+    /// <summary>
+    /// Creates a proxy whose upstream requests, which block until the response headers arrive, run on the given pool
+    /// </summary>
+    public HttpReverseProxy(HttpClient upstream, int readTimeout, WorkerPool fetchPool)
+    {
+        _upstream = upstream;
+        _readTimeout = readTimeout;
+        _fetchPool = fetchPool;
+    }
+
+    /**
+     * A request that has been sent upstream, and everyone waiting for its response
+     */
+    private static class Flight
+    {
+        public final List<CompletableFuture<DurandalHttpResponse>> Waiters = new ArrayList<CompletableFuture<DurandalHttpResponse>>();
+        // Set once the response headers have arrived; nobody can join after that, since the body has started
+        public boolean Closed = false;
+    }
+
+    /// <summary>
+    /// Forwards a request, completing with the upstream's response as soon as its headers arrive. If the upstream can't
+    /// be reached, the response is 502 Bad Gateway; if too many requests are already waiting on it, 503.
+    /// </summary>
+    public CompletableFuture<DurandalHttpResponse> forward(DurandalHttpRequest request)
+    {
+        final DurandalHttpRequest upstreamRequest = createUpstreamRequest(request);
+        final String key = getCoalescingKey(request);
+        final CompletableFuture<DurandalHttpResponse> returnVal = new CompletableFuture<DurandalHttpResponse>();
+        if (key == null)
+        {
+            fetch(upstreamRequest, (response) -> returnVal.complete(createClientResponse(response, response == null ? null : response.PayloadStream)));
+            return returnVal;
+        }
+
+        while (true)
+        {
+            Flight flight = _inFlight.get(key);
+            if (flight != null)
+            {
+                synchronized (flight)
+                {
+                    if (!flight.Closed)
+                    {
+                        flight.Waiters.add(returnVal);
+                        _coalesced.incrementAndGet();
+                        return returnVal;
+                    }
+                }
+                // Its response is already on the way; this request needs its own
+                _inFlight.remove(key, flight);
+                continue;
+            }
+
+            final Flight newFlight = new Flight();
+            newFlight.Waiters.add(returnVal);
+            if (_inFlight.putIfAbsent(key, newFlight) == null)
+            {
+                fetch(upstreamRequest, (response) -> land(key, newFlight, response));
+                return returnVal;
+            }
+        }
+    }
+
+    /// <summary>
+    /// Sends a request upstream on the fetch pool, and passes the response (null if there was none) to the callback
+    /// </summary>
+    private void fetch(final DurandalHttpRequest upstreamRequest, final Consumer<DurandalHttpResponse> callback)
+    {
+        _forwarded.incrementAndGet();
+        boolean accepted = _fetchPool.execute(() ->
+        {
+            DurandalHttpResponse response = null;
+            try
+            {
+                // The client knows that the reply to a HEAD has no body, whatever its Content-Length says; the server
+                // then sends it on with its headers intact and still without a body
+                response = _upstream.sendRequestStreamingEncoded(upstreamRequest, _readTimeout);
+            }
+            catch (RuntimeException e)
+            {
+                System.err.println("Proxied request for " + upstreamRequest.RequestFile + " failed: " + e.getMessage());
+            }
+            if (response == null)
+            {
+                _failed.incrementAndGet();
+            }
+            callback.accept(response);
+        });
+
+        if (!accepted)
+        {
+            _failed.incrementAndGet();
+            callback.accept(DurandalHttpResponse.ServiceUnavailableResponse(1));
+        }
+    }
+
+    /// <summary>
+    /// Hands the response of a coalesced request to everyone who was waiting for it, each with its own copy of the body
+    /// </summary>
+    private void land(String key, Flight flight, DurandalHttpResponse response)
+    {
+        List<CompletableFuture<DurandalHttpResponse>> waiters;
+        synchronized (flight)
+        {
+            flight.Closed = true;
+            waiters = new ArrayList<CompletableFuture<DurandalHttpResponse>>(flight.Waiters);
+        }
+        _inFlight.remove(key, flight);
+
+        InputStream body = response == null ? null : response.PayloadStream;
+        if (body == null || waiters.size() == 1)
+        {
+            for (CompletableFuture<DurandalHttpResponse> waiter : waiters)
+            {
+                waiter.complete(createClientResponse(response, body));
+            }
+            return;
+        }
+
+        TeeBody tee = new TeeBody(body, waiters.size());
+        for (int c = 0; c < waiters.size(); c++)
+        {
+            waiters.get(c).complete(createClientResponse(response, tee.getBranch(c)));
+        }
+    }
+
+    /// <summary>
+    /// Copies a client's request for sending upstream, without the headers that belonged to the client's connection
+    /// </summary>
+    private static DurandalHttpRequest createUpstreamRequest(DurandalHttpRequest request)
+    {
+        DurandalHttpRequest returnVal = new DurandalHttpRequest();
+        returnVal.RequestMethod = request.RequestMethod;
+        returnVal.RequestFile = request.RequestFile;
+        returnVal.GetParameters = new HashMap<String, String>(request.GetParameters);
+        if (request.Body != null && request.Body.isSpilled())
+        {
+            // A body that was spilled to disk still has to go upstream in one piece
+            ByteBuffer spilled = request.getPayloadBuffer();
+            returnVal.PayloadData = new byte[spilled.remaining()];
+            spilled.get(returnVal.PayloadData);
+        }
+        else
+        {
+            returnVal.PayloadData = request.PayloadData;
+        }
+
+        Set<String> connectionHeaders = getConnectionHeaders(request.RequestHeaders);
+        for (int c = 0; c < request.RequestHeaders.size(); c++)
+        {
+            String name = request.RequestHeaders.getName(c);
+            String lowerName = name.toLowerCase(Locale.ROOT);
+            // The upstream client sets its own Host and Content-Length
+            if (!connectionHeaders.contains(lowerName) && !lowerName.equals("host") && !lowerName.equals("content-length"))
+            {
+                returnVal.RequestHeaders.add(name, request.RequestHeaders.getValue(c));
+            }
+        }
+        return returnVal;
+    }
+
+    /// <summary>
+    /// Builds the response to send a client out of the upstream's, with the given stream as its body
+    /// </summary>
+    private static DurandalHttpResponse createClientResponse(DurandalHttpResponse upstreamResponse, InputStream body)
+    {
+        if (upstreamResponse == null)
+        {
+            return DurandalHttpResponse.BadGatewayResponse();
+        }
+
+        DurandalHttpResponse returnVal = new DurandalHttpResponse();
+        returnVal.ResponseCode = upstreamResponse.ResponseCode;
+        returnVal.ResponseMessage = upstreamResponse.ResponseMessage;
+        returnVal.PayloadData = upstreamResponse.PayloadData;
+        returnVal.PayloadStream = body;
+
+        Set<String> connectionHeaders = getConnectionHeaders(upstreamResponse.ResponseHeaders);
+        for (int c = 0; c < upstreamResponse.ResponseHeaders.size(); c++)
+        {
+            String name = upstreamResponse.ResponseHeaders.getName(c);
+            if (!connectionHeaders.contains(name.toLowerCase(Locale.ROOT)))
+            {
+                returnVal.ResponseHeaders.add(name, upstreamResponse.ResponseHeaders.getValue(c));
+            }
+        }
+        return returnVal;
+    }
+
+    /// <summary>
+    /// The (lowercase) names of the hop-by-hop headers in a message: the standard ones, plus any listed in its Connection header
+    /// </summary>
+    private static Set<String> getConnectionHeaders(HttpHeaders headers)
+    {
+        String connection = headers.get("Connection");
+        if (connection == null)
+        {
+            return HOP_BY_HOP_HEADERS;
+        }
+
+        Set<String> returnVal = new HashSet<String>(HOP_BY_HOP_HEADERS);
+        for (String token : connection.split(","))
+        {
+            returnVal.add(token.trim().toLowerCase(Locale.ROOT));
+        }
+        return returnVal;
+    }
+
+    /// <summary>
+    /// The key under which identical requests are coalesced, or null if the request must be sent on its own
+    /// </summary>
+    private static String getCoalescingKey(DurandalHttpRequest request)
+    {
+        if (!"GET".equalsIgnoreCase(request.RequestMethod) || request.getPayloadBuffer().hasRemaining())
+        {
+            return null;
+        }
+
+        StringBuilder returnVal = new StringBuilder(request.RequestFile);
+        // Parameters come out of a hash map, so they are sorted to make the key independent of their order
+        for (Map.Entry<String, String> parameter : new TreeMap<String, String>(request.GetParameters).entrySet())
+        {
+            returnVal.append('\n').append(parameter.getKey()).append('=').append(parameter.getValue());
+        }
+        for (String header : COALESCING_KEY_HEADERS)
+        {
+            String value = request.RequestHeaders.get(header);
+            if (value != null)
+            {
+                returnVal.append('\n').append(header).append(':').append(value);
+            }
+        }
+        return returnVal.toString();
+    }
+
+    public Statistics getStatistics()
+    {
+        Statistics returnVal = new Statistics();
+        returnVal.Forwarded = _forwarded.get();
+        returnVal.Coalesced = _coalesced.get();
+        returnVal.Failed = _failed.get();
+        returnVal.InFlight = _inFlight.size();
+        return returnVal;
+    }
+
+    /**
+     * A point-in-time snapshot of proxy usage
+     */
+    public static class Statistics
+    {
+        // Requests actually sent upstream
+        public long Forwarded;
+        // Requests that were answered by another one's upstream request instead of their own
+        public long Coalesced;
+        public long Failed;
+        public int InFlight;
+
+        @Override
+        public String toString()
+        {
+            return String.format("forwarded=%d coalesced=%d failed=%d inFlight=%d", Forwarded, Coalesced, Failed, InFlight);
+        }
+    }
+
+    /**
+     * Splits one upstream body into several streams that each yield all of it. Whichever branch runs out of data
+     * first reads the next piece from upstream and queues it for all the others; pieces are shared, not copied.
+     * The upstream body is closed once it has been read to the end, or once every branch has been closed.
+     */
+    private static class TeeBody
+    {
+        private static final int PIECE_SIZE = 16384;
+        // A branch with this much data queued for it is detached, so that one slow client can't make the proxy buffer the whole body
+        private static final long MAX_BRANCH_LAG_BYTES = 2 * 1024 * 1024;
+
+        private final InputStream _source;
+        private final Branch[] _branches;
+        private int _openBranches;
+        private boolean _reading = false;
+        private boolean _finished = false;
+        private IOException _error = null;
+
+        public TeeBody(InputStream source, int branchCount)
+        {
+            _source = source;
+            _branches = new Branch[branchCount];
+            for (int c = 0; c < branchCount; c++)
+            {
+                _branches[c] = new Branch();
+            }
+            _openBranches = branchCount;
+        }
+
+        public InputStream getBranch(int index)
+        {
+            return _branches[index];
+        }
+
+        private int read(Branch branch, byte[] b, int off, int len) throws IOException
+        {
+            while (true)
+            {
+                synchronized (this)
+                {
+                    while (true)
+                    {
+                        if (branch.Closed)
+                        {
+                            throw new IOException(branch.Detached ?
+                                    "Fell more than " + MAX_BRANCH_LAG_BYTES + " bytes behind the other readers of a shared proxied response" :
+                                    "Stream closed");
+                        }
+                        if (branch.Current != null && branch.CurrentOffset < branch.Current.length)
+                        {
+                            int returnVal = Math.min(len, branch.Current.length - branch.CurrentOffset);
+                            System.arraycopy(branch.Current, branch.CurrentOffset, b, off, returnVal);
+                            branch.CurrentOffset += returnVal;
+                            return returnVal;
+                        }
+                        if (!branch.Pending.isEmpty())
+                        {
+                            branch.Current = branch.Pending.poll();
+                            branch.CurrentOffset = 0;
+                            branch.PendingBytes -= branch.Current.length;
+                            continue;
+                        }
+                        if (_error != null)
+                        {
+                            throw _error;
+                        }
+                        if (_finished)
+                        {
+                            return -1;
+                        }
+                        if (!_reading)
+                        {
+                            // Our turn to fetch the next piece for everyone
+                            _reading = true;
+                            break;
+                        }
+                        try
+                        {
+                            wait();
+                        }
+                        catch (InterruptedException e)
+                        {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted while waiting for proxied data");
+                        }
+                    }
+                }
+
+                // Read outside the lock, so that branches that still have data queued aren't held up
+                byte[] piece = new byte[PIECE_SIZE];
+                int read = -1;
+                IOException error = null;
+                try
+                {
+                    read = _source.read(piece);
+                }
+                catch (IOException e)
+                {
+                    error = e;
+                }
+
+                synchronized (this)
+                {
+                    _reading = false;
+                    if (error != null)
+                    {
+                        _error = error;
+                    }
+                    else if (read < 0)
+                    {
+                        _finished = true;
+                    }
+                    else if (read > 0)
+                    {
+                        byte[] data = read == piece.length ? piece : Arrays.copyOf(piece, read);
+                        for (Branch other : _branches)
+                        {
+                            if (other.Closed)
+                            {
+                                continue;
+                            }
+                            if (other.PendingBytes + data.length > MAX_BRANCH_LAG_BYTES)
+                            {
+                                // Never the branch that is reading, since it had nothing queued; so some branch is always left open
+                                other.Detached = true;
+                                closeBranch(other);
+                            }
+                            else
+                            {
+                                other.Pending.add(data);
+                                other.PendingBytes += data.length;
+                            }
+                        }
+                    }
+                    notifyAll();
+                }
+
+                if (error != null || read < 0)
+                {
+                    closeSource();
+                }
+            }
+        }
+
+        private void close(Branch branch)
+        {
+            boolean lastBranch;
+            synchronized (this)
+            {
+                if (branch.Closed)
+                {
+                    return;
+                }
+                lastBranch = closeBranch(branch);
+                notifyAll();
+            }
+            if (lastBranch)
+            {
+                closeSource();
+            }
+        }
+
+        /// <summary>
+        /// Stops queueing data for a branch, and returns true if it was the last one open. The caller must hold the lock.
+        /// </summary>
+        private boolean closeBranch(Branch branch)
+        {
+            branch.Closed = true;
+            branch.Pending.clear();
+            branch.PendingBytes = 0;
+            branch.Current = null;
+            return --_openBranches == 0;
+        }
+
+        private void closeSource()
+        {
+            try
+            {
+                _source.close();
+            }
+            catch (IOException e) {}
+        }
+
+        private class Branch extends InputStream
+        {
+            // Guarded by the TeeBody
+            public final ArrayDeque<byte[]> Pending = new ArrayDeque<byte[]>();
+            public long PendingBytes = 0;
+            public byte[] Current = null;
+            public int CurrentOffset = 0;
+            public boolean Closed = false;
+            // Closed by the tee because it fell too far behind, rather than by its reader
+            public boolean Detached = false;
+
+            @Override
+            public int read() throws IOException
+            {
+                byte[] single = new byte[1];
+                int read = read(single, 0, 1);
+                return read < 0 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                if (len == 0)
+                {
+                    return 0;
+                }
+                return TeeBody.this.read(this, b, off, len);
+            }
+
+            @Override
+            public void close()
+            {
+                TeeBody.this.close(this);
+            }
+        }
+    }
+}
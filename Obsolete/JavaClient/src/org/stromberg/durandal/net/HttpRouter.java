@@ -0,0 +1,147 @@
+package org.stromberg.durandal.net;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Dispatches requests to handlers by path and method. Routes are kept in a trie keyed by path segment,
+ * so finding a handler costs one map lookup per segment of the request path, however many routes there are.
+ * A route is either an exact path ("/dialog") or a prefix ending in a wildcard ("/views/*"), which matches
+ * the prefix itself and everything under it; the most specific matching route wins. Each route is
+ * registered for one method, or for all of them with a null method.
+ *
+ * Routes should all be added before the server starts; lookups are not synchronized with additions.
+ * @author lostromb
+ */
+public class HttpRouter
+{
+    private static final String ANY_METHOD = "*";
+    private static final String WILDCARD = "*";
+
+    private final Node _root = new Node();
+
+    /**
+     * One path segment in the trie
+     */
+    private static class Node
+    {
+        public final Map<String, Node> Children = new HashMap<String, Node>();
+        // The routes ending exactly here, and the wildcard routes covering this node and everything below it, by method
+        public final Map<String, AsyncHttpRequestHandler> Handlers = new HashMap<String, AsyncHttpRequestHandler>();
+        public final Map<String, AsyncHttpRequestHandler> WildcardHandlers = new HashMap<String, AsyncHttpRequestHandler>();
+    }
+
+    /// <summary>
+    /// Adds a route whose handler responds on the calling thread. A null method matches every method.
+    /// </summary>
+    public HttpRouter add(String method, String path, final HttpRequestHandler handler)
+    {
+        return addAsync(method, path, (request) -> CompletableFuture.completedFuture(handler.handle(request)));
+    }
+
+    /// <summary>
+    /// Adds a route whose handler responds asynchronously. A null method matches every method.
+    /// </summary>
+    public HttpRouter addAsync(String method, String path, AsyncHttpRequestHandler handler)
+    {
+        String[] segments = splitPath(path);
+        boolean wildcard = segments.length > 0 && segments[segments.length - 1].equals(WILDCARD);
+        int literalSegments = wildcard ? segments.length - 1 : segments.length;
+
+        Node node = _root;
+        for (int c = 0; c < literalSegments; c++)
+        {
+            Node child = node.Children.get(segments[c]);
+            if (child == null)
+            {
+                child = new Node();
+                node.Children.put(segments[c], child);
+            }
+            node = child;
+        }
+
+        String methodKey = method == null ? ANY_METHOD : method.toUpperCase();
+        (wildcard ? node.WildcardHandlers : node.Handlers).put(methodKey, handler);
+        return this;
+    }
+
+    /// <summary>
+    /// Runs the handler of the route that matches the request. Returns null if no route matches its path at all;
+    /// if routes match the path but not the method, the result is 405 Method Not Allowed.
+    /// </summary>
+    public CompletableFuture<DurandalHttpResponse> route(DurandalHttpRequest request)
+    {
+        Map<String, AsyncHttpRequestHandler> handlers = findHandlers(request.RequestFile);
+        if (handlers == null)
+        {
+            return null;
+        }
+
+        AsyncHttpRequestHandler handler = handlers.get(request.RequestMethod.toUpperCase());
+        if (handler == null)
+        {
+            handler = handlers.get(ANY_METHOD);
+        }
+        if (handler == null)
+        {
+            DurandalHttpResponse response = new DurandalHttpResponse();
+            response.ResponseCode = 405;
+            response.ResponseMessage = "Method Not Allowed";
+            response.ResponseHeaders.put("Allow", String.join(", ", new TreeSet<String>(handlers.keySet())));
+            return CompletableFuture.completedFuture(response);
+        }
+        return handler.handle(request);
+    }
+
+    /// <summary>
+    /// Walks the trie as far as the path goes, remembering the deepest wildcard route passed on the way
+    /// </summary>
+    private Map<String, AsyncHttpRequestHandler> findHandlers(String path)
+    {
+        Map<String, AsyncHttpRequestHandler> bestWildcard = null;
+        Node node = _root;
+        int segmentStart = 0;
+        while (node != null)
+        {
+            if (!node.WildcardHandlers.isEmpty())
+            {
+                bestWildcard = node.WildcardHandlers;
+            }
+
+            // Skip any run of slashes to the start of the next segment
+            while (segmentStart < path.length() && path.charAt(segmentStart) == '/')
+            {
+                segmentStart++;
+            }
+            if (segmentStart >= path.length())
+            {
+                return node.Handlers.isEmpty() ? bestWildcard : node.Handlers;
+            }
+
+            int segmentEnd = path.indexOf('/', segmentStart);
+            if (segmentEnd < 0)
+            {
+                segmentEnd = path.length();
+            }
+            node = node.Children.get(path.substring(segmentStart, segmentEnd));
+            segmentStart = segmentEnd;
+        }
+        return bestWildcard;
+    }
+
+    private static String[] splitPath(String path)
+    {
+        String trimmed = path;
+        while (trimmed.startsWith("/"))
+        {
+            trimmed = trimmed.substring(1);
+        }
+        while (trimmed.endsWith("/"))
+        {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+        return trimmed.isEmpty() ? new String[0] : trimmed.split("/+");
+    }
+}
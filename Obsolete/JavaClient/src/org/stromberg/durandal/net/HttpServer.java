@@ -4,10 +4,22 @@
  */
 package org.stromberg.durandal.net;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.net.ServerSocketFactory;
 
 /**
@@ -16,9 +28,58 @@ import javax.net.ServerSocketFactory;
  */
 public abstract class HttpServer
 {
+    /**
+     * How the server does its network I/O
+     */
+    public enum Engine
+    {
+        /// <summary>
+        /// A thread accepts connections, and each connection is read and written by a worker with blocking I/O
+        /// </summary>
+        BLOCKING,
+
+        /// <summary>
+        /// A few selector threads do all of the I/O without blocking, and workers only run the request handler
+        /// </summary>
+        EVENT_LOOP
+    }
+
+    public static final int DEFAULT_KEEP_ALIVE_TIMEOUT_MS = 15000;
+    public static final int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 100;
+    public static final long DEFAULT_DRAIN_TIMEOUT_MS = 10000;
+
+    // After refusing a request without reading its body, the server keeps reading (and discarding) whatever the client
+    // is still sending for up to this long, or this many bytes, before it closes the connection
+    static final int LINGER_TIMEOUT_MS = 2000;
+    static final long MAX_LINGER_BYTES = 16 * 1024 * 1024;
+
+    // On the blocking engine an idle keep-alive connection still holds a worker. New keep-alives are refused once this
+    // percentage of the workers are busy, and a worker waiting on an idle connection checks this often whether other
+    // connections are queued for it (in which case it closes the idle one and moves on).
+    static final int KEEP_ALIVE_MAX_BUSY_PERCENT = 75;
+    static final int IDLE_CHECK_INTERVAL_MS = 250;
+
     protected int _portNum;
+    private Engine _engine = Engine.BLOCKING;
     private ServerThread _listenThread;
+    private NioHttpServerEngine _eventLoopEngine;
     private boolean _asyncronous;
+    private long _requestSpillThreshold = HttpPayload.DEFAULT_SPILL_THRESHOLD;
+    private long _maxRequestBodySize = HttpPayload.DEFAULT_MAX_BODY_SIZE;
+    private WorkerPool _workerPool = null;
+    private int _keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT_MS;
+    private int _maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+    private ConcurrencyLimiter _concurrencyLimiter = null;
+    private String _readinessPath = null;
+    private String _metricsPath = "/metrics";
+    private final HttpServerMetrics _metrics = new HttpServerMetrics();
+    private final HttpRouter _router = new HttpRouter();
+    private volatile boolean _ready = false;
+    private volatile boolean _draining = false;
+
+    // Connections open on the blocking engine, and the subset of them that are waiting between requests
+    private final Set<Socket> _openConnections = ConcurrentHashMap.newKeySet();
+    private final Set<Socket> _idleConnections = ConcurrentHashMap.newKeySet();
 
     public HttpServer(int port, boolean asynchronous)
     {
@@ -26,11 +87,174 @@ public abstract class HttpServer
         _asyncronous = asynchronous;
     }
 
+    /// <summary>
+    /// Sets the limits on incoming request bodies. Bodies bigger than spillThreshold bytes are stored in a temp
+    /// file instead of on the heap (see DurandalHttpRequest.Body), and requests whose bodies are bigger than
+    /// maxBodySize bytes are rejected with 413 Payload Too Large.
+    /// </summary>
+    public void setRequestBodyLimits(long spillThreshold, long maxBodySize)
+    {
+        _requestSpillThreshold = spillThreshold;
+        _maxRequestBodySize = maxBodySize;
+    }
+
+    /// <summary>
+    /// Sets the pool that runs connections when the server is asynchronous. If none is set before the server
+    /// starts, a bounded pool of WorkerPool.DEFAULT_MAX_WORKERS platform threads is used. When the pool is
+    /// saturated, new connections are turned away with 503 Service Unavailable.
+    /// </summary>
+    public void setWorkerPool(WorkerPool workerPool)
+    {
+        _workerPool = workerPool;
+    }
+
+    /// <summary>
+    /// The pool that runs connections (and reports on how busy it is), or null if the server is synchronous
+    /// </summary>
+    public WorkerPool getWorkerPool()
+    {
+        return _workerPool;
+    }
+
+    /// <summary>
+    /// Sets how long an idle persistent connection is kept open waiting for its next request, and how many requests
+    /// one connection may make before the server closes it (so that clients are eventually rebalanced and no single
+    /// connection holds a worker forever). An idle timeout of 0 turns keep-alive off, so every response closes its connection.
+    /// The blocking engine closes idle connections sooner than this when it is short of workers.
+    /// </summary>
+    public void setKeepAlive(int idleTimeoutMs, int maxRequestsPerConnection)
+    {
+        _keepAliveTimeout = idleTimeoutMs;
+        _maxRequestsPerConnection = Math.max(1, maxRequestsPerConnection);
+    }
+
+    /// <summary>
+    /// Sets the limit on how many requests are handled at once (none by default). Requests over the limit for their
+    /// priority (see getRequestPriority) get an immediate 503 Service Unavailable with Retry-After, without running
+    /// the handler. This must be called before the server is started.
+    /// </summary>
+    public void setConcurrencyLimiter(ConcurrencyLimiter limiter)
+    {
+        _concurrencyLimiter = limiter;
+    }
+
+    public ConcurrencyLimiter getConcurrencyLimiter()
+    {
+        return _concurrencyLimiter;
+    }
+
+    /// <summary>
+    /// How important a request is when the server is shedding load. Subclasses override this to let
+    /// cheap or retryable requests be turned away before the ones that matter to users.
+    /// </summary>
+    protected ConcurrencyLimiter.Priority getRequestPriority(DurandalHttpRequest request)
+    {
+        return ConcurrencyLimiter.Priority.NORMAL;
+    }
+
+    /// <summary>
+    /// Whether a request's latency says how loaded this server is, which is what an adaptive concurrency limiter adjusts
+    /// its limit by. Subclasses override this to leave out requests that mostly wait on something else, such as another
+    /// server they are proxied to, since a slow upstream would otherwise make the limiter shed everything else.
+    /// </summary>
+    protected boolean isLatencyLoadSignal(DurandalHttpRequest request)
+    {
+        return true;
+    }
+
+    /// <summary>
+    /// Makes the server answer requests for the given path itself, with 200 while it is ready for traffic and 503 once it
+    /// isn't (see isReady), so that a load balancer can poll it. These requests are never shed. Null (the default) turns this off.
+    /// </summary>
+    public void setReadinessPath(String path)
+    {
+        _readinessPath = path;
+    }
+
+    /// <summary>
+    /// Sets the path at which the server itself serves its metrics in Prometheus text format ("/metrics" by default).
+    /// Requests for it are never shed. Null turns it off, although metrics are still collected (see getMetrics).
+    /// </summary>
+    public void setMetricsPath(String path)
+    {
+        _metricsPath = path;
+    }
+
+    /// <summary>
+    /// Per-route request counts, bytes and latencies since the server was created
+    /// </summary>
+    public HttpServerMetrics getMetrics()
+    {
+        return _metrics;
+    }
+
+    /// <summary>
+    /// True from when the server starts listening until it is shut down or taken out of rotation with setReady(false)
+    /// </summary>
+    public boolean isReady()
+    {
+        return _ready;
+    }
+
+    /// <summary>
+    /// Takes the server out of rotation (or puts it back) without stopping it. Calling setReady(false) a few seconds
+    /// before shutdown() gives load balancers time to notice and stop sending new connections before any are refused.
+    /// </summary>
+    public void setReady(boolean ready)
+    {
+        _ready = ready && !_draining;
+    }
+
+    int getKeepAliveTimeout()
+    {
+        return _keepAliveTimeout;
+    }
+
+    /// <summary>
+    /// Chooses the I/O engine (blocking by default). This must be called before the server is started.
+    /// </summary>
+    public void setEngine(Engine engine)
+    {
+        _engine = engine;
+    }
+
     public void startServer(String serverName)
     {
-        _listenThread = new ServerThread();
-        _listenThread.setName(serverName);
-        _listenThread.start();
+        if (_workerPool == null && (_asyncronous || _engine == Engine.EVENT_LOOP))
+        {
+            // A synchronous server on the event loop still needs somewhere to run handlers; one worker keeps them in order
+            _workerPool = _asyncronous ?
+                    WorkerPool.createBounded(serverName, WorkerPool.DEFAULT_MAX_WORKERS, WorkerPool.DEFAULT_QUEUE_CAPACITY) :
+                    WorkerPool.createBounded(serverName, 1, WorkerPool.DEFAULT_QUEUE_CAPACITY);
+        }
+
+        if (_engine == Engine.EVENT_LOOP)
+        {
+            try
+            {
+                int ioThreadCount = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+                _eventLoopEngine = new NioHttpServerEngine(this, _portNum, _workerPool, _maxRequestBodySize, ioThreadCount, serverName);
+                _eventLoopEngine.start();
+                _ready = true;
+            }
+            catch (IOException e)
+            {
+                System.err.println(e.getMessage());
+            }
+            return;
+        }
+
+        try
+        {
+            _listenThread = new ServerThread(ServerSocketFactory.getDefault().createServerSocket(_portNum));
+            _listenThread.setName(serverName);
+            _listenThread.start();
+            _ready = true;
+        }
+        catch (IOException e)
+        {
+            System.err.println(e.getMessage());
+        }
     }
 
     public void dispose()
@@ -38,10 +262,84 @@ public abstract class HttpServer
         stopServer();
     }
 
+    /// <summary>
+    /// Shuts the server down gracefully, waiting up to DEFAULT_DRAIN_TIMEOUT_MS for requests in progress to finish
+    /// </summary>
     public void stopServer()
     {
-        _listenThread.cancelled = true;
-        _listenThread.stop();
+        shutdown(DEFAULT_DRAIN_TIMEOUT_MS);
+    }
+
+    /// <summary>
+    /// Shuts the server down gracefully. It stops being ready and stops accepting connections right away, and closes
+    /// keep-alive connections as soon as they are between requests. Requests already in progress are allowed to finish,
+    /// with "Connection: close" on their responses, until the drain timeout passes; whatever is still open then is closed.
+    /// Returns true if everything finished before the deadline.
+    /// </summary>
+    public boolean shutdown(long drainTimeoutMs)
+    {
+        long deadline = System.currentTimeMillis() + drainTimeoutMs;
+        _ready = false;
+        _draining = true;
+
+        if (_listenThread != null)
+        {
+            _listenThread.cancel();
+        }
+        if (_eventLoopEngine != null)
+        {
+            _eventLoopEngine.beginDrain();
+        }
+        for (Socket idleConnection : _idleConnections)
+        {
+            closeQuietly(idleConnection);
+        }
+
+        boolean drained = true;
+        try
+        {
+            while (getOpenConnectionCount() > 0 && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(50);
+            }
+            drained = getOpenConnectionCount() == 0;
+
+            // Force close whatever is left
+            if (_eventLoopEngine != null)
+            {
+                _eventLoopEngine.stop();
+            }
+            for (Socket openConnection : _openConnections)
+            {
+                closeQuietly(openConnection);
+            }
+            if (_workerPool != null)
+            {
+                _workerPool.shutdown();
+                drained &= _workerPool.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()));
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            drained = false;
+        }
+
+        if (!drained)
+        {
+            System.err.println("HTTP server on port " + _portNum + " did not drain within " + drainTimeoutMs + "ms; the remaining connections were closed");
+        }
+        return drained;
+    }
+
+    private int getOpenConnectionCount()
+    {
+        return _openConnections.size() + (_eventLoopEngine == null ? 0 : _eventLoopEngine.getConnectionCount());
+    }
+
+    boolean isDraining()
+    {
+        return _draining;
     }
 
     public int getPortNum()
@@ -51,99 +349,579 @@ public abstract class HttpServer
 
     private class ServerThread extends Thread
     {
-        public volatile boolean cancelled = false;
-        
-        public void run()
+        private final ServerSocket _serverSocket;
+        private volatile boolean _cancelled = false;
+
+        public ServerThread(ServerSocket serverSocket)
         {
+            _serverSocket = serverSocket;
+        }
+
+        /// <summary>
+        /// Stops accepting connections. Closing the socket is what wakes up the blocked accept() call.
+        /// </summary>
+        public void cancel()
+        {
+            _cancelled = true;
             try
             {
-                ServerSocket serverSocket = ServerSocketFactory.getDefault().createServerSocket(_portNum);
+                _serverSocket.close();
+            }
+            catch (IOException e) {}
+        }
 
-                while (!cancelled)
+        public void run()
+        {
+            try
+            {
+                while (!_cancelled)
                 {
-                    Socket newSocket = serverSocket.accept();
+                    final Socket newSocket = _serverSocket.accept();
+                    // Counted as open from here, so that a drain also waits for connections still queued for a worker
+                    _openConnections.add(newSocket);
                     if (_asyncronous)
                     {
-                        new WorkerThread(newSocket).start();
+                        if (!_workerPool.execute(() -> handleConnection(newSocket)))
+                        {
+                            rejectConnection(newSocket);
+                        }
                     }
                     else
                     {
                         handleConnection(newSocket);
                     }
                 }
-                serverSocket.close();
             }
             catch (IOException e)
             {
-                System.err.println(e.getMessage());
+                if (!_cancelled)
+                {
+                    System.err.println(e.getMessage());
+                }
+            }
+            finally
+            {
+                closeQuietly(_serverSocket);
             }
         }
     }
 
-    private class WorkerThread extends Thread
+    /// <summary>
+    /// Turns a connection away without reading its request, because there is no worker free to handle it.
+    /// This runs on the accept thread, so it only writes a response small enough to fit in the socket's send buffer.
+    /// </summary>
+    private void rejectConnection(Socket clientSocket)
     {
-        private Socket clientSocket;
-        
-        public WorkerThread(Socket acceptSocket)
+        try
         {
-            clientSocket = acceptSocket;
+            DurandalHttpResponse.ServiceUnavailableResponse(1).writeToStream(clientSocket.getOutputStream());
         }
-        
-        @Override
-        public void run()
+        catch (IOException e) { }
+        finally
         {
-            if (clientSocket != null)
+            _openConnections.remove(clientSocket);
+            closeQuietly(clientSocket);
+        }
+    }
+
+    private void handleConnection(Socket clientSocket)
+    {
+        try
+        {
+            // Pipelined requests are simply left in the input buffer until we get to them
+            InputStream input = new BufferedInputStream(clientSocket.getInputStream());
+            CountingOutputStream output = new CountingOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+            int requestCount = 0;
+            boolean keepAlive = true;
+            while (keepAlive)
             {
-                handleConnection(clientSocket);
+                clientSocket.setSoTimeout(_keepAliveTimeout);
+                // Between requests the connection is idle, and a draining server closes it rather than wait for another request
+                boolean idle = requestCount > 0;
+                if (idle)
+                {
+                    _idleConnections.add(clientSocket);
+                }
+                boolean hasRequest = idle ?
+                        !_draining && awaitIdleRequest(clientSocket, input, requestCount) :
+                        awaitNextRequest(input, requestCount);
+                _idleConnections.remove(clientSocket);
+                if (!hasRequest)
+                {
+                    break;
+                }
+                keepAlive = handleRequest(clientSocket, input, output, ++requestCount);
             }
         }
+        catch (SocketTimeoutException e)
+        {
+            // The client didn't send another request before the idle timeout
+        }
+        catch (IOException e)
+        {
+        }
+        finally
+        {
+            _openConnections.remove(clientSocket);
+            closeQuietly(clientSocket);
+        }
     }
 
-    private void handleConnection(Socket clientSocket)
+    /// <summary>
+    /// Reads one request from the connection and writes its response. Returns true if the connection should stay open
+    /// for another request.
+    /// </summary>
+    private boolean handleRequest(Socket clientSocket, InputStream input, CountingOutputStream output, int requestCount) throws IOException
     {
         // Parse the HTTP request
+        long parseStartTime = System.nanoTime();
         DurandalHttpRequest clientRequest = null;
         try
         {
-            clientRequest = DurandalHttpRequest.readRequestFromStream(clientSocket.getInputStream());
+            clientRequest = DurandalHttpRequest.readRequestFromStream(input, _requestSpillThreshold, _maxRequestBodySize);
         }
-        catch (SocketException e)
+        catch (PayloadTooLargeException e)
         {
-            System.err.println("Encountered a problem while accepting a new HTTP connection");
             System.err.println(e.getMessage());
+            if (DurandalHttpResponse.PayloadTooLargeResponse().writeToStream(output, false))
+            {
+                lingerBeforeClose(clientSocket, input);
+            }
+            return false;
         }
-        catch (IOException e)
+
+        if (clientRequest == null)
         {
-            System.err.println("Encountered a problem while accepting a new HTTP connection");
-            System.err.println(e.getMessage());
+            System.err.println("Encountered a problem while reading an HTTP request");
+            return false;
         }
-        
+
         try
         {
-            if (clientRequest != null)
+            // Holding a worker for an idle connection while other connections need one would starve them,
+            // and a synchronous server can't serve anyone else at all while it waits for this client
+            boolean allowKeepAlive = _asyncronous && !isWorkerPoolBusy();
+            long admittedTime = System.nanoTime();
+            DurandalHttpResponse response = admitRequest(clientRequest);
+            if (response == null)
+            {
+                // This engine has a thread per connection anyway, so it simply waits for asynchronous handlers
+                response = generateResponse(clientRequest, admittedTime).join();
+            }
+            else
             {
-                DurandalHttpResponse response = handleConnection(clientRequest);
+                response.OmitBody = HttpHelpers.isHeadRequest(clientRequest.RequestMethod);
+            }
+            boolean keepAlive = applyKeepAlive(clientRequest, response, requestCount, allowKeepAlive);
 
-                // Validate the response
-                if (response == null)
+            long writeStartTime = System.nanoTime();
+            long bytesWritten = output.getCount();
+            boolean written = response.writeToStream(output, false);
+            long bodyLength = clientRequest.Body != null ? clientRequest.Body.getLength() : clientRequest.PayloadData.length;
+            _metrics.getRoute(clientRequest.RequestFile).record(response.ResponseCode,
+                    clientRequest.HeaderLength + bodyLength, output.getCount() - bytesWritten,
+                    admittedTime - parseStartTime, writeStartTime - admittedTime, System.nanoTime() - writeStartTime);
+            return written && keepAlive;
+        }
+        finally
+        {
+            // Deletes the temp file if the body was spilled to disk
+            if (clientRequest.Body != null)
+            {
+                clientRequest.Body.close();
+            }
+        }
+    }
+
+    /// <summary>
+    /// Half-closes a connection whose request was refused before its body was read, then reads and discards what the client
+    /// is still sending, for a little while. Closing a socket with unread data resets the connection, and the client would
+    /// most likely see that instead of our response.
+    /// </summary>
+    private static void lingerBeforeClose(Socket clientSocket, InputStream input)
+    {
+        try
+        {
+            clientSocket.shutdownOutput();
+            clientSocket.setSoTimeout(LINGER_TIMEOUT_MS);
+            long deadline = System.currentTimeMillis() + LINGER_TIMEOUT_MS;
+            long discarded = 0;
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while (discarded < MAX_LINGER_BYTES && System.currentTimeMillis() < deadline && (bytesRead = input.read(buffer)) >= 0)
+            {
+                discarded += bytesRead;
+            }
+        }
+        catch (IOException e)
+        {
+            // Timed out or reset; either way we're done with it
+        }
+    }
+
+    /// <summary>
+    /// True if so many workers are taken, or connections are waiting for one, that this engine shouldn't park another
+    /// worker on an idle connection. A pool of virtual threads has no real limit, so only its queue counts.
+    /// </summary>
+    private boolean isWorkerPoolBusy()
+    {
+        return _workerPool.getQueueDepth() > 0 ||
+                (long)_workerPool.getActiveCount() * 100 >= (long)_workerPool.getMaxWorkers() * KEEP_ALIVE_MAX_BUSY_PERCENT;
+    }
+
+    /// <summary>
+    /// Waits up to the keep-alive timeout for the next request on an idle connection, in short slices. Gives up early
+    /// (returning false, so the connection is closed) as soon as other connections are queued for a worker or the server
+    /// starts draining, since the worker held by this connection is better spent on them.
+    /// </summary>
+    private boolean awaitIdleRequest(Socket clientSocket, InputStream input, int requestCount) throws IOException
+    {
+        long deadline = System.currentTimeMillis() + _keepAliveTimeout;
+        while (true)
+        {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+            {
+                return false;
+            }
+
+            clientSocket.setSoTimeout((int)Math.min(remaining, IDLE_CHECK_INTERVAL_MS));
+            try
+            {
+                boolean returnVal = awaitNextRequest(input, requestCount);
+                clientSocket.setSoTimeout(_keepAliveTimeout);
+                return returnVal;
+            }
+            catch (SocketTimeoutException e)
+            {
+                if (_draining || _workerPool.getQueueDepth() > 0)
                 {
-                    response = DurandalHttpResponse.ServerErrorResponse();
+                    return false;
                 }
-                response.writeToStream(clientSocket.getOutputStream());
             }
+        }
+    }
+
+    /// <summary>
+    /// Waits for the first byte of the next request. Returns false if the client closed the connection cleanly between requests.
+    /// </summary>
+    private static boolean awaitNextRequest(InputStream input, int requestCount) throws IOException
+    {
+        input.mark(1);
+        if (input.read() < 0)
+        {
+            if (requestCount == 0)
+            {
+                System.err.println("Encountered a problem while accepting a new HTTP connection");
+                System.err.println("The client closed the connection without sending a request");
+            }
+            return false;
+        }
+        input.reset();
+        return true;
+    }
+
+    /// <summary>
+    /// Decides whether a connection stays open after this response, and sets the response's Connection header to say so.
+    /// HTTP/1.1 clients get keep-alive unless they ask for close; HTTP/1.0 clients only if they ask for it. A response
+    /// that already says "Connection: close" always closes, as does the last request allowed on one connection.
+    /// </summary>
+    boolean applyKeepAlive(DurandalHttpRequest request, DurandalHttpResponse response, int requestCount, boolean allowKeepAlive)
+    {
+        String requestConnection = request.RequestHeaders.get("Connection");
+        boolean http10 = "HTTP/1.0".equalsIgnoreCase(request.ProtocolVersion);
+        boolean clientWantsKeepAlive = http10 ?
+                "keep-alive".equalsIgnoreCase(requestConnection) :
+                !"close".equalsIgnoreCase(requestConnection);
+        // A streamed body of unknown length can only be sent to an HTTP/1.0 client by closing the connection after it
+        boolean closeDelimited = http10 && response.PayloadStream != null && !response.ResponseHeaders.containsKey("Content-Length");
+        if (closeDelimited)
+        {
+            response.ProtocolVersion = "HTTP/1.0";
+        }
+        boolean keepAlive = allowKeepAlive &&
+                !closeDelimited &&
+                !_draining &&
+                clientWantsKeepAlive &&
+                _keepAliveTimeout > 0 &&
+                requestCount < _maxRequestsPerConnection &&
+                !"close".equalsIgnoreCase(response.ResponseHeaders.get("Connection"));
 
-            if (clientSocket.isConnected())
+        if (keepAlive)
+        {
+            if (http10)
             {
-                clientSocket.close();
+                response.ResponseHeaders.put("Connection", "keep-alive");
             }
+            response.ResponseHeaders.put("Keep-Alive", String.format("timeout=%d, max=%d",
+                    _keepAliveTimeout / 1000, _maxRequestsPerConnection - requestCount));
         }
-        catch (SocketException e)
+        else
         {
+            response.ResponseHeaders.put("Connection", "close");
         }
-        catch (IOException e)
+        return keepAlive;
+    }
+
+    /// <summary>
+    /// Takes a slot from the concurrency limiter for a request. Returns null if the request was admitted, in which case
+    /// it must be passed to generateResponse() (or abandonRequest()). Otherwise returns the response to send instead:
+    /// a 503 if the request was shed, or the answer to a readiness probe.
+    /// </summary>
+    DurandalHttpResponse admitRequest(DurandalHttpRequest request)
+    {
+        if (_metricsPath != null && request.RequestFile.equals(_metricsPath))
+        {
+            return generateMetricsResponse();
+        }
+
+        if (_readinessPath != null && request.RequestFile.equals(_readinessPath))
+        {
+            if (!_ready)
+            {
+                return DurandalHttpResponse.ServiceUnavailableResponse(1);
+            }
+            DurandalHttpResponse response = DurandalHttpResponse.OKResponse();
+            response.PayloadData = "ready".getBytes(StandardCharsets.UTF_8);
+            return response;
+        }
+
+        if (_concurrencyLimiter == null || _concurrencyLimiter.tryAcquire(getRequestPriority(request)))
+        {
+            return null;
+        }
+        return DurandalHttpResponse.ServiceUnavailableResponse(1);
+    }
+
+    /// <summary>
+    /// Subclasses can override this to append their own metrics, in Prometheus text format, to what the metrics path serves
+    /// </summary>
+    protected void writeMetrics(StringBuilder output)
+    {
+    }
+
+    private DurandalHttpResponse generateMetricsResponse()
+    {
+        StringBuilder output = new StringBuilder(16384);
+        _metrics.writePrometheus(output);
+
+        output.append("# HELP durandal_http_open_connections Client connections open right now\n");
+        output.append("# TYPE durandal_http_open_connections gauge\n");
+        output.append("durandal_http_open_connections ").append(getOpenConnectionCount()).append('\n');
+        output.append("# HELP durandal_http_ready Whether the server is ready for traffic\n");
+        output.append("# TYPE durandal_http_ready gauge\n");
+        output.append("durandal_http_ready ").append(_ready ? 1 : 0).append('\n');
+
+        if (_workerPool != null)
+        {
+            WorkerPool.Statistics workers = _workerPool.getStatistics();
+            output.append("# HELP durandal_http_workers_active Workers running a task right now\n");
+            output.append("# TYPE durandal_http_workers_active gauge\n");
+            output.append("durandal_http_workers_active ").append(workers.ActiveWorkers).append('\n');
+            output.append("# HELP durandal_http_workers_queued Tasks waiting for a free worker\n");
+            output.append("# TYPE durandal_http_workers_queued gauge\n");
+            output.append("durandal_http_workers_queued ").append(workers.QueueDepth).append('\n');
+            output.append("# HELP durandal_http_workers_rejected_total Tasks turned away because the worker pool was saturated\n");
+            output.append("# TYPE durandal_http_workers_rejected_total counter\n");
+            output.append("durandal_http_workers_rejected_total ").append(workers.RejectedTasks).append('\n');
+        }
+
+        if (_concurrencyLimiter != null)
+        {
+            ConcurrencyLimiter.Statistics limiter = _concurrencyLimiter.getStatistics();
+            output.append("# HELP durandal_http_concurrency_limit The current limit on requests handled at once\n");
+            output.append("# TYPE durandal_http_concurrency_limit gauge\n");
+            output.append("durandal_http_concurrency_limit ").append(limiter.Limit).append('\n');
+            output.append("# HELP durandal_http_in_flight_requests Requests being handled right now\n");
+            output.append("# TYPE durandal_http_in_flight_requests gauge\n");
+            output.append("durandal_http_in_flight_requests ").append(limiter.InFlight).append('\n');
+            output.append("# HELP durandal_http_shed_requests_total Requests turned away by admission control\n");
+            output.append("# TYPE durandal_http_shed_requests_total counter\n");
+            output.append("durandal_http_shed_requests_total ").append(limiter.Shed).append('\n');
+        }
+
+        writeMetrics(output);
+        DurandalHttpResponse response = DurandalHttpResponse.OKResponse();
+        response.ResponseHeaders.put("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        response.PayloadData = output.toString().getBytes(StandardCharsets.UTF_8);
+        return response;
+    }
+
+    /// <summary>
+    /// Gives back the slot of an admitted request that will never be handled
+    /// </summary>
+    void abandonRequest()
+    {
+        if (_concurrencyLimiter != null)
+        {
+            _concurrencyLimiter.release();
+        }
+    }
+
+    /// <summary>
+    /// Runs the handler for an admitted request. The returned future always completes normally, with some response
+    /// to send. admittedTime is the System.nanoTime() when the request was admitted, so that time spent waiting for
+    /// a worker counts towards its latency.
+    /// </summary>
+    CompletableFuture<DurandalHttpResponse> generateResponse(final DurandalHttpRequest request, final long admittedTime)
+    {
+        CompletableFuture<DurandalHttpResponse> handlerResult;
+        try
+        {
+            handlerResult = handleConnectionAsync(request);
+        }
+        catch (RuntimeException e)
+        {
+            handlerResult = new CompletableFuture<DurandalHttpResponse>();
+            handlerResult.completeExceptionally(e);
+        }
+        if (handlerResult == null)
+        {
+            handlerResult = CompletableFuture.completedFuture(null);
+        }
+
+        return handlerResult.handle((response, error) ->
+        {
+            if (_concurrencyLimiter != null)
+            {
+                _concurrencyLimiter.release(getRequestPriority(request),
+                        isLatencyLoadSignal(request) ? System.nanoTime() - admittedTime : -1);
+            }
+
+            DurandalHttpResponse returnVal;
+            if (error != null)
+            {
+                System.err.println("Unhandled exception while handling HTTP request for " + request.RequestFile);
+                (error instanceof CompletionException && error.getCause() != null ? error.getCause() : error).printStackTrace();
+                returnVal = DurandalHttpResponse.ServerErrorResponse();
+            }
+            else if (response == null)
+            {
+                // Validate the response
+                returnVal = DurandalHttpResponse.ServerErrorResponse();
+            }
+            else
+            {
+                returnVal = applyConditionalRequest(request, response);
+            }
+            returnVal.OmitBody = HttpHelpers.isHeadRequest(request.RequestMethod);
+            return returnVal;
+        });
+    }
+
+    // The headers of a full response that still apply to the 304 that replaces it
+    private static final String[] NOT_MODIFIED_HEADERS = { "ETag", "Last-Modified", "Cache-Control", "Expires", "Vary", "Content-Location" };
+
+    /// <summary>
+    /// Replaces a 200 response with 304 Not Modified if the client already has it cached, according to the response's
+    /// own ETag or Last-Modified header. Handlers that can tell this before building the body (see
+    /// HttpHelpers.isNotModified) should check first and save the work; this catches the rest.
+    /// </summary>
+    private static DurandalHttpResponse applyConditionalRequest(DurandalHttpRequest request, DurandalHttpResponse response)
+    {
+        if (response.ResponseCode != 200 ||
+            !HttpHelpers.isNotModified(request, response.ResponseHeaders.get("ETag"), HttpHelpers.parseHttpDate(response.ResponseHeaders.get("Last-Modified"))))
+        {
+            return response;
+        }
+
+        DurandalHttpResponse notModified = DurandalHttpResponse.NotModifiedResponse();
+        for (String header : NOT_MODIFIED_HEADERS)
+        {
+            String value = response.ResponseHeaders.get(header);
+            if (value != null)
+            {
+                notModified.ResponseHeaders.put(header, value);
+            }
+        }
+        if (response.Body != null)
+        {
+            response.Body.close();
+        }
+        if (response.FileBody != null)
         {
+            response.FileBody.close();
         }
+        if (response.PayloadStream != null)
+        {
+            try
+            {
+                response.PayloadStream.close();
+            }
+            catch (IOException e) {}
+        }
+        return notModified;
+    }
+
+    /**
+     * Counts the bytes written through it, so that the blocking engine can tell how big each response was
+     */
+    private static class CountingOutputStream extends FilterOutputStream
+    {
+        private long _count = 0;
+
+        public CountingOutputStream(OutputStream stream)
+        {
+            super(stream);
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            _count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            _count += len;
+        }
+
+        public long getCount()
+        {
+            return _count;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e) {}
     }
 
-    protected abstract DurandalHttpResponse handleConnection(DurandalHttpRequest request);
+    /// <summary>
+    /// The routes that handleConnectionAsync dispatches to. Subclasses add theirs before starting the server.
+    /// </summary>
+    public HttpRouter getRouter()
+    {
+        return _router;
+    }
+
+    /// <summary>
+    /// Handles a request. By default, requests that match a route of the router go to its handler, and the rest to
+    /// handleConnection(). Handlers that wait on something slow (an upstream server, say) should return a future
+    /// rather than block, so that on the event loop engine they don't hold a worker while they wait.
+    /// </summary>
+    protected CompletableFuture<DurandalHttpResponse> handleConnectionAsync(DurandalHttpRequest request)
+    {
+        CompletableFuture<DurandalHttpResponse> routedResponse = _router.route(request);
+        if (routedResponse != null)
+        {
+            return routedResponse;
+        }
+        return CompletableFuture.completedFuture(handleConnection(request));
+    }
+
+    /// <summary>
+    /// Handles a request that no route matched, on the calling thread. The default is 404 Not Found.
+    /// </summary>
+    protected DurandalHttpResponse handleConnection(DurandalHttpRequest request)
+    {
+        return DurandalHttpResponse.NotFoundResponse();
+    }
 }
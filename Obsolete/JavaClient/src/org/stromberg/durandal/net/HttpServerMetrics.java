@@ -0,0 +1,208 @@
+package org.stromberg.durandal.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-route request metrics for an HttpServer: counts by status class, bytes in and out, and latency
+ * histograms for the three phases of a request (parsing it, running the handler, and writing the response).
+ * A route is the first segment of the request path, so "/views/style.css" is counted under "/views".
+ *
+ * Looking up a route and recording into it takes no locks and allocates nothing once the route has
+ * been seen; new routes are added copy-on-write. The number of routes is capped so that clients
+ * requesting random paths can't grow it without bound; the rest are counted under "other".
+ * @author lostromb
+ */
+public class HttpServerMetrics
+{
+    public static final int MAX_ROUTES = 64;
+    private static final String OVERFLOW_ROUTE = "other";
+
+    private volatile Route[] _routes = new Route[0];
+
+    /**
+     * The metrics of a single route
+     */
+    public static class Route
+    {
+        private final String _name;
+        // Indexed by status class: 1xx through 5xx, with anything else counted under 0
+        private final AtomicLongArray _responses = new AtomicLongArray(6);
+        private final AtomicLong _bytesIn = new AtomicLong();
+        private final AtomicLong _bytesOut = new AtomicLong();
+        private final LatencyHistogram _parseLatency = new LatencyHistogram();
+        private final LatencyHistogram _handlerLatency = new LatencyHistogram();
+        private final LatencyHistogram _writeLatency = new LatencyHistogram();
+
+        private Route(String name)
+        {
+            _name = name;
+        }
+
+        public void record(int responseCode, long bytesIn, long bytesOut, long parseNanos, long handlerNanos, long writeNanos)
+        {
+            int statusClass = responseCode / 100;
+            _responses.incrementAndGet(statusClass >= 1 && statusClass <= 5 ? statusClass : 0);
+            _bytesIn.addAndGet(bytesIn);
+            _bytesOut.addAndGet(bytesOut);
+            _parseLatency.recordNanos(parseNanos);
+            _handlerLatency.recordNanos(handlerNanos);
+            _writeLatency.recordNanos(writeNanos);
+        }
+
+        public String getName()
+        {
+            return _name;
+        }
+
+        public long getRequestCount()
+        {
+            long returnVal = 0;
+            for (int c = 0; c < _responses.length(); c++)
+            {
+                returnVal += _responses.get(c);
+            }
+            return returnVal;
+        }
+
+        public long getBytesIn()
+        {
+            return _bytesIn.get();
+        }
+
+        public long getBytesOut()
+        {
+            return _bytesOut.get();
+        }
+
+        public LatencyHistogram getParseLatency()
+        {
+            return _parseLatency;
+        }
+
+        public LatencyHistogram getHandlerLatency()
+        {
+            return _handlerLatency;
+        }
+
+        public LatencyHistogram getWriteLatency()
+        {
+            return _writeLatency;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s requests=%d in=%d out=%d handler p50=%dus p99=%dus",
+                    _name, getRequestCount(), _bytesIn.get(), _bytesOut.get(),
+                    _handlerLatency.getPercentileMicros(50), _handlerLatency.getPercentileMicros(99));
+        }
+    }
+
+    /// <summary>
+    /// Returns the route that the given path is counted under, creating it the first time it is seen
+    /// </summary>
+    public Route getRoute(String path)
+    {
+        int routeEnd = getRouteEnd(path);
+        for (Route route : _routes)
+        {
+            if (route._name.length() == routeEnd && path.regionMatches(0, route._name, 0, routeEnd))
+            {
+                return route;
+            }
+        }
+        return addRoute(path.substring(0, routeEnd));
+    }
+
+    public Route[] getRoutes()
+    {
+        return _routes;
+    }
+
+    private synchronized Route addRoute(String name)
+    {
+        Route[] routes = _routes;
+        // Another thread may have added it while we were waiting for the lock
+        for (Route route : routes)
+        {
+            if (route._name.equals(name))
+            {
+                return route;
+            }
+        }
+
+        if (routes.length >= MAX_ROUTES - 1 && !name.equals(OVERFLOW_ROUTE))
+        {
+            return addRoute(OVERFLOW_ROUTE);
+        }
+
+        Route returnVal = new Route(name);
+        Route[] newRoutes = new Route[routes.length + 1];
+        System.arraycopy(routes, 0, newRoutes, 0, routes.length);
+        newRoutes[routes.length] = returnVal;
+        _routes = newRoutes;
+        return returnVal;
+    }
+
+    /// <summary>
+    /// The length of the route part of a path: everything up to (not including) the second slash
+    /// </summary>
+    private static int getRouteEnd(String path)
+    {
+        int secondSlash = path.indexOf('/', 1);
+        return secondSlash < 0 ? path.length() : secondSlash;
+    }
+
+    /// <summary>
+    /// Appends every route's metrics in Prometheus text format
+    /// </summary>
+    public void writePrometheus(StringBuilder output)
+    {
+        Route[] routes = _routes;
+
+        output.append("# HELP durandal_http_requests_total Requests answered, by route and status class\n");
+        output.append("# TYPE durandal_http_requests_total counter\n");
+        for (Route route : routes)
+        {
+            for (int statusClass = 0; statusClass < route._responses.length(); statusClass++)
+            {
+                long count = route._responses.get(statusClass);
+                if (count > 0)
+                {
+                    output.append("durandal_http_requests_total{route=\"").append(escapeLabel(route._name)).append("\",code=\"")
+                            .append(statusClass == 0 ? "other" : statusClass + "xx").append("\"} ").append(count).append('\n');
+                }
+            }
+        }
+
+        output.append("# HELP durandal_http_request_bytes_total Bytes received in requests, including headers\n");
+        output.append("# TYPE durandal_http_request_bytes_total counter\n");
+        for (Route route : routes)
+        {
+            output.append("durandal_http_request_bytes_total{route=\"").append(escapeLabel(route._name)).append("\"} ").append(route._bytesIn.get()).append('\n');
+        }
+
+        output.append("# HELP durandal_http_response_bytes_total Bytes sent in responses, including headers\n");
+        output.append("# TYPE durandal_http_response_bytes_total counter\n");
+        for (Route route : routes)
+        {
+            output.append("durandal_http_response_bytes_total{route=\"").append(escapeLabel(route._name)).append("\"} ").append(route._bytesOut.get()).append('\n');
+        }
+
+        output.append("# HELP durandal_http_phase_duration_seconds Time spent in each phase of a request: parse, handler and write\n");
+        output.append("# TYPE durandal_http_phase_duration_seconds histogram\n");
+        for (Route route : routes)
+        {
+            String routeLabel = "route=\"" + escapeLabel(route._name) + "\"";
+            route._parseLatency.writePrometheus(output, "durandal_http_phase_duration_seconds", routeLabel + ",phase=\"parse\"");
+            route._handlerLatency.writePrometheus(output, "durandal_http_phase_duration_seconds", routeLabel + ",phase=\"handler\"");
+            route._writeLatency.writePrometheus(output, "durandal_http_phase_duration_seconds", routeLabel + ",phase=\"write\"");
+        }
+    }
+
+    static String escapeLabel(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,129 @@
+package org.stromberg.durandal.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with log-linear buckets, in the style of HdrHistogram: each power of two
+ * is split into four buckets, so any value is known to within 25% whether it is a few microseconds
+ * or several minutes. Recording is a couple of atomic increments, with no locks and no allocation,
+ * so it can be left on in production.
+ * @author lostromb
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values of 2^MAX_EXPONENT microseconds (about 9.5 hours) and more all land in the last bucket
+    private static final int MAX_EXPONENT = 35;
+    private static final int BUCKET_COUNT = SUB_BUCKETS + ((MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS);
+
+    // The bucket boundaries that are exported to Prometheus: every power of two from 32us to about 33s
+    private static final int MIN_EXPORTED_EXPONENT = 5;
+    private static final int MAX_EXPORTED_EXPONENT = 25;
+
+    private final AtomicLongArray _buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong _count = new AtomicLong();
+    private final AtomicLong _sumMicros = new AtomicLong();
+
+    public void recordNanos(long nanos)
+    {
+        long micros = Math.max(0, nanos / 1000);
+        _buckets.incrementAndGet(getBucketIndex(micros));
+        _count.incrementAndGet();
+        _sumMicros.addAndGet(micros);
+    }
+
+    public long getCount()
+    {
+        return _count.get();
+    }
+
+    public long getSumMicros()
+    {
+        return _sumMicros.get();
+    }
+
+    /// <summary>
+    /// Returns an upper bound on the given percentile (0 to 100) of the recorded values, in microseconds
+    /// </summary>
+    public long getPercentileMicros(double percentile)
+    {
+        long count = _count.get();
+        if (count == 0)
+        {
+            return 0;
+        }
+
+        long target = Math.max(1, (long)Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int c = 0; c < BUCKET_COUNT; c++)
+        {
+            seen += _buckets.get(c);
+            if (seen >= target)
+            {
+                return getBucketUpperBound(c);
+            }
+        }
+        return getBucketUpperBound(BUCKET_COUNT - 1);
+    }
+
+    /// <summary>
+    /// Appends the histogram in Prometheus text format as _bucket, _sum and _count series, in seconds.
+    /// labels is the inside of the label set shared by every series (e.g. route="/views"), without the braces.
+    /// </summary>
+    void writePrometheus(StringBuilder output, String name, String labels)
+    {
+        // Buckets are read one at a time while other threads record, so the totals are made consistent with the buckets
+        long cumulative = 0;
+        int bucket = 0;
+        for (int exponent = MIN_EXPORTED_EXPONENT; exponent <= MAX_EXPORTED_EXPONENT; exponent++)
+        {
+            int boundary = getBucketIndex(1L << exponent);
+            for (; bucket < boundary; bucket++)
+            {
+                cumulative += _buckets.get(bucket);
+            }
+            output.append(name).append("_bucket{").append(labels).append(",le=\"")
+                    .append((double)(1L << exponent) / 1000000).append("\"} ").append(cumulative).append('\n');
+        }
+        for (; bucket < BUCKET_COUNT; bucket++)
+        {
+            cumulative += _buckets.get(bucket);
+        }
+        output.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+        output.append(name).append("_sum{").append(labels).append("} ").append((double)_sumMicros.get() / 1000000).append('\n');
+        output.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+    }
+
+    private static int getBucketIndex(long micros)
+    {
+        if (micros < SUB_BUCKETS)
+        {
+            return (int)micros;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_EXPONENT)
+        {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int)(micros >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + ((exponent - SUB_BUCKET_BITS) * SUB_BUCKETS) + subBucket;
+    }
+
+    /// <summary>
+    /// The smallest value that is too large for the given bucket
+    /// </summary>
+    private static long getBucketUpperBound(int index)
+    {
+        if (index < SUB_BUCKETS)
+        {
+            return index + 1;
+        }
+
+        int exponent = ((index - SUB_BUCKETS) / SUB_BUCKETS) + SUB_BUCKET_BITS;
+        int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long)(SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS);
+    }
+}
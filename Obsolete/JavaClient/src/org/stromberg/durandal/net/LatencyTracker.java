@@ -0,0 +1,54 @@
+package org.stromberg.durandal.net;
+
+import java.util.Arrays;
+
+/**
+ * Keeps a sliding window of the most recent request latencies and answers percentile queries over it
+ * @author lostromb
+ */
+public class LatencyTracker
+{
+    private final long[] _samples;
+    private int _nextSample = 0;
+    private int _sampleCount = 0;
+
+    public LatencyTracker(int windowSize)
+    {
+        _samples = new long[windowSize];
+    }
+
+    public synchronized void record(long latencyMs)
+    {
+        _samples[_nextSample] = latencyMs;
+        _nextSample = (_nextSample + 1) % _samples.length;
+        if (_sampleCount < _samples.length)
+        {
+            _sampleCount++;
+        }
+    }
+
+    public synchronized int getSampleCount()
+    {
+        return _sampleCount;
+    }
+
+    /// <summary>
+    /// Returns the given percentile (0.0 to 1.0) of the recorded latencies, or -1 if nothing has been recorded
+    /// </summary>
+    public long getPercentile(double percentile)
+    {
+        long[] sorted;
+        synchronized (this)
+        {
+            if (_sampleCount == 0)
+            {
+                return -1;
+            }
+            sorted = Arrays.copyOf(_samples, _sampleCount);
+        }
+
+        Arrays.sort(sorted);
+        int index = (int)Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
@@ -0,0 +1,229 @@
+package org.stromberg.durandal.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads requests over a set of interchangeable servers. Each request goes to the better of two
+ * randomly chosen endpoints ("power of two choices"), judged by recent latency times the number of
+ * requests already in flight there. This keeps load off a slow server without the herding you get
+ * from always picking the single best one. An endpoint that fails several requests in a row is ejected
+ * and gets no more traffic until a background health probe finds it answering again. If every endpoint
+ * has been ejected, requests are spread over all of them anyway, since refusing to send is never better.
+ * @author lostromb
+ */
+public class LoadBalancer
+{
+    public static final int DEFAULT_EJECTION_THRESHOLD = 3;
+    public static final int DEFAULT_HEALTH_CHECK_INTERVAL_MS = 5000;
+    public static final int DEFAULT_HEALTH_CHECK_TIMEOUT_MS = 1000;
+
+    private static ScheduledExecutorService _healthCheckScheduler = null;
+
+    private final HttpEndpoint[] _endpoints;
+    private int _ejectionThreshold = DEFAULT_EJECTION_THRESHOLD;
+    private String _healthCheckPath = "/";
+    private int _healthCheckTimeout = DEFAULT_HEALTH_CHECK_TIMEOUT_MS;
+    private ScheduledFuture<?> _healthCheckTask = null;
+
+    public LoadBalancer(List<HttpEndpoint> endpoints)
+    {
+        if (endpoints.isEmpty())
+        {
+            throw new IllegalArgumentException("A load balancer needs at least one endpoint");
+        }
+        _endpoints = endpoints.toArray(new HttpEndpoint[endpoints.size()]);
+    }
+
+    public LoadBalancer(HttpEndpoint endpoint)
+    {
+        this(Collections.singletonList(endpoint));
+    }
+
+    public List<HttpEndpoint> getEndpoints()
+    {
+        return Collections.unmodifiableList(Arrays.asList(_endpoints));
+    }
+
+    /// <summary>
+    /// The endpoint that was listed first, which also names the service in Host headers
+    /// </summary>
+    public HttpEndpoint getPrimaryEndpoint()
+    {
+        return _endpoints[0];
+    }
+
+    /// <summary>
+    /// How many consecutive failures it takes to eject an endpoint
+    /// </summary>
+    public void setEjectionThreshold(int failures)
+    {
+        _ejectionThreshold = failures;
+    }
+
+    /// <summary>
+    /// The path that health probes GET. Any response other than a 5xx counts as healthy.
+    /// </summary>
+    public void setHealthCheckPath(String path)
+    {
+        _healthCheckPath = path;
+    }
+
+    public void setHealthCheckTimeout(int timeoutMs)
+    {
+        _healthCheckTimeout = timeoutMs;
+    }
+
+    /// <summary>
+    /// Chooses the endpoint for the next request. If avoid is given (such as the endpoint that a hedged
+    /// request is already waiting on), a different one is chosen whenever another healthy one exists.
+    /// </summary>
+    public HttpEndpoint select(HttpEndpoint avoid)
+    {
+        if (_endpoints.length == 1)
+        {
+            return _endpoints[0];
+        }
+
+        HttpEndpoint[] candidates = new HttpEndpoint[_endpoints.length];
+        int candidateCount = collectCandidates(candidates, avoid, false);
+        if (candidateCount == 0)
+        {
+            candidateCount = collectCandidates(candidates, null, false);
+        }
+        if (candidateCount == 0)
+        {
+            candidateCount = collectCandidates(candidates, null, true);
+        }
+        if (candidateCount == 1)
+        {
+            return candidates[0];
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(candidateCount);
+        int second = random.nextInt(candidateCount - 1);
+        if (second >= first)
+        {
+            second++;
+        }
+        return candidates[first].getLoadScore() <= candidates[second].getLoadScore() ? candidates[first] : candidates[second];
+    }
+
+    private int collectCandidates(HttpEndpoint[] candidates, HttpEndpoint avoid, boolean includeEjected)
+    {
+        int count = 0;
+        for (HttpEndpoint endpoint : _endpoints)
+        {
+            if (endpoint != avoid && (includeEjected || !endpoint.isEjected()))
+            {
+                candidates[count++] = endpoint;
+            }
+        }
+        return count;
+    }
+
+    /// <summary>
+    /// Records the outcome of a request that was sent to an endpoint chosen by select()
+    /// </summary>
+    public void recordResult(HttpEndpoint endpoint, long latencyMs, boolean success)
+    {
+        if (success)
+        {
+            if (endpoint.recordSuccess(latencyMs))
+            {
+                System.out.println("HTTP endpoint " + endpoint + " is healthy again");
+            }
+        }
+        else if (_endpoints.length > 1 && endpoint.recordFailure(_ejectionThreshold))
+        {
+            System.err.println("Ejecting HTTP endpoint " + endpoint + " after " + _ejectionThreshold + " consecutive failures");
+        }
+    }
+
+    /// <summary>
+    /// Starts probing every endpoint in the background. This does nothing if there is only one endpoint,
+    /// since it would be used regardless of its health.
+    /// </summary>
+    public synchronized void startHealthChecks(int intervalMs)
+    {
+        if (_healthCheckTask != null || _endpoints.length < 2)
+        {
+            return;
+        }
+
+        _healthCheckTask = getHealthCheckScheduler().scheduleWithFixedDelay(this::checkHealth, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopHealthChecks()
+    {
+        if (_healthCheckTask != null)
+        {
+            _healthCheckTask.cancel(false);
+            _healthCheckTask = null;
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getHealthCheckScheduler()
+    {
+        if (_healthCheckScheduler == null)
+        {
+            _healthCheckScheduler = Executors.newSingleThreadScheduledExecutor((runnable) ->
+            {
+                Thread thread = new Thread(runnable, "HttpClient-HealthCheck");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return _healthCheckScheduler;
+    }
+
+    private void checkHealth()
+    {
+        for (HttpEndpoint endpoint : _endpoints)
+        {
+            recordResult(endpoint, -1, probe(endpoint));
+        }
+    }
+
+    /// <summary>
+    /// Sends a health probe on a fresh connection (so that it tests whether we can still connect at all),
+    /// and returns true if the server answered with anything other than a server error
+    /// </summary>
+    private boolean probe(HttpEndpoint endpoint)
+    {
+        DurandalHttpRequest request = new DurandalHttpRequest();
+        request.RequestFile = _healthCheckPath;
+        request.ProtocolVersion = "HTTP/1.1";
+        request.RequestHeaders.put("Host", endpoint.getPoolKey());
+        request.RequestHeaders.put("Connection", "close");
+
+        try (Socket socket = new Socket())
+        {
+            socket.connect(endpoint.getResolvedAddress(), _healthCheckTimeout);
+            socket.setSoTimeout(_healthCheckTimeout);
+            BufferedOutputStream output = new BufferedOutputStream(socket.getOutputStream());
+            if (!request.writeToStream(output))
+            {
+                return false;
+            }
+            output.flush();
+            DurandalHttpResponse response = DurandalHttpResponse.readResponseFromStream(new BufferedInputStream(socket.getInputStream()));
+            return response != null && response.ResponseCode < 500;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,991 @@
+package org.stromberg.durandal.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The event loop engine behind HttpServer.Engine.EVENT_LOOP. A few I/O threads each run a Selector
+ * over their share of the server's sockets; they read and parse requests without blocking, and only
+ * once a whole request has arrived is it handed to a worker to run the server's handler. The serialized
+ * response is then written back by the I/O thread. A connection that is waiting on the network
+ * therefore costs a buffer and a selection key, not a thread, which is also what makes it cheap to
+ * keep idle connections open between requests. Pipelined requests wait in the connection's buffer
+ * and are parsed as soon as the response ahead of them has been written, so responses stay in order.
+ *
+ * Request bodies are held in memory until the request is complete, so unlike the blocking engine
+ * this one never spills them to disk; they are still capped at the server's maximum body size.
+ * @author lostromb
+ */
+class NioHttpServerEngine
+{
+    // How long a client has to finish sending a request once it has started (or connected)
+    private static final int REQUEST_TIMEOUT_MS = 30000;
+
+    // The buffer of a connection that once received a large request shrinks back to this size when it goes idle
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    // Streamed response bodies are sent in pieces of this size, with room in front for a chunk header
+    private static final int STREAM_CHUNK_SIZE = 16384;
+    private static final int CHUNK_HEADER_SPACE = 8;
+    private static final byte[] LAST_CHUNK = new byte[] { '0', 13, 10, 13, 10 };
+
+    private final HttpServer _server;
+    private final WorkerPool _workerPool;
+    private final long _maxBodySize;
+    private final ServerSocketChannel _serverChannel;
+    private final EventLoop[] _eventLoops;
+    private int _nextEventLoop = 0;
+    private volatile boolean _running = true;
+    private volatile boolean _draining = false;
+    private final AtomicInteger _connectionCount = new AtomicInteger();
+
+    public NioHttpServerEngine(HttpServer server, int port, WorkerPool workerPool, long maxBodySize, int ioThreadCount, String name) throws IOException
+    {
+        _server = server;
+        _workerPool = workerPool;
+        _maxBodySize = maxBodySize;
+        _serverChannel = ServerSocketChannel.open();
+        _serverChannel.bind(new InetSocketAddress(port), 1024);
+        _serverChannel.configureBlocking(false);
+        _eventLoops = new EventLoop[Math.max(1, ioThreadCount)];
+        for (int c = 0; c < _eventLoops.length; c++)
+        {
+            _eventLoops[c] = new EventLoop(Selector.open());
+            _eventLoops[c].setName(name + "-IO-" + c);
+            _eventLoops[c].setDaemon(true);
+        }
+
+        // The first loop also accepts new connections and deals them out to all of the loops
+        _serverChannel.register(_eventLoops[0]._selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public void start()
+    {
+        for (EventLoop eventLoop : _eventLoops)
+        {
+            eventLoop.start();
+        }
+    }
+
+    /// <summary>
+    /// Stops accepting connections, and closes each keep-alive connection as soon as it is between requests.
+    /// Connections with a request in progress stay open until their response has been written.
+    /// </summary>
+    public void beginDrain()
+    {
+        _draining = true;
+        for (final EventLoop eventLoop : _eventLoops)
+        {
+            eventLoop.execute(() -> eventLoop.closeIdleConnections());
+        }
+    }
+
+    /// <summary>
+    /// The number of connections open across all of the event loops
+    /// </summary>
+    public int getConnectionCount()
+    {
+        return _connectionCount.get();
+    }
+
+    /// <summary>
+    /// Stops accepting connections and closes every open one
+    /// </summary>
+    public void stop()
+    {
+        _running = false;
+        for (EventLoop eventLoop : _eventLoops)
+        {
+            eventLoop.wakeup();
+        }
+    }
+
+    /**
+     * The state of one client connection
+     */
+    private static class Connection
+    {
+        public final SocketChannel Channel;
+        public ByteBuffer RequestData = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        public final HttpHeaderParser HeaderParser = new HttpHeaderParser();
+        public int ParsePosition = 0;
+        public int HeaderLength = -1;
+        public long ContentLength = -1;
+        public boolean Chunked = false;
+        public int RequestEnd = 0;
+        public int RequestCount = 0;
+        public boolean Processing = false;
+        public ByteBuffer ResponseData = null;
+        // The body of a file-backed or streamed response, sent after ResponseData (which then only holds the headers)
+        public FileRegion FileBody = null;
+        public InputStream BodyStream = null;
+        public boolean ChunkedBody = false;
+        public boolean BodyFinished = false;
+        public ByteBuffer BodyBuffer = null;
+        public long BytesOut = 0;
+        public boolean KeepAlive = false;
+        // Set when a request was refused before its body was read; see lingerBeforeClose
+        public boolean DiscardInput = false;
+        public long DiscardedBytes = 0;
+
+        // Metrics for the request in progress
+        public HttpServerMetrics.Route Route = null;
+        public long RequestStartTime = 0;
+        public long ParseNanos = 0;
+        public long HandlerNanos = 0;
+        public int ResponseCode = 0;
+        public long WriteStartTime = 0;
+        public long LastActivity = System.currentTimeMillis();
+
+        public Connection(SocketChannel channel)
+        {
+            Channel = channel;
+        }
+    }
+
+    private class EventLoop extends Thread
+    {
+        private final Selector _selector;
+        private final ConcurrentLinkedQueue<Runnable> _tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        // Only ever touched by the event loop thread itself
+        private final Set<Connection> _connections = new HashSet<Connection>();
+
+        public EventLoop(Selector selector)
+        {
+            _selector = selector;
+        }
+
+        public void execute(Runnable task)
+        {
+            _tasks.add(task);
+            _selector.wakeup();
+        }
+
+        public void wakeup()
+        {
+            _selector.wakeup();
+        }
+
+        @Override
+        public void run()
+        {
+            while (_running)
+            {
+                try
+                {
+                    _selector.select(1000);
+                }
+                catch (IOException e)
+                {
+                    System.err.println(e.getMessage());
+                }
+
+                Runnable task;
+                while ((task = _tasks.poll()) != null)
+                {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> selectedKeys = _selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext())
+                {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    if (!key.isValid())
+                    {
+                        continue;
+                    }
+
+                    if (key.isAcceptable())
+                    {
+                        acceptConnections();
+                    }
+                    else
+                    {
+                        handleEvent(key, (Connection)key.attachment());
+                    }
+                }
+
+                expireTimeouts();
+            }
+
+            // Shutting down
+            for (Connection connection : _connections)
+            {
+                closeQuietly(connection);
+                _connectionCount.decrementAndGet();
+            }
+            _connections.clear();
+            if (this == _eventLoops[0])
+            {
+                try
+                {
+                    _serverChannel.close();
+                }
+                catch (IOException e) {}
+            }
+            try
+            {
+                _selector.close();
+            }
+            catch (IOException e) {}
+        }
+
+        private void acceptConnections()
+        {
+            try
+            {
+                SocketChannel channel;
+                while ((channel = _serverChannel.accept()) != null)
+                {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    final SocketChannel newChannel = channel;
+                    final EventLoop eventLoop = _eventLoops[_nextEventLoop];
+                    _nextEventLoop = (_nextEventLoop + 1) % _eventLoops.length;
+                    if (eventLoop == this)
+                    {
+                        register(newChannel);
+                    }
+                    else
+                    {
+                        eventLoop.execute(() -> eventLoop.register(newChannel));
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                System.err.println("Encountered a problem while accepting a new HTTP connection");
+                System.err.println(e.getMessage());
+            }
+        }
+
+        private void register(SocketChannel channel)
+        {
+            Connection connection = new Connection(channel);
+            try
+            {
+                channel.register(_selector, SelectionKey.OP_READ, connection);
+                _connections.add(connection);
+                _connectionCount.incrementAndGet();
+            }
+            catch (IOException e)
+            {
+                closeQuietly(channel);
+            }
+        }
+
+        private void handleEvent(SelectionKey key, Connection connection)
+        {
+            try
+            {
+                if (key.isReadable())
+                {
+                    readRequest(key, connection);
+                }
+                else if (key.isWritable())
+                {
+                    writeResponse(key, connection);
+                }
+            }
+            catch (IOException e)
+            {
+                close(connection);
+            }
+        }
+
+        private void readRequest(SelectionKey key, Connection connection) throws IOException
+        {
+            if (connection.DiscardInput)
+            {
+                discardInput(connection);
+                return;
+            }
+
+            if (!connection.RequestData.hasRemaining())
+            {
+                ByteBuffer newBuffer = ByteBuffer.allocate(connection.RequestData.capacity() * 2);
+                connection.RequestData.flip();
+                newBuffer.put(connection.RequestData);
+                connection.RequestData = newBuffer;
+            }
+
+            int bytesRead = connection.Channel.read(connection.RequestData);
+            if (bytesRead < 0)
+            {
+                close(connection);
+                return;
+            }
+            connection.LastActivity = System.currentTimeMillis();
+            processRequestData(key, connection);
+        }
+
+        /// <summary>
+        /// Parses as much of the current request as has arrived, and dispatches it once it is complete
+        /// </summary>
+        private void processRequestData(SelectionKey key, Connection connection) throws IOException
+        {
+            if (connection.RequestStartTime == 0)
+            {
+                connection.RequestStartTime = System.nanoTime();
+            }
+
+            if (connection.HeaderLength < 0 && !parseHeaders(connection))
+            {
+                return;
+            }
+
+            int bodyLength = connection.RequestData.position() - connection.HeaderLength;
+            if (connection.ContentLength > _maxBodySize || (connection.Chunked && bodyLength > _maxBodySize))
+            {
+                System.err.println(new PayloadTooLargeException(connection.ContentLength, _maxBodySize).getMessage());
+                connection.DiscardInput = true;
+                beginWrite(key, connection, serialize(DurandalHttpResponse.PayloadTooLargeResponse()), null, false);
+                return;
+            }
+
+            int bodyEnd;
+            if (connection.Chunked)
+            {
+                bodyEnd = findChunkedBodyEnd(connection.RequestData.array(), connection.HeaderLength, connection.RequestData.position());
+            }
+            else
+            {
+                bodyEnd = connection.RequestData.position() >= connection.HeaderLength + connection.ContentLength ?
+                        connection.HeaderLength + (int)connection.ContentLength : -1;
+            }
+
+            if (bodyEnd >= 0)
+            {
+                dispatch(key, connection, bodyEnd);
+            }
+        }
+
+        /// <summary>
+        /// Feeds the parser whatever new bytes have arrived. Returns true once the headers are complete.
+        /// </summary>
+        private boolean parseHeaders(Connection connection) throws IOException
+        {
+            ByteBuffer requestData = connection.RequestData;
+            int end = requestData.position();
+            requestData.flip();
+            requestData.position(connection.ParsePosition);
+            boolean complete = connection.HeaderParser.parse(requestData);
+            connection.ParsePosition = requestData.position();
+            requestData.limit(requestData.capacity());
+            requestData.position(end);
+
+            if (complete)
+            {
+                connection.HeaderLength = connection.ParsePosition;
+                connection.Chunked = connection.HeaderParser.isChunked();
+                // A request with neither a length nor chunking has no body
+                connection.ContentLength = Math.max(0, connection.HeaderParser.getContentLength());
+            }
+            return complete;
+        }
+
+        /// <summary>
+        /// Hands a complete request to a worker, and stops reading from the connection until the response has been sent
+        /// </summary>
+        private void dispatch(final SelectionKey key, final Connection connection, int bodyEnd) throws IOException
+        {
+            byte[] requestData = connection.RequestData.array();
+            byte[] body = connection.Chunked ?
+                    HttpHelpers.readFully(new ChunkedInputStream(new ByteArrayInputStream(requestData, connection.HeaderLength, bodyEnd - connection.HeaderLength))) :
+                    Arrays.copyOfRange(requestData, connection.HeaderLength, bodyEnd);
+            HttpHeaderParser parser = connection.HeaderParser;
+            HttpData data = new HttpData(parser.getStartLine(), parser.getHeaders(), body);
+            data.Body = HttpPayload.wrap(body);
+            data.HeaderLength = connection.HeaderLength;
+            final DurandalHttpRequest request = DurandalHttpRequest.parseRequest(data);
+            if (request == null)
+            {
+                close(connection);
+                return;
+            }
+
+            key.interestOps(0);
+            connection.Processing = true;
+            connection.RequestEnd = bodyEnd;
+            final int requestCount = ++connection.RequestCount;
+
+            // Requests the server is too loaded to take are shed right here, without ever waiting for a worker
+            final long admittedTime = System.nanoTime();
+            connection.Route = _server.getMetrics().getRoute(request.RequestFile);
+            connection.ParseNanos = admittedTime - connection.RequestStartTime;
+            connection.HandlerNanos = 0;
+            DurandalHttpResponse shedResponse = _server.admitRequest(request);
+            if (shedResponse != null)
+            {
+                connection.ResponseCode = shedResponse.ResponseCode;
+                beginWrite(key, connection, serialize(shedResponse), null, false);
+                return;
+            }
+
+            // The worker only runs the handler until it returns; an asynchronous handler then finishes on whatever thread
+            // completes its future, and nothing is blocked in the meantime
+            boolean accepted = _workerPool.execute(() -> _server.generateResponse(request, admittedTime).whenComplete((response, error) ->
+                    completeResponse(key, connection, request, requestCount, admittedTime, response, error)));
+
+            if (!accepted)
+            {
+                _server.abandonRequest();
+                connection.ResponseCode = 503;
+                beginWrite(key, connection, serialize(DurandalHttpResponse.ServiceUnavailableResponse(1)), null, false);
+            }
+        }
+
+        /// <summary>
+        /// Runs on whatever thread finished the handler, and hands the rendered response to the I/O thread. If the response
+        /// can't be rendered, the client gets a 500 and the connection is closed after it; otherwise the connection would be
+        /// left processing forever, which the idle timeout never reaps.
+        /// </summary>
+        private void completeResponse(final SelectionKey key, final Connection connection, DurandalHttpRequest request, int requestCount,
+                long admittedTime, final DurandalHttpResponse response, Throwable error)
+        {
+            // Handed to the I/O thread along with the response, through its task queue
+            connection.HandlerNanos = System.nanoTime() - admittedTime;
+            if (error == null && response != null)
+            {
+                try
+                {
+                    // An idle connection only costs this engine a buffer, so keep-alive is always allowed here
+                    final boolean keepAlive = _server.applyKeepAlive(request, response, requestCount, true);
+                    final ByteBuffer responseData = serialize(response);
+                    connection.ResponseCode = response.ResponseCode;
+                    execute(() -> beginWrite(key, connection, responseData, response, keepAlive));
+                    return;
+                }
+                catch (RuntimeException e)
+                {
+                    error = e;
+                }
+            }
+
+            System.err.println("Could not send HTTP response for " + request.RequestFile);
+            if (error != null)
+            {
+                error.printStackTrace();
+            }
+            if (response != null)
+            {
+                closeResponseBody(response);
+            }
+
+            DurandalHttpResponse errorResponse = DurandalHttpResponse.ServerErrorResponse();
+            errorResponse.ResponseHeaders.put("Connection", "close");
+            errorResponse.OmitBody = HttpHelpers.isHeadRequest(request.RequestMethod);
+            connection.ResponseCode = errorResponse.ResponseCode;
+            final ByteBuffer errorData = serialize(errorResponse);
+            execute(() -> beginWrite(key, connection, errorData, null, false));
+        }
+
+        /// <summary>
+        /// Starts sending a response. data is the whole response, or just its headers if body (which may be null)
+        /// has a FileBody or PayloadStream to send after them.
+        /// </summary>
+        private void beginWrite(SelectionKey key, Connection connection, ByteBuffer data, DurandalHttpResponse body, boolean keepAlive)
+        {
+            connection.FileBody = body == null ? null : body.FileBody;
+            connection.BodyStream = body == null ? null : body.PayloadStream;
+            if (!key.isValid())
+            {
+                // The connection was closed while the handler was running
+                closeResponseBody(connection);
+                return;
+            }
+            if (body != null && body.OmitBody)
+            {
+                // The reply to a HEAD request; data is only the headers
+                closeResponseBody(connection);
+            }
+
+            connection.Processing = true;
+            connection.ResponseData = data;
+            connection.ChunkedBody = connection.BodyStream != null && body.isChunked();
+            connection.BodyFinished = false;
+            connection.BytesOut = data.remaining();
+            connection.KeepAlive = keepAlive;
+            connection.WriteStartTime = System.nanoTime();
+            try
+            {
+                writeResponse(key, connection);
+            }
+            catch (IOException e)
+            {
+                close(connection);
+            }
+        }
+
+        private void writeResponse(SelectionKey key, Connection connection) throws IOException
+        {
+            if (connection.ResponseData.hasRemaining())
+            {
+                connection.Channel.write(connection.ResponseData);
+            }
+            // A file body goes straight from the OS page cache to the socket (sendfile), once all the headers are out
+            if (!connection.ResponseData.hasRemaining() && connection.FileBody != null)
+            {
+                connection.FileBody.transferTo(connection.Channel);
+            }
+            connection.LastActivity = System.currentTimeMillis();
+            if (connection.ResponseData.hasRemaining() || (connection.FileBody != null && connection.FileBody.getRemaining() > 0))
+            {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+
+            if (connection.FileBody != null)
+            {
+                connection.BytesOut += connection.FileBody.getLength();
+            }
+            if (connection.BodyStream != null && !connection.BodyFinished)
+            {
+                key.interestOps(0);
+                readBodyStream(key, connection);
+                return;
+            }
+
+            closeResponseBody(connection);
+            if (connection.Route != null)
+            {
+                connection.Route.record(connection.ResponseCode, connection.RequestEnd, connection.BytesOut,
+                        connection.ParseNanos, connection.HandlerNanos, System.nanoTime() - connection.WriteStartTime);
+            }
+
+            if (connection.DiscardInput)
+            {
+                lingerBeforeClose(key, connection);
+                return;
+            }
+
+            if (!connection.KeepAlive || _draining)
+            {
+                close(connection);
+                return;
+            }
+
+            beginNextRequest(key, connection);
+        }
+
+        /// <summary>
+        /// Half-closes a connection whose request was refused before its body was read, and goes on reading (and discarding)
+        /// what the client is still sending, until it closes its end or HttpServer.LINGER_TIMEOUT_MS passes. Closing a socket
+        /// with unread data resets the connection, and the client would most likely see that instead of our response.
+        /// </summary>
+        private void lingerBeforeClose(SelectionKey key, Connection connection)
+        {
+            try
+            {
+                connection.Channel.shutdownOutput();
+            }
+            catch (IOException e)
+            {
+                close(connection);
+                return;
+            }
+            connection.RequestData = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+            connection.LastActivity = System.currentTimeMillis();
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void discardInput(Connection connection) throws IOException
+        {
+            connection.RequestData.clear();
+            int bytesRead = connection.Channel.read(connection.RequestData);
+            connection.DiscardedBytes += Math.max(0, bytesRead);
+            if (bytesRead < 0 || connection.DiscardedBytes > HttpServer.MAX_LINGER_BYTES)
+            {
+                close(connection);
+            }
+        }
+
+        /// <summary>
+        /// Has a worker read the next piece of a streamed body, since that may block on wherever the body comes from.
+        /// Only one piece is in flight at a time: the next isn't read until this one has been written, so a slow
+        /// client holds back the source rather than having the body pile up in memory.
+        /// </summary>
+        private void readBodyStream(final SelectionKey key, final Connection connection)
+        {
+            if (connection.BodyBuffer == null)
+            {
+                connection.BodyBuffer = ByteBuffer.allocate(CHUNK_HEADER_SPACE + STREAM_CHUNK_SIZE + 2);
+            }
+
+            final InputStream body = connection.BodyStream;
+            final ByteBuffer buffer = connection.BodyBuffer;
+            final boolean chunked = connection.ChunkedBody;
+            // An event stream may go quiet for minutes; rather than have a worker wait for the next event, come back when there is one
+            if (body instanceof ServerSentEventStream &&
+                ((ServerSentEventStream)body).whenReadable(() -> execute(() -> readBodyStreamIfOpen(key, connection))))
+            {
+                return;
+            }
+
+            boolean accepted = _workerPool.execute(() ->
+            {
+                boolean finished = false;
+                boolean failed = false;
+                try
+                {
+                    finished = fillBodyBuffer(body, buffer, chunked);
+                }
+                catch (IOException e)
+                {
+                    failed = true;
+                }
+
+                final boolean bodyFinished = finished;
+                final boolean bodyFailed = failed;
+                execute(() -> continueBodyStream(key, connection, bodyFinished, bodyFailed));
+            });
+
+            if (!accepted)
+            {
+                close(connection);
+            }
+        }
+
+        private void readBodyStreamIfOpen(SelectionKey key, Connection connection)
+        {
+            // The connection may have been closed (which also closes its body) while we were waiting
+            if (key.isValid() && connection.BodyStream != null)
+            {
+                readBodyStream(key, connection);
+            }
+        }
+
+        private void continueBodyStream(SelectionKey key, Connection connection, boolean finished, boolean failed)
+        {
+            if (!key.isValid())
+            {
+                // Closing the connection already closed the body
+                return;
+            }
+            if (failed)
+            {
+                // The headers are long gone, so cutting the response short is the only way left to tell the client
+                close(connection);
+                return;
+            }
+
+            connection.ResponseData = connection.BodyBuffer;
+            connection.BodyFinished = finished;
+            connection.BytesOut += connection.ResponseData.remaining();
+            try
+            {
+                writeResponse(key, connection);
+            }
+            catch (IOException e)
+            {
+                close(connection);
+            }
+        }
+
+        /// <summary>
+        /// Readies a persistent connection for its next request, and starts on it right away if the client
+        /// already pipelined some or all of it behind the one just answered
+        /// </summary>
+        private void beginNextRequest(SelectionKey key, Connection connection) throws IOException
+        {
+            ByteBuffer requestData = connection.RequestData;
+            requestData.flip();
+            requestData.position(connection.RequestEnd);
+            if (requestData.capacity() > INITIAL_BUFFER_SIZE && requestData.remaining() <= INITIAL_BUFFER_SIZE)
+            {
+                connection.RequestData = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+                connection.RequestData.put(requestData);
+            }
+            else
+            {
+                requestData.compact();
+            }
+
+            connection.HeaderParser.reset();
+            connection.ParsePosition = 0;
+            connection.HeaderLength = -1;
+            connection.ContentLength = -1;
+            connection.Chunked = false;
+            connection.RequestEnd = 0;
+            connection.Processing = false;
+            connection.ResponseData = null;
+            connection.BodyBuffer = null;
+            connection.BytesOut = 0;
+            connection.KeepAlive = false;
+            connection.Route = null;
+            connection.RequestStartTime = 0;
+            connection.LastActivity = System.currentTimeMillis();
+            key.interestOps(SelectionKey.OP_READ);
+
+            if (connection.RequestData.position() > 0)
+            {
+                processRequestData(key, connection);
+            }
+        }
+
+        private void close(Connection connection)
+        {
+            if (_connections.remove(connection))
+            {
+                _connectionCount.decrementAndGet();
+            }
+            closeQuietly(connection);
+        }
+
+        private void closeIdleConnections()
+        {
+            if (this == _eventLoops[0])
+            {
+                try
+                {
+                    _serverChannel.close();
+                }
+                catch (IOException e) {}
+            }
+
+            Iterator<Connection> connections = _connections.iterator();
+            while (connections.hasNext())
+            {
+                Connection connection = connections.next();
+                if (isIdle(connection))
+                {
+                    connections.remove();
+                    _connectionCount.decrementAndGet();
+                    closeQuietly(connection);
+                }
+            }
+        }
+
+        /// <summary>
+        /// True for a persistent connection that is waiting for its next request
+        /// </summary>
+        private boolean isIdle(Connection connection)
+        {
+            return !connection.Processing && connection.RequestCount > 0 && connection.RequestData.position() == 0;
+        }
+
+        private void expireTimeouts()
+        {
+            long now = System.currentTimeMillis();
+            int keepAliveTimeout = _server.getKeepAliveTimeout();
+            Iterator<Connection> connections = _connections.iterator();
+            while (connections.hasNext())
+            {
+                Connection connection = connections.next();
+                // Slow handlers are not the client's fault, but clients that are slow to send or receive are
+                boolean waitingOnClient = !connection.Processing || connection.ResponseData != null;
+                // A persistent connection between requests gets the (usually shorter) idle timeout instead, and one that is
+                // only being kept open long enough for the client to read a refusal gets even less
+                long timeout = connection.DiscardInput ? HttpServer.LINGER_TIMEOUT_MS :
+                        isIdle(connection) ? keepAliveTimeout : REQUEST_TIMEOUT_MS;
+                if (waitingOnClient && now - connection.LastActivity > timeout)
+                {
+                    connections.remove();
+                    _connectionCount.decrementAndGet();
+                    closeQuietly(connection);
+                }
+            }
+        }
+    }
+
+    /// <summary>
+    /// Renders a response to bytes. For a file-backed or streamed response that is only the headers; the body is sent separately.
+    /// </summary>
+    private static ByteBuffer serialize(DurandalHttpResponse response)
+    {
+        if (response.FileBody != null || response.PayloadStream != null || response.OmitBody)
+        {
+            return ByteBuffer.wrap(response.serializeHeaders());
+        }
+
+        // A body that was spilled to disk has no PayloadData; writeToStream sends it from Body instead
+        long bodyLength = response.PayloadData != null ? response.PayloadData.length : response.Body != null ? response.Body.getLength() : 0;
+        ByteArrayOutputStream bucket = new ByteArrayOutputStream((int)bodyLength + 256);
+        response.writeToStream(bucket);
+        return ByteBuffer.wrap(bucket.toByteArray());
+    }
+
+    /// <summary>
+    /// Returns the offset just past the end of a chunked body that starts at the given offset,
+    /// or -1 if the whole body hasn't arrived yet
+    /// </summary>
+    static int findChunkedBodyEnd(byte[] data, int start, int end) throws IOException
+    {
+        int position = start;
+        while (true)
+        {
+            int lineEnd = indexOfLineEnd(data, position, end);
+            if (lineEnd < 0)
+            {
+                return -1;
+            }
+
+            int chunkSize = 0;
+            for (int c = position; c < lineEnd && data[c] != ';'; c++)
+            {
+                int digit = Character.digit(data[c], 16);
+                if (digit < 0 || chunkSize > (Integer.MAX_VALUE >> 4))
+                {
+                    throw new IOException("Invalid HTTP chunk size");
+                }
+                chunkSize = (chunkSize << 4) + digit;
+            }
+            position = lineEnd + 2;
+
+            if (chunkSize == 0)
+            {
+                // Skip any trailers until the blank line
+                while (true)
+                {
+                    lineEnd = indexOfLineEnd(data, position, end);
+                    if (lineEnd < 0)
+                    {
+                        return -1;
+                    }
+                    if (lineEnd == position)
+                    {
+                        return position + 2;
+                    }
+                    position = lineEnd + 2;
+                }
+            }
+
+            long dataEnd = (long)position + chunkSize + 2;
+            if (dataEnd > end)
+            {
+                return -1;
+            }
+            position = (int)dataEnd;
+        }
+    }
+
+    private static int indexOfLineEnd(byte[] data, int start, int end)
+    {
+        for (int c = start; c < end - 1; c++)
+        {
+            if (data[c] == '\r' && data[c + 1] == '\n')
+            {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    /// <summary>
+    /// Closes a client connection, along with the body of any response it was in the middle of sending
+    /// </summary>
+    private static void closeQuietly(Connection connection)
+    {
+        closeResponseBody(connection);
+        closeQuietly(connection.Channel);
+    }
+
+    /// <summary>
+    /// Gives back the file handle or source stream of the current response's body
+    /// </summary>
+    private static void closeResponseBody(Connection connection)
+    {
+        if (connection.FileBody != null)
+        {
+            connection.FileBody.close();
+            connection.FileBody = null;
+        }
+        if (connection.BodyStream != null)
+        {
+            try
+            {
+                connection.BodyStream.close();
+            }
+            catch (IOException e) {}
+            connection.BodyStream = null;
+        }
+    }
+
+    /// <summary>
+    /// Gives back the file handle or source stream of a response that will never be sent
+    /// </summary>
+    private static void closeResponseBody(DurandalHttpResponse response)
+    {
+        if (response.Body != null)
+        {
+            response.Body.close();
+        }
+        if (response.FileBody != null)
+        {
+            response.FileBody.close();
+        }
+        if (response.PayloadStream != null)
+        {
+            try
+            {
+                response.PayloadStream.close();
+            }
+            catch (IOException e) {}
+        }
+    }
+
+    /// <summary>
+    /// Reads the next piece of a streamed body into the buffer, framed as a chunk if it is chunked, and leaves the buffer
+    /// ready to be written (and empty if the body had no data for us yet). Returns true once the end of the body has been reached.
+    /// </summary>
+    static boolean fillBodyBuffer(InputStream body, ByteBuffer buffer, boolean chunked) throws IOException
+    {
+        byte[] array = buffer.array();
+        int dataStart = chunked ? CHUNK_HEADER_SPACE : 0;
+        int read = body.read(array, dataStart, STREAM_CHUNK_SIZE);
+        buffer.clear();
+        if (read < 0)
+        {
+            if (chunked)
+            {
+                buffer.put(LAST_CHUNK);
+            }
+            buffer.flip();
+            return true;
+        }
+
+        if (read == 0 || !chunked)
+        {
+            // No data yet is not the end of the body; for a chunked body, an empty chunk would be taken as the last one.
+            // Leaving the buffer empty sends nothing, and the body is simply read again
+            buffer.limit(read);
+            return false;
+        }
+
+        // The chunk header goes just in front of the data, and the CRLF that ends the chunk just after it
+        byte[] header = (Integer.toHexString(read) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        int start = dataStart - header.length;
+        System.arraycopy(header, 0, array, start, header.length);
+        array[dataStart + read] = 13;
+        array[dataStart + read + 1] = 10;
+        buffer.limit(dataStart + read + 2);
+        buffer.position(start);
+        return false;
+    }
+
+    private static void closeQuietly(SocketChannel channel)
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e) {}
+    }
+}
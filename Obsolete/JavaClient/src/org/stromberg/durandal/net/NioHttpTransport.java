@@ -0,0 +1,762 @@
+package org.stromberg.durandal.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A non-blocking HTTP/1.1 client transport. A small, fixed number of I/O threads each run
+ * a Selector that multiplexes every in-flight request assigned to it, so thousands of
+ * concurrent requests do not need thousands of threads. Idle keepalive connections are
+ * kept per I/O thread (up to a limit per address) and reused for later requests to the same address.
+ * Responses are buffered in full, so each one is limited to MAX_RESPONSE_SIZE bytes.
+ *
+ * Continuations attached to the returned futures run on an I/O thread, so callers that do
+ * heavy work on the result should use the *Async variants of the CompletableFuture methods.
+ * @author lostromb
+ */
+public class NioHttpTransport
+{
+    public static final int DEFAULT_IDLE_TIMEOUT_MS = 30000;
+    public static final int DEFAULT_MAX_IDLE_CHANNELS_PER_ADDRESS = 8;
+    public static final int MAX_RESPONSE_SIZE = (int)HttpPayload.DEFAULT_MAX_BODY_SIZE;
+
+    private static NioHttpTransport _sharedTransport = null;
+
+    private final EventLoop[] _eventLoops;
+    private final AtomicInteger _nextEventLoop = new AtomicInteger();
+    private final int _idleTimeoutMs;
+    private final int _maxIdleChannelsPerAddress;
+    private volatile boolean _running = true;
+
+    public NioHttpTransport(int ioThreadCount)
+    {
+        this(ioThreadCount, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    public NioHttpTransport(int ioThreadCount, int idleTimeoutMs)
+    {
+        this(ioThreadCount, idleTimeoutMs, DEFAULT_MAX_IDLE_CHANNELS_PER_ADDRESS);
+    }
+
+    /// <summary>
+    /// Creates a transport that keeps at most maxIdleChannelsPerAddress idle connections to each address on each I/O thread
+    /// </summary>
+    public NioHttpTransport(int ioThreadCount, int idleTimeoutMs, int maxIdleChannelsPerAddress)
+    {
+        _idleTimeoutMs = idleTimeoutMs;
+        _maxIdleChannelsPerAddress = maxIdleChannelsPerAddress;
+        _eventLoops = new EventLoop[Math.max(1, ioThreadCount)];
+        for (int c = 0; c < _eventLoops.length; c++)
+        {
+            try
+            {
+                _eventLoops[c] = new EventLoop(Selector.open());
+            }
+            catch (IOException e)
+            {
+                throw new IllegalStateException("Could not open an NIO selector", e);
+            }
+            _eventLoops[c].setName("NioHttpTransport-IO-" + c);
+            _eventLoops[c].setDaemon(true);
+            _eventLoops[c].start();
+        }
+    }
+
+    /// <summary>
+    /// The transport that is used by HttpClients that were not given one explicitly
+    /// </summary>
+    public static synchronized NioHttpTransport getSharedTransport()
+    {
+        if (_sharedTransport == null)
+        {
+            _sharedTransport = new NioHttpTransport(Math.min(2, Runtime.getRuntime().availableProcessors()));
+        }
+        return _sharedTransport;
+    }
+
+    /// <summary>
+    /// Sends a request to the given address and returns a future for the response. If timeoutMs is
+    /// positive, the future fails with a SocketTimeoutException if the entire exchange takes longer than that.
+    /// Cancelling the future aborts the exchange and closes its connection.
+    /// </summary>
+    public CompletableFuture<DurandalHttpResponse> send(InetSocketAddress address, DurandalHttpRequest request, int timeoutMs)
+    {
+        final CompletableFuture<DurandalHttpResponse> returnVal = new CompletableFuture<DurandalHttpResponse>();
+        if (!_running)
+        {
+            returnVal.completeExceptionally(new IOException("The HTTP transport has been shut down"));
+            return returnVal;
+        }
+
+        ByteArrayOutputStream serializedRequest = new ByteArrayOutputStream();
+        if (!request.writeToStream(serializedRequest))
+        {
+            returnVal.completeExceptionally(new IOException("Could not serialize HTTP request"));
+            return returnVal;
+        }
+
+        long deadline = timeoutMs > 0 ? System.currentTimeMillis() + timeoutMs : Long.MAX_VALUE;
+        final Exchange exchange = new Exchange(address, ByteBuffer.wrap(serializedRequest.toByteArray()),
+                HttpHelpers.isHeadRequest(request.RequestMethod), HttpHelpers.isIdempotentMethod(request.RequestMethod),
+                deadline, returnVal);
+        final EventLoop eventLoop = _eventLoops[(_nextEventLoop.getAndIncrement() & Integer.MAX_VALUE) % _eventLoops.length];
+        eventLoop.execute(() -> eventLoop.begin(exchange));
+        returnVal.whenComplete((response, error) ->
+        {
+            if (returnVal.isCancelled())
+            {
+                eventLoop.execute(() -> eventLoop.abort(exchange));
+            }
+        });
+
+        return returnVal;
+    }
+
+    /// <summary>
+    /// Stops all I/O threads. Any requests still in flight will fail.
+    /// </summary>
+    public void shutdown()
+    {
+        _running = false;
+        for (EventLoop eventLoop : _eventLoops)
+        {
+            eventLoop.wakeup();
+        }
+    }
+
+    /**
+     * The state of a single request/response exchange
+     */
+    private static class Exchange
+    {
+        public final InetSocketAddress Address;
+        public final ByteBuffer RequestData;
+        // The reply to a HEAD request has no body, whatever its headers say
+        public final boolean HeadRequest;
+        public final boolean Idempotent;
+        public final long Deadline;
+        public final CompletableFuture<DurandalHttpResponse> Future;
+        public SocketChannel Channel = null;
+        public boolean ReusedConnection = false;
+        public boolean Retried = false;
+        public ByteBuffer ResponseData = ByteBuffer.allocate(4096);
+        public int HeaderLength = -1;
+        public long ContentLength = -1;
+        public int DelimiterScanPosition = 0;
+        public final HttpHeaderParser HeaderParser = new HttpHeaderParser();
+        // For chunked bodies: where the next chunk header (or the CRLF after a chunk's data) starts in ResponseData
+        public boolean Chunked = false;
+        public int ChunkScanPosition = -1;
+        public boolean AfterChunkData = false;
+        public boolean InChunkTrailers = false;
+
+        public Exchange(InetSocketAddress address, ByteBuffer requestData, boolean headRequest, boolean idempotent,
+                long deadline, CompletableFuture<DurandalHttpResponse> future)
+        {
+            Address = address;
+            RequestData = requestData;
+            HeadRequest = headRequest;
+            Idempotent = idempotent;
+            Deadline = deadline;
+            Future = future;
+        }
+    }
+
+    /**
+     * A keepalive connection that is parked on a selector waiting for its next request
+     */
+    private static class IdleChannel
+    {
+        public final InetSocketAddress Address;
+        public final SocketChannel Channel;
+        public final long IdleSince;
+
+        public IdleChannel(InetSocketAddress address, SocketChannel channel)
+        {
+            Address = address;
+            Channel = channel;
+            IdleSince = System.currentTimeMillis();
+        }
+    }
+
+    private class EventLoop extends Thread
+    {
+        private final Selector _selector;
+        private final ConcurrentLinkedQueue<Runnable> _tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        // These are only ever touched by the event loop thread itself
+        private final Set<Exchange> _activeExchanges = new HashSet<Exchange>();
+        private final Map<InetSocketAddress, ArrayDeque<IdleChannel>> _idleChannels = new HashMap<InetSocketAddress, ArrayDeque<IdleChannel>>();
+
+        public EventLoop(Selector selector)
+        {
+            _selector = selector;
+        }
+
+        public void execute(Runnable task)
+        {
+            _tasks.add(task);
+            _selector.wakeup();
+        }
+
+        public void wakeup()
+        {
+            _selector.wakeup();
+        }
+
+        @Override
+        public void run()
+        {
+            while (_running)
+            {
+                try
+                {
+                    _selector.select(getSelectTimeout());
+                }
+                catch (IOException e)
+                {
+                    System.err.println(e.getMessage());
+                }
+
+                Runnable task;
+                while ((task = _tasks.poll()) != null)
+                {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> selectedKeys = _selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext())
+                {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    if (!key.isValid())
+                    {
+                        continue;
+                    }
+
+                    Object attachment = key.attachment();
+                    if (attachment instanceof Exchange)
+                    {
+                        handleEvent(key, (Exchange)attachment);
+                    }
+                    else if (attachment instanceof IdleChannel)
+                    {
+                        // Idle connections should never be readable. Either the server closed it or sent garbage
+                        IdleChannel idleChannel = (IdleChannel)attachment;
+                        removeIdleChannel(idleChannel);
+                        closeQuietly(idleChannel.Channel);
+                    }
+                }
+
+                expireTimeouts();
+            }
+
+            // Shutting down
+            for (Exchange exchange : new HashSet<Exchange>(_activeExchanges))
+            {
+                fail(exchange, new IOException("The HTTP transport has been shut down"));
+            }
+            for (ArrayDeque<IdleChannel> idleQueue : _idleChannels.values())
+            {
+                for (IdleChannel idleChannel : idleQueue)
+                {
+                    closeQuietly(idleChannel.Channel);
+                }
+            }
+            _idleChannels.clear();
+            try
+            {
+                _selector.close();
+            }
+            catch (IOException e) {}
+        }
+
+        public void begin(Exchange exchange)
+        {
+            if (exchange.Future.isDone())
+            {
+                // Cancelled before it even started
+                return;
+            }
+
+            try
+            {
+                SocketChannel channel = exchange.Retried ? null : takeIdleChannel(exchange.Address);
+                _activeExchanges.add(exchange);
+                if (channel != null)
+                {
+                    exchange.Channel = channel;
+                    exchange.ReusedConnection = true;
+                    SelectionKey key = channel.keyFor(_selector);
+                    key.attach(exchange);
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+                else
+                {
+                    channel = SocketChannel.open();
+                    exchange.Channel = channel;
+                    exchange.ReusedConnection = false;
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    if (channel.connect(exchange.Address))
+                    {
+                        channel.register(_selector, SelectionKey.OP_WRITE, exchange);
+                    }
+                    else
+                    {
+                        channel.register(_selector, SelectionKey.OP_CONNECT, exchange);
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                fail(exchange, e);
+            }
+        }
+
+        public void abort(Exchange exchange)
+        {
+            if (_activeExchanges.remove(exchange))
+            {
+                // The request may have been half-written, so the connection can't be reused
+                closeQuietly(exchange.Channel);
+            }
+        }
+
+        private void handleEvent(SelectionKey key, Exchange exchange)
+        {
+            try
+            {
+                if (key.isConnectable())
+                {
+                    if (exchange.Channel.finishConnect())
+                    {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                    }
+                    return;
+                }
+
+                if (key.isWritable())
+                {
+                    exchange.Channel.write(exchange.RequestData);
+                    if (!exchange.RequestData.hasRemaining())
+                    {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+                else if (key.isReadable())
+                {
+                    readResponse(exchange);
+                }
+            }
+            catch (IOException e)
+            {
+                if (canRetry(exchange))
+                {
+                    retry(exchange);
+                }
+                else
+                {
+                    fail(exchange, e);
+                }
+            }
+            catch (RuntimeException e)
+            {
+                // Whatever the server sent, it must not be able to stop the event loop for every other request
+                fail(exchange, new IOException("Malformed HTTP response from " + exchange.Address, e));
+            }
+        }
+
+        private void readResponse(Exchange exchange) throws IOException
+        {
+            if (!exchange.ResponseData.hasRemaining())
+            {
+                int capacity = exchange.ResponseData.capacity();
+                if (capacity >= MAX_RESPONSE_SIZE)
+                {
+                    throw new PayloadTooLargeException(exchange.ContentLength, MAX_RESPONSE_SIZE);
+                }
+                ByteBuffer newBuffer = ByteBuffer.allocate((int)Math.min(capacity * 2L, MAX_RESPONSE_SIZE));
+                exchange.ResponseData.flip();
+                newBuffer.put(exchange.ResponseData);
+                exchange.ResponseData = newBuffer;
+            }
+
+            int bytesRead = exchange.Channel.read(exchange.ResponseData);
+            if (bytesRead < 0)
+            {
+                if (canRetry(exchange))
+                {
+                    // A pooled connection was closed by the server before it got our request
+                    retry(exchange);
+                }
+                else if (exchange.HeaderLength >= 0 && exchange.ContentLength < 0 && !exchange.Chunked)
+                {
+                    // The body was delimited by connection close
+                    complete(exchange, exchange.ResponseData.position(), false);
+                }
+                else
+                {
+                    fail(exchange, new IOException("Connection closed before the HTTP response was complete"));
+                }
+                return;
+            }
+
+            if (exchange.HeaderLength < 0)
+            {
+                findHeaderLength(exchange);
+            }
+
+            if (exchange.HeaderLength >= 0)
+            {
+                int bodyEnd = findBodyEnd(exchange);
+                if (bodyEnd >= 0)
+                {
+                    complete(exchange, bodyEnd, true);
+                }
+            }
+        }
+
+        /// <summary>
+        /// Returns where the body ends in the response buffer, or -1 if it hasn't all arrived yet
+        /// (or if it runs until the connection closes)
+        /// </summary>
+        private int findBodyEnd(Exchange exchange) throws IOException
+        {
+            if (exchange.Chunked)
+            {
+                return scanChunks(exchange);
+            }
+            if (exchange.ContentLength >= 0)
+            {
+                // Already checked against MAX_RESPONSE_SIZE, so this can't overflow
+                int bodyEnd = exchange.HeaderLength + (int)exchange.ContentLength;
+                return exchange.ResponseData.position() >= bodyEnd ? bodyEnd : -1;
+            }
+            return -1;
+        }
+
+        /// <summary>
+        /// Walks the chunk headers of a chunked body that have arrived so far, skipping over the data in between.
+        /// Returns the end of the body (after the last chunk and its trailers), or -1 if it hasn't all arrived yet.
+        /// </summary>
+        private int scanChunks(Exchange exchange) throws IOException
+        {
+            byte[] data = exchange.ResponseData.array();
+            int end = exchange.ResponseData.position();
+            while (true)
+            {
+                int lineStart = exchange.ChunkScanPosition;
+                int lineEnd = lineStart;
+                while (lineEnd < end && data[lineEnd] != '\n')
+                {
+                    lineEnd++;
+                }
+                if (lineEnd >= end)
+                {
+                    return -1;
+                }
+
+                exchange.ChunkScanPosition = lineEnd + 1;
+                if (exchange.AfterChunkData)
+                {
+                    // The line break that ends a chunk's data
+                    exchange.AfterChunkData = false;
+                }
+                else if (exchange.InChunkTrailers)
+                {
+                    if (lineEnd == lineStart || (lineEnd == lineStart + 1 && data[lineStart] == '\r'))
+                    {
+                        return lineEnd + 1;
+                    }
+                }
+                else
+                {
+                    long chunkSize = parseChunkSize(data, lineStart, lineEnd);
+                    if (chunkSize == 0)
+                    {
+                        exchange.InChunkTrailers = true;
+                    }
+                    else
+                    {
+                        long chunkEnd = lineEnd + 1 + chunkSize;
+                        if (chunkEnd > MAX_RESPONSE_SIZE)
+                        {
+                            throw new PayloadTooLargeException(-1, MAX_RESPONSE_SIZE);
+                        }
+                        exchange.ChunkScanPosition = (int)chunkEnd;
+                        exchange.AfterChunkData = true;
+                    }
+                }
+            }
+        }
+
+        private void findHeaderLength(Exchange exchange) throws IOException
+        {
+            // Feed the parser only the bytes it hasn't seen yet, then put the buffer back the way it was
+            ByteBuffer responseData = exchange.ResponseData;
+            int end = responseData.position();
+            responseData.flip();
+            responseData.position(exchange.DelimiterScanPosition);
+            boolean complete = exchange.HeaderParser.parse(responseData);
+            exchange.DelimiterScanPosition = responseData.position();
+            responseData.limit(responseData.capacity());
+            responseData.position(end);
+
+            if (complete)
+            {
+                exchange.HeaderLength = exchange.DelimiterScanPosition;
+                if (exchange.HeadRequest || HttpHelpers.isBodilessResponse(exchange.HeaderParser.getStartLine()))
+                {
+                    exchange.ContentLength = 0;
+                }
+                else if (exchange.HeaderParser.isChunked())
+                {
+                    exchange.Chunked = true;
+                    exchange.ChunkScanPosition = exchange.HeaderLength;
+                }
+                else if (exchange.HeaderParser.getContentLength() >= 0)
+                {
+                    exchange.ContentLength = exchange.HeaderParser.getContentLength();
+                    if (exchange.HeaderLength + exchange.ContentLength > MAX_RESPONSE_SIZE)
+                    {
+                        throw new PayloadTooLargeException(exchange.ContentLength, MAX_RESPONSE_SIZE);
+                    }
+                }
+                else if (exchange.HeaderParser.isKeepAlive())
+                {
+                    // Same assumption that HttpHelpers.readHttpHeaders makes
+                    exchange.ContentLength = 0;
+                }
+            }
+        }
+
+        /// <summary>
+        /// Finishes an exchange whose body ends at bodyEnd in the response buffer. If the body was delimited by the
+        /// connection closing rather than by its framing, exactLength is false and the connection can't be reused.
+        /// </summary>
+        private void complete(Exchange exchange, int bodyEnd, boolean exactLength) throws IOException
+        {
+            _activeExchanges.remove(exchange);
+            // The headers have already been parsed, so all that's left is to cut out the body
+            HttpHeaderParser parser = exchange.HeaderParser;
+            byte[] body;
+            if (exchange.Chunked)
+            {
+                body = HttpHelpers.readFully(new ChunkedInputStream(new ByteArrayInputStream(exchange.ResponseData.array(),
+                        exchange.HeaderLength, bodyEnd - exchange.HeaderLength)));
+                // The body handed to the caller is no longer chunked
+                parser.getHeaders().remove("Transfer-Encoding");
+                parser.getHeaders().put("Content-Length", Integer.toString(body.length));
+            }
+            else
+            {
+                body = Arrays.copyOfRange(exchange.ResponseData.array(), exchange.HeaderLength, bodyEnd);
+            }
+            DurandalHttpResponse response = DurandalHttpResponse.parseResponse(new HttpData(parser.getStartLine(), parser.getHeaders(), body));
+            if (response == null)
+            {
+                closeQuietly(exchange.Channel);
+                exchange.Future.completeExceptionally(new IOException("Malformed HTTP response from " + exchange.Address));
+                return;
+            }
+
+            boolean reusable = exactLength &&
+                    exchange.ResponseData.position() == bodyEnd &&
+                    HttpHelpers.isPersistentConnection(response);
+            if (reusable)
+            {
+                parkIdleChannel(exchange);
+            }
+            else
+            {
+                closeQuietly(exchange.Channel);
+            }
+
+            exchange.Future.complete(response);
+        }
+
+        /// <summary>
+        /// A failed pooled connection is only resent transparently if the server can't have acted on the request:
+        /// either it was never written out in full, or its method is safe to repeat.
+        /// </summary>
+        private boolean canRetry(Exchange exchange)
+        {
+            return exchange.ReusedConnection &&
+                    exchange.ResponseData.position() == 0 &&
+                    (exchange.Idempotent || exchange.RequestData.hasRemaining());
+        }
+
+        private void retry(Exchange exchange)
+        {
+            closeQuietly(exchange.Channel);
+            _activeExchanges.remove(exchange);
+            exchange.Retried = true;
+            exchange.RequestData.rewind();
+            exchange.ResponseData.clear();
+            exchange.HeaderLength = -1;
+            exchange.ContentLength = -1;
+            exchange.DelimiterScanPosition = 0;
+            exchange.Chunked = false;
+            exchange.ChunkScanPosition = -1;
+            exchange.AfterChunkData = false;
+            exchange.InChunkTrailers = false;
+            exchange.HeaderParser.reset();
+            begin(exchange);
+        }
+
+        private void fail(Exchange exchange, Exception error)
+        {
+            _activeExchanges.remove(exchange);
+            closeQuietly(exchange.Channel);
+            exchange.Future.completeExceptionally(error);
+        }
+
+        private void parkIdleChannel(Exchange exchange)
+        {
+            ArrayDeque<IdleChannel> idleQueue = _idleChannels.get(exchange.Address);
+            if (idleQueue == null)
+            {
+                idleQueue = new ArrayDeque<IdleChannel>();
+                _idleChannels.put(exchange.Address, idleQueue);
+            }
+            if (idleQueue.size() >= _maxIdleChannelsPerAddress)
+            {
+                // A burst of concurrent requests shouldn't leave that many sockets open afterwards
+                closeQuietly(exchange.Channel);
+                return;
+            }
+
+            IdleChannel idleChannel = new IdleChannel(exchange.Address, exchange.Channel);
+            SelectionKey key = exchange.Channel.keyFor(_selector);
+            key.attach(idleChannel);
+            key.interestOps(SelectionKey.OP_READ);
+            idleQueue.offerFirst(idleChannel);
+        }
+
+        private SocketChannel takeIdleChannel(InetSocketAddress address)
+        {
+            ArrayDeque<IdleChannel> idleQueue = _idleChannels.get(address);
+            while (idleQueue != null && !idleQueue.isEmpty())
+            {
+                IdleChannel idleChannel = idleQueue.pollFirst();
+                if (idleChannel.Channel.isOpen() && idleChannel.Channel.keyFor(_selector) != null)
+                {
+                    return idleChannel.Channel;
+                }
+            }
+            return null;
+        }
+
+        private void removeIdleChannel(IdleChannel idleChannel)
+        {
+            ArrayDeque<IdleChannel> idleQueue = _idleChannels.get(idleChannel.Address);
+            if (idleQueue != null)
+            {
+                idleQueue.remove(idleChannel);
+            }
+        }
+
+        private long getSelectTimeout()
+        {
+            long now = System.currentTimeMillis();
+            long nextDeadline = now + 1000;
+            for (Exchange exchange : _activeExchanges)
+            {
+                nextDeadline = Math.min(nextDeadline, exchange.Deadline);
+            }
+            return Math.max(1, nextDeadline - now);
+        }
+
+        private void expireTimeouts()
+        {
+            long now = System.currentTimeMillis();
+            Iterator<Exchange> exchanges = _activeExchanges.iterator();
+            while (exchanges.hasNext())
+            {
+                Exchange exchange = exchanges.next();
+                if (now >= exchange.Deadline)
+                {
+                    exchanges.remove();
+                    closeQuietly(exchange.Channel);
+                    exchange.Future.completeExceptionally(new SocketTimeoutException("HTTP request to " + exchange.Address + " timed out"));
+                }
+            }
+
+            for (ArrayDeque<IdleChannel> idleQueue : _idleChannels.values())
+            {
+                Iterator<IdleChannel> idleChannels = idleQueue.iterator();
+                while (idleChannels.hasNext())
+                {
+                    IdleChannel idleChannel = idleChannels.next();
+                    if (now - idleChannel.IdleSince > _idleTimeoutMs)
+                    {
+                        idleChannels.remove();
+                        closeQuietly(idleChannel.Channel);
+                    }
+                }
+            }
+        }
+    }
+
+    /// <summary>
+    /// Parses the hex size at the start of a chunk header line, ignoring any chunk extensions
+    /// </summary>
+    private static long parseChunkSize(byte[] data, int start, int end) throws IOException
+    {
+        long returnVal = 0;
+        int digits = 0;
+        for (int c = start; c < end; c++)
+        {
+            int digit = Character.digit(data[c], 16);
+            if (digit < 0)
+            {
+                if (data[c] == ';' || data[c] == '\r' || data[c] == ' ' || data[c] == '\t')
+                {
+                    break;
+                }
+                throw new IOException("Invalid HTTP chunk size");
+            }
+            if (++digits > 15)
+            {
+                throw new PayloadTooLargeException(-1, MAX_RESPONSE_SIZE);
+            }
+            returnVal = (returnVal << 4) | digit;
+        }
+        if (digits == 0)
+        {
+            throw new IOException("Invalid HTTP chunk size");
+        }
+        return returnVal;
+    }
+
+    private static void closeQuietly(SocketChannel channel)
+    {
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e) {}
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.stromberg.durandal.net;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an HTTP message body is larger than the receiver is willing to accept
+ * @author lostromb
+ */
+public class PayloadTooLargeException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final long _maxBodySize;
+
+    public PayloadTooLargeException(long bodySize, long maxBodySize)
+    {
+        super(bodySize < 0 ?
+                "HTTP body is larger than the limit of " + maxBodySize + " bytes" :
+                "HTTP body of " + bodySize + " bytes is larger than the limit of " + maxBodySize + " bytes");
+        _maxBodySize = maxBodySize;
+    }
+
+    public long getMaxBodySize()
+    {
+        return _maxBodySize;
+    }
+}
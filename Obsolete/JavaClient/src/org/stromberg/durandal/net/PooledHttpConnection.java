@@ -0,0 +1,221 @@
+package org.stromberg.durandal.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * A single persistent socket to a remote HTTP server, along with the buffered streams
+ * that must survive between requests (so that no bytes are lost when the connection is reused)
+ * @author lostromb
+ */
+class PooledHttpConnection
+{
+    private final String _poolKey;
+    private final Socket _socket;
+    private final DeadlineInputStream _socketInput;
+    private final BufferedInputStream _input;
+    private final BufferedOutputStream _output;
+    private long _lastUsedTime;
+    private int _useCount = 0;
+
+    public PooledHttpConnection(String poolKey, Socket socket) throws IOException
+    {
+        _poolKey = poolKey;
+        _socket = socket;
+        _socketInput = new DeadlineInputStream(socket);
+        _input = new BufferedInputStream(_socketInput);
+        _output = new BufferedOutputStream(socket.getOutputStream());
+        _lastUsedTime = System.currentTimeMillis();
+    }
+
+    public String getPoolKey()
+    {
+        return _poolKey;
+    }
+
+    public Socket getSocket()
+    {
+        return _socket;
+    }
+
+    public BufferedInputStream getInputStream()
+    {
+        return _input;
+    }
+
+    public BufferedOutputStream getOutputStream()
+    {
+        return _output;
+    }
+
+    public long getLastUsedTime()
+    {
+        return _lastUsedTime;
+    }
+
+    /// <summary>
+    /// The number of requests that have been sent over this connection, including the current one
+    /// </summary>
+    public int getUseCount()
+    {
+        return _useCount;
+    }
+
+    public void markUsed()
+    {
+        _useCount++;
+        _lastUsedTime = System.currentTimeMillis();
+    }
+
+    /// <summary>
+    /// Bounds how long reads on this connection can block. Reads fail with a SocketTimeoutException once
+    /// the absolute deadline (in currentTimeMillis terms) passes, or if any single read waits longer than
+    /// readTimeoutMs. Pass 0 for either one to disable it.
+    /// </summary>
+    public void setDeadline(long deadline, int readTimeoutMs)
+    {
+        _socketInput.setDeadline(deadline, readTimeoutMs);
+    }
+
+    /// <summary>
+    /// Removes any deadline, so reads block indefinitely again
+    /// </summary>
+    public void clearDeadline()
+    {
+        _socketInput.clearDeadline();
+    }
+
+    /// <summary>
+    /// Returns true if the remote end appears to have closed this connection while it was idle,
+    /// or if it sent us data that we never asked for. Costs at most one millisecond of blocking.
+    /// </summary>
+    public boolean isStale()
+    {
+        if (_socket.isClosed() || !_socket.isConnected() || _socket.isInputShutdown() || _socket.isOutputShutdown())
+        {
+            return true;
+        }
+
+        int originalTimeout = 0;
+        try
+        {
+            // Any buffered bytes at this point are leftovers that don't belong to any request
+            if (_input.available() > 0)
+            {
+                return true;
+            }
+
+            originalTimeout = _socket.getSoTimeout();
+            _socket.setSoTimeout(1);
+            // Either -1 (the server has sent FIN) or unsolicited data; both make the connection unusable
+            _input.read();
+            return true;
+        }
+        catch (SocketTimeoutException e)
+        {
+            // Nothing to read, which is what a healthy idle connection looks like
+            return false;
+        }
+        catch (IOException e)
+        {
+            return true;
+        }
+        finally
+        {
+            try
+            {
+                _socket.setSoTimeout(originalTimeout);
+            }
+            catch (IOException e) {}
+        }
+    }
+
+    public void close()
+    {
+        try
+        {
+            _socket.close();
+        }
+        catch (IOException e) {}
+    }
+
+    /**
+     * Applies the connection's deadline to the socket before each read that goes to the network.
+     * Sits underneath the buffered stream, so reads that are served from the buffer cost nothing extra.
+     */
+    private static class DeadlineInputStream extends FilterInputStream
+    {
+        private final Socket _socket;
+        private long _deadline = 0;
+        private int _readTimeout = 0;
+        private boolean _timeoutApplied = false;
+
+        public DeadlineInputStream(Socket socket) throws IOException
+        {
+            super(socket.getInputStream());
+            _socket = socket;
+        }
+
+        public void setDeadline(long deadline, int readTimeout)
+        {
+            _deadline = deadline;
+            _readTimeout = readTimeout;
+        }
+
+        public void clearDeadline()
+        {
+            _deadline = 0;
+            _readTimeout = 0;
+            if (_timeoutApplied)
+            {
+                _timeoutApplied = false;
+                try
+                {
+                    _socket.setSoTimeout(0);
+                }
+                catch (IOException e) {}
+            }
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            applyTimeout();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            applyTimeout();
+            return super.read(b, off, len);
+        }
+
+        private void applyTimeout() throws IOException
+        {
+            if (_deadline == 0 && _readTimeout == 0)
+            {
+                return;
+            }
+
+            long timeout = _readTimeout;
+            if (_deadline != 0)
+            {
+                long remaining = _deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                {
+                    throw new SocketTimeoutException("HTTP request deadline expired");
+                }
+                timeout = timeout > 0 ? Math.min(timeout, remaining) : remaining;
+            }
+
+            _socket.setSoTimeout((int)Math.min(timeout, Integer.MAX_VALUE));
+            _timeoutApplied = true;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.stromberg.durandal.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A request that is sent over and over with the same method, URI and headers, and only a
+ * different body each time. Everything except the body and its Content-Length is encoded to
+ * bytes once up front, so sending the request allocates nothing. Templates are immutable and
+ * can be shared between threads.
+ * @author lostromb
+ */
+public class RequestTemplate
+{
+    private static final byte[] HEADER_TERMINATOR = new byte[] { '\r', '\n', '\r', '\n' };
+
+    private final String _requestMethod;
+    private final String _requestUri;
+    // The request line and headers, ending with "Content-Length: "
+    private final byte[] _encodedHead;
+
+    /// <summary>
+    /// Creates a template. The URI is sent exactly as given, so any parameters in it must already be
+    /// URL-encoded. Content-Length and Transfer-Encoding headers are ignored, since the length comes from each payload.
+    /// </summary>
+    public RequestTemplate(String requestMethod, String requestUri, HttpHeaders headers)
+    {
+        _requestMethod = requestMethod;
+        _requestUri = requestUri;
+
+        StringBuilder headBuilder = new StringBuilder();
+        headBuilder.append(requestMethod).append(' ').append(requestUri).append(" HTTP/1.1\r\n");
+        for (int c = 0; c < headers.size(); c++)
+        {
+            String name = headers.getName(c);
+            if (name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Transfer-Encoding"))
+                continue;
+            headBuilder.append(name).append(": ").append(headers.getValue(c)).append("\r\n");
+        }
+        headBuilder.append("Content-Length: ");
+        _encodedHead = headBuilder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public String getRequestMethod()
+    {
+        return _requestMethod;
+    }
+
+    public String getRequestUri()
+    {
+        return _requestUri;
+    }
+
+    /// <summary>
+    /// Writes a complete request with the given body. The stream should be buffered so that the
+    /// head and body leave in as few packets as possible.
+    /// </summary>
+    public void writeToStream(OutputStream stream, byte[] payload, int offset, int length) throws IOException
+    {
+        stream.write(_encodedHead);
+        writeDecimal(stream, length);
+        stream.write(HEADER_TERMINATOR);
+        if (length > 0)
+        {
+            stream.write(payload, offset, length);
+        }
+    }
+
+    /// <summary>
+    /// Writes the digits of a non-negative number without going through a String
+    /// </summary>
+    private static void writeDecimal(OutputStream stream, int value) throws IOException
+    {
+        int divisor = 1;
+        while (value / divisor >= 10)
+        {
+            divisor *= 10;
+        }
+        while (divisor > 0)
+        {
+            stream.write('0' + (value / divisor) % 10);
+            divisor /= 10;
+        }
+    }
+}
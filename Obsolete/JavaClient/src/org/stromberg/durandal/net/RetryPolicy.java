@@ -0,0 +1,55 @@
+package org.stromberg.durandal.net;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides how long to wait before retrying a failed request: exponential backoff with jitter,
+ * but never less than whatever delay the server itself suggested
+ * @author lostromb
+ */
+public class RetryPolicy
+{
+    public static final long DEFAULT_BASE_DELAY_MS = 200;
+    public static final long DEFAULT_MAX_DELAY_MS = 10000;
+
+    private final int _maxAttempts;
+    private final long _baseDelay;
+    private final long _maxDelay;
+
+    public RetryPolicy(int maxAttempts)
+    {
+        this(maxAttempts, DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS);
+    }
+
+    public RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs)
+    {
+        _maxAttempts = maxAttempts;
+        _baseDelay = baseDelayMs;
+        _maxDelay = maxDelayMs;
+    }
+
+    /// <summary>
+    /// The total number of tries, including the first
+    /// </summary>
+    public int getMaxAttempts()
+    {
+        return _maxAttempts;
+    }
+
+    /// <summary>
+    /// The delay before the given retry (0 for the first retry). The nominal delay doubles with each retry up to the
+    /// maximum, and the actual delay is randomly chosen between half and all of it, so that clients which failed together
+    /// spread out when they come back. A positive suggestedDelayMs from the server is a floor, with a little jitter added.
+    /// </summary>
+    public long getDelay(int retryNumber, long suggestedDelayMs)
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long nominalDelay = Math.min(_maxDelay, _baseDelay << Math.min(retryNumber, 30));
+        long returnVal = (nominalDelay / 2) + random.nextLong((nominalDelay / 2) + 1);
+        if (suggestedDelayMs > returnVal)
+        {
+            returnVal = suggestedDelayMs + random.nextLong((suggestedDelayMs / 10) + 1);
+        }
+        return returnVal;
+    }
+}
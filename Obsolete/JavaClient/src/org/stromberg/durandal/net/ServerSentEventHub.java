@@ -0,0 +1,203 @@
+package org.stromberg.durandal.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the open event streams for each of a set of topics, so that events can be pushed to everyone
+ * subscribed to one. The number of subscribers across all topics is capped, since every one of them is an open
+ * connection, and every stream gets a heartbeat comment at a fixed interval: that keeps idle connections from being
+ * timed out by proxies (or our own server), and it's how streams whose clients have quietly gone away get noticed
+ * and cleaned up.
+ * @author lostromb
+ */
+public class ServerSentEventHub
+{
+    // Comfortably inside both our own server's request timeout and the usual proxy idle timeouts
+    public static final int DEFAULT_HEARTBEAT_INTERVAL_MS = 15000;
+
+    private static ScheduledExecutorService _heartbeatScheduler = null;
+
+    private final int _maxSubscribers;
+    private final Map<String, List<ServerSentEventStream>> _subscribers = new ConcurrentHashMap<String, List<ServerSentEventStream>>();
+    private final AtomicInteger _subscriberCount = new AtomicInteger();
+    private final ScheduledFuture<?> _heartbeatTask;
+
+    private final AtomicLong _rejected = new AtomicLong();
+    private final AtomicLong _published = new AtomicLong();
+    private final AtomicLong _delivered = new AtomicLong();
+
+    public ServerSentEventHub(int maxSubscribers, int heartbeatIntervalMs)
+    {
+        _maxSubscribers = maxSubscribers;
+        _heartbeatTask = getHeartbeatScheduler().scheduleAtFixedRate(this::sendHeartbeats,
+                heartbeatIntervalMs, heartbeatIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /// <summary>
+    /// Opens a new stream subscribed to a topic, or returns null if there are already as many subscribers as allowed.
+    /// The stream unsubscribes itself when it closes.
+    /// </summary>
+    public ServerSentEventStream subscribe(final String topic)
+    {
+        if (_subscriberCount.incrementAndGet() > _maxSubscribers)
+        {
+            _subscriberCount.decrementAndGet();
+            _rejected.incrementAndGet();
+            return null;
+        }
+
+        final ServerSentEventStream returnVal = new ServerSentEventStream();
+        // Added inside compute() so that it can't race with the last subscriber of the topic removing the topic's list
+        _subscribers.compute(topic, (key, streams) ->
+        {
+            List<ServerSentEventStream> topicStreams = streams == null ? new CopyOnWriteArrayList<ServerSentEventStream>() : streams;
+            topicStreams.add(returnVal);
+            return topicStreams;
+        });
+        returnVal.setCloseListener(() -> unsubscribe(topic, returnVal));
+        return returnVal;
+    }
+
+    private void unsubscribe(String topic, ServerSentEventStream stream)
+    {
+        _subscribers.computeIfPresent(topic, (key, streams) ->
+        {
+            if (streams.remove(stream))
+            {
+                _subscriberCount.decrementAndGet();
+            }
+            return streams.isEmpty() ? null : streams;
+        });
+    }
+
+    /// <summary>
+    /// Sends an event to every stream subscribed to a topic, and returns how many that was
+    /// </summary>
+    public int publish(String topic, String eventName, String id, String data)
+    {
+        _published.incrementAndGet();
+        List<ServerSentEventStream> streams = _subscribers.get(topic);
+        if (streams == null)
+        {
+            return 0;
+        }
+
+        int returnVal = 0;
+        for (ServerSentEventStream stream : streams)
+        {
+            if (stream.send(eventName, id, data))
+            {
+                returnVal++;
+            }
+        }
+        _delivered.addAndGet(returnVal);
+        return returnVal;
+    }
+
+    private void sendHeartbeats()
+    {
+        for (List<ServerSentEventStream> streams : _subscribers.values())
+        {
+            for (ServerSentEventStream stream : streams)
+            {
+                stream.sendComment("");
+            }
+        }
+    }
+
+    /// <summary>
+    /// Ends every stream (their responses finish normally) and stops the heartbeats
+    /// </summary>
+    public void close()
+    {
+        _heartbeatTask.cancel(false);
+        List<ServerSentEventStream> streams = new ArrayList<ServerSentEventStream>();
+        for (List<ServerSentEventStream> topicStreams : _subscribers.values())
+        {
+            streams.addAll(topicStreams);
+        }
+        for (ServerSentEventStream stream : streams)
+        {
+            stream.close();
+        }
+    }
+
+    public int getSubscriberCount()
+    {
+        return _subscriberCount.get();
+    }
+
+    public Statistics getStatistics()
+    {
+        Statistics returnVal = new Statistics();
+        returnVal.Subscribers = _subscriberCount.get();
+        returnVal.MaxSubscribers = _maxSubscribers;
+        returnVal.Rejected = _rejected.get();
+        returnVal.Published = _published.get();
+        returnVal.Delivered = _delivered.get();
+        return returnVal;
+    }
+
+    /// <summary>
+    /// Appends the hub's statistics in Prometheus text format, with the given metric name prefix (e.g. "durandal_events")
+    /// </summary>
+    public void writePrometheus(StringBuilder output, String prefix)
+    {
+        Statistics statistics = getStatistics();
+        output.append("# HELP ").append(prefix).append("_subscribers Open event streams, and the most that may be open at once\n");
+        output.append("# TYPE ").append(prefix).append("_subscribers gauge\n");
+        output.append(prefix).append("_subscribers{kind=\"open\"} ").append(statistics.Subscribers).append('\n');
+        output.append(prefix).append("_subscribers{kind=\"max\"} ").append(statistics.MaxSubscribers).append('\n');
+        output.append("# HELP ").append(prefix).append("_rejected_total Subscriptions turned away because too many streams were open\n");
+        output.append("# TYPE ").append(prefix).append("_rejected_total counter\n");
+        output.append(prefix).append("_rejected_total ").append(statistics.Rejected).append('\n');
+        output.append("# HELP ").append(prefix).append("_delivered_total Events sent, counting each stream that received one\n");
+        output.append("# TYPE ").append(prefix).append("_delivered_total counter\n");
+        output.append(prefix).append("_delivered_total ").append(statistics.Delivered).append('\n');
+    }
+
+    private static synchronized ScheduledExecutorService getHeartbeatScheduler()
+    {
+        if (_heartbeatScheduler == null)
+        {
+            _heartbeatScheduler = Executors.newSingleThreadScheduledExecutor((runnable) ->
+            {
+                Thread thread = new Thread(runnable, "ServerSentEvents-Heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return _heartbeatScheduler;
+    }
+
+    /**
+     * A point-in-time snapshot of hub usage
+     */
+    public static class Statistics
+    {
+        public int Subscribers;
+        public int MaxSubscribers;
+        // Subscriptions turned away because the hub was full
+        public long Rejected;
+        public long Published;
+        // Events actually sent, counting each subscriber that received one
+        public long Delivered;
+
+        @Override
+        public String toString()
+        {
+            return String.format("subscribers=%d/%d rejected=%d published=%d delivered=%d",
+                    Subscribers, MaxSubscribers, Rejected, Published, Delivered);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package org.stromberg.durandal.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * The body of a text/event-stream response: a stream that never ends on its own, and yields each event as it is
+ * sent. Events are formatted and queued by send(), and read out by whichever server engine is writing the response.
+ * A reader waiting for the next event blocks, except on the event loop engine, which instead asks to be called
+ * back when there is something to read, so that a quiet stream doesn't tie up a worker thread.
+ *
+ * The stream ends when it is closed, from either side: by the server (to end the response) or by the engine (because
+ * the client went away). A client that stops reading has its stream closed once too much is queued for it, rather
+ * than having events pile up in memory; browsers reconnect on their own.
+ * @author lostromb
+ */
+public class ServerSentEventStream extends InputStream
+{
+    public static final int DEFAULT_MAX_QUEUED_BYTES = 1024 * 1024;
+    // How long a browser waits before reconnecting after the stream ends
+    private static final int RECONNECT_DELAY_MS = 3000;
+
+    private final int _maxQueuedBytes;
+    // All guarded by this
+    private final ArrayDeque<byte[]> _queue = new ArrayDeque<byte[]>();
+    private byte[] _current = null;
+    private int _currentOffset = 0;
+    private long _queuedBytes = 0;
+    private boolean _closed = false;
+    private Runnable _readableCallback = null;
+    private Runnable _closeListener = null;
+
+    public ServerSentEventStream()
+    {
+        this(DEFAULT_MAX_QUEUED_BYTES);
+    }
+
+    public ServerSentEventStream(int maxQueuedBytes)
+    {
+        _maxQueuedBytes = maxQueuedBytes;
+        // Starting with something to read means the response headers go out right away, instead of waiting for the first event
+        enqueue(("retry: " + RECONNECT_DELAY_MS + "\n\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /// <summary>
+    /// Creates the response that carries this stream. Intermediaries are asked not to cache or buffer it.
+    /// </summary>
+    public DurandalHttpResponse createResponse()
+    {
+        DurandalHttpResponse returnVal = DurandalHttpResponse.OKResponse();
+        returnVal.ResponseHeaders.put("Content-Type", "text/event-stream; charset=utf-8");
+        returnVal.ResponseHeaders.put("Cache-Control", "no-cache");
+        returnVal.ResponseHeaders.put("X-Accel-Buffering", "no");
+        returnVal.PayloadStream = this;
+        return returnVal;
+    }
+
+    /// <summary>
+    /// Sends an event. eventName and id may be null; data may have several lines. Returns false if the stream is closed
+    /// (or had to be closed just now, because the client isn't keeping up).
+    /// </summary>
+    public boolean send(String eventName, String id, String data)
+    {
+        StringBuilder event = new StringBuilder(data.length() + 64);
+        if (eventName != null)
+        {
+            event.append("event: ").append(eventName).append('\n');
+        }
+        if (id != null)
+        {
+            event.append("id: ").append(id).append('\n');
+        }
+        // Each line of the data gets its own field; the client joins them back together with newlines
+        for (String line : data.split("\r\n|\r|\n", -1))
+        {
+            event.append("data: ").append(line).append('\n');
+        }
+        event.append('\n');
+        return enqueue(event.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /// <summary>
+    /// Sends a comment line, which clients ignore. Sending one every so often keeps proxies from timing out a quiet
+    /// stream, and finds out whether the client is still there.
+    /// </summary>
+    public boolean sendComment(String comment)
+    {
+        return enqueue((":" + comment + "\n\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private boolean enqueue(byte[] data)
+    {
+        Runnable callback;
+        synchronized (this)
+        {
+            if (_closed)
+            {
+                return false;
+            }
+            if (_queuedBytes + data.length > _maxQueuedBytes)
+            {
+                System.err.println("Closing an event stream whose client has fallen " + _queuedBytes + " bytes behind");
+                callback = markClosed();
+            }
+            else
+            {
+                _queue.add(data);
+                _queuedBytes += data.length;
+                callback = _readableCallback;
+                _readableCallback = null;
+                notifyAll();
+            }
+        }
+
+        if (callback != null)
+        {
+            callback.run();
+        }
+        return !isClosed();
+    }
+
+    /// <summary>
+    /// Sets something to run (once) when the stream closes, such as taking it off a list of subscribers. If it's already closed, runs it now.
+    /// </summary>
+    public void setCloseListener(Runnable listener)
+    {
+        synchronized (this)
+        {
+            if (!_closed)
+            {
+                _closeListener = listener;
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    public synchronized boolean isClosed()
+    {
+        return _closed;
+    }
+
+    /// <summary>
+    /// Used by the event loop engine instead of a blocking read. If there is nothing to read yet, remembers the callback,
+    /// runs it (once, on whichever thread sends the next event or closes the stream) when there is, and returns true.
+    /// Returns false if there's something to read already.
+    /// </summary>
+    synchronized boolean whenReadable(Runnable callback)
+    {
+        if (_closed || available() > 0)
+        {
+            return false;
+        }
+        _readableCallback = callback;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[] single = new byte[1];
+        int read = read(single, 0, 1);
+        return read < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+
+        while (_current == null || _currentOffset >= _current.length)
+        {
+            if (!_queue.isEmpty())
+            {
+                _current = _queue.poll();
+                _currentOffset = 0;
+                _queuedBytes -= _current.length;
+            }
+            else if (_closed)
+            {
+                return -1;
+            }
+            else
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for an event");
+                }
+            }
+        }
+
+        int returnVal = Math.min(len, _current.length - _currentOffset);
+        System.arraycopy(_current, _currentOffset, b, off, returnVal);
+        _currentOffset += returnVal;
+        return returnVal;
+    }
+
+    @Override
+    public synchronized int available()
+    {
+        long returnVal = _queuedBytes + (_current == null ? 0 : _current.length - _currentOffset);
+        return (int)Math.min(Integer.MAX_VALUE, returnVal);
+    }
+
+    /// <summary>
+    /// Ends the stream. Anything already queued is still read out before the end, unless the client went away.
+    /// </summary>
+    @Override
+    public void close()
+    {
+        Runnable callback;
+        synchronized (this)
+        {
+            if (_closed)
+            {
+                return;
+            }
+            callback = markClosed();
+        }
+
+        if (callback != null)
+        {
+            callback.run();
+        }
+    }
+
+    /// <summary>
+    /// Closes the stream while holding the lock, and returns whatever has to be told about it (to be run once the lock is released)
+    /// </summary>
+    private Runnable markClosed()
+    {
+        _closed = true;
+        notifyAll();
+        final Runnable readable = _readableCallback;
+        final Runnable closeListener = _closeListener;
+        _readableCallback = null;
+        _closeListener = null;
+        if (readable == null || closeListener == null)
+        {
+            return readable == null ? closeListener : readable;
+        }
+        return () ->
+        {
+            readable.run();
+            closeListener.run();
+        };
+    }
+}
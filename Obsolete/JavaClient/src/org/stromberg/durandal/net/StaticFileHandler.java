@@ -0,0 +1,262 @@
+package org.stromberg.durandal.net;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Serves files out of a local directory. Bodies are FileRegions, so the file contents are sent with
+ * transferTo() and never read into the heap, and open files are kept in a FileHandleCache between requests.
+ * Responses carry an ETag and Last-Modified (so HttpServer can answer conditional requests with 304), and a
+ * single byte range may be requested with a Range header, optionally guarded by If-Range.
+ * @author lostromb
+ */
+public class StaticFileHandler implements HttpRequestHandler
+{
+    public static final int DEFAULT_MAX_AGE_SECONDS = 300;
+    private static final long[] UNSATISFIABLE_RANGE = new long[0];
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<String, String>();
+
+    static
+    {
+        CONTENT_TYPES.put("html", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("htm", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("css", "text/css; charset=utf-8");
+        CONTENT_TYPES.put("js", "application/javascript; charset=utf-8");
+        CONTENT_TYPES.put("json", "application/json; charset=utf-8");
+        CONTENT_TYPES.put("txt", "text/plain; charset=utf-8");
+        CONTENT_TYPES.put("xml", "application/xml");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("webp", "image/webp");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("woff", "font/woff");
+        CONTENT_TYPES.put("woff2", "font/woff2");
+        CONTENT_TYPES.put("ttf", "font/ttf");
+        CONTENT_TYPES.put("wav", "audio/wav");
+        CONTENT_TYPES.put("mp3", "audio/mpeg");
+        CONTENT_TYPES.put("ogg", "audio/ogg");
+        CONTENT_TYPES.put("mp4", "video/mp4");
+    }
+
+    private final Path _rootDirectory;
+    private final String _urlPrefix;
+    private final FileHandleCache _fileHandles;
+    private int _maxAgeSeconds = DEFAULT_MAX_AGE_SECONDS;
+
+    /// <summary>
+    /// Serves the files under rootDirectory at the URLs under urlPrefix, so with a prefix of "/views",
+    /// "/views/css/main.css" is rootDirectory/css/main.css
+    /// </summary>
+    public StaticFileHandler(Path rootDirectory, String urlPrefix, FileHandleCache fileHandles)
+    {
+        _rootDirectory = rootDirectory.toAbsolutePath().normalize();
+        _urlPrefix = urlPrefix.endsWith("/") ? urlPrefix.substring(0, urlPrefix.length() - 1) : urlPrefix;
+        _fileHandles = fileHandles;
+    }
+
+    /// <summary>
+    /// Sets how long clients may use a file without revalidating it
+    /// </summary>
+    public void setMaxAge(int seconds)
+    {
+        _maxAgeSeconds = seconds;
+    }
+
+    @Override
+    public DurandalHttpResponse handle(DurandalHttpRequest request)
+    {
+        DurandalHttpResponse returnVal = serve(request);
+        return returnVal == null ? DurandalHttpResponse.NotFoundResponse() : returnVal;
+    }
+
+    /// <summary>
+    /// Returns the response for a GET or HEAD of a file, or null if there is no such file, so that the caller can fall back
+    /// to something else. If the response has a FileBody, it must be written or closed. For HEAD, the server engines
+    /// send only the headers (see DurandalHttpResponse.OmitBody), which still describe the file.
+    /// </summary>
+    public DurandalHttpResponse serve(DurandalHttpRequest request)
+    {
+        if (!"GET".equalsIgnoreCase(request.RequestMethod) && !HttpHelpers.isHeadRequest(request.RequestMethod))
+        {
+            return null;
+        }
+
+        Path file = resolve(request.RequestFile);
+        if (file == null)
+        {
+            return null;
+        }
+
+        FileHandleCache.Handle handle = _fileHandles.open(file);
+        if (handle == null)
+        {
+            return null;
+        }
+
+        long size = handle.getSize();
+        long lastModified = handle.getLastModified();
+        String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+
+        DurandalHttpResponse returnVal = DurandalHttpResponse.OKResponse();
+        returnVal.ResponseHeaders.put("Content-Type", getContentType(file));
+        returnVal.ResponseHeaders.put("Accept-Ranges", "bytes");
+        // These also let HttpServer turn the response into a 304 if the client's copy is current
+        returnVal.ResponseHeaders.put("ETag", etag);
+        returnVal.ResponseHeaders.put("Last-Modified", HttpHelpers.formatHttpDate(lastModified));
+        returnVal.ResponseHeaders.put("Cache-Control", "public, max-age=" + _maxAgeSeconds);
+
+        long start = 0;
+        long end = size - 1;
+        String range = request.RequestHeaders.get("Range");
+        if (range != null && isRangeCurrent(request.RequestHeaders.get("If-Range"), etag, lastModified))
+        {
+            long[] bounds = parseRange(range, size);
+            if (bounds == UNSATISFIABLE_RANGE)
+            {
+                handle.release();
+                returnVal.ResponseCode = 416;
+                returnVal.ResponseMessage = "Range Not Satisfiable";
+                returnVal.ResponseHeaders.put("Content-Range", "bytes */" + size);
+                return returnVal;
+            }
+            if (bounds != null)
+            {
+                start = bounds[0];
+                end = bounds[1];
+                returnVal.ResponseCode = 206;
+                returnVal.ResponseMessage = "Partial Content";
+                returnVal.ResponseHeaders.put("Content-Range", "bytes " + start + "-" + end + "/" + size);
+            }
+        }
+
+        returnVal.FileBody = new FileRegion(handle, start, end - start + 1);
+        return returnVal;
+    }
+
+    /// <summary>
+    /// Maps a request path to a file under the root directory, or returns null if it isn't under the prefix or would
+    /// escape the root (with ".." segments and the like)
+    /// </summary>
+    private Path resolve(String requestFile)
+    {
+        if (!requestFile.startsWith(_urlPrefix + "/"))
+        {
+            return null;
+        }
+
+        try
+        {
+            // Decode %xx escapes; a literal + is kept as it is, since only query strings use it for spaces.
+            // Malformed escapes and paths the file system can't represent (InvalidPathException) both end up as 404s
+            String relative = URLDecoder.decode(requestFile.substring(_urlPrefix.length() + 1).replace("+", "%2B"), "UTF-8");
+            while (relative.startsWith("/"))
+            {
+                relative = relative.substring(1);
+            }
+            if (relative.isEmpty() || relative.indexOf('\0') >= 0 || relative.indexOf('\\') >= 0)
+            {
+                return null;
+            }
+
+            Path returnVal = _rootDirectory.resolve(relative).normalize();
+            return returnVal.startsWith(_rootDirectory) ? returnVal : null;
+        }
+        catch (UnsupportedEncodingException | IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    private static String getContentType(Path file)
+    {
+        String name = file.getFileName().toString();
+        int extensionStart = name.lastIndexOf('.');
+        String returnVal = extensionStart < 0 ? null : CONTENT_TYPES.get(name.substring(extensionStart + 1).toLowerCase(Locale.ROOT));
+        return returnVal == null ? "application/octet-stream" : returnVal;
+    }
+
+    /// <summary>
+    /// Checks an If-Range header: the range only applies if the client's partial copy is of the current version of the
+    /// file. An entity tag must match exactly (weak tags never do); a date must be the exact modification time.
+    /// </summary>
+    private static boolean isRangeCurrent(String ifRange, String etag, long lastModified)
+    {
+        if (ifRange == null)
+        {
+            return true;
+        }
+
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+        {
+            return ifRange.equals(etag);
+        }
+        long date = HttpHelpers.parseHttpDate(ifRange);
+        return date >= 0 && date / 1000 == lastModified / 1000;
+    }
+
+    /// <summary>
+    /// Parses a Range header of a single byte range ("bytes=0-499", "bytes=500-" or "bytes=-500") into inclusive
+    /// start and end offsets. Returns UNSATISFIABLE_RANGE if the range lies entirely outside the file, and null for
+    /// anything else we won't honor (malformed headers, other units, multiple ranges), which means sending the
+    /// whole file, as HTTP allows.
+    /// </summary>
+    private static long[] parseRange(String range, long size)
+    {
+        range = range.trim();
+        if (!range.regionMatches(true, 0, "bytes=", 0, 6) || range.indexOf(',') >= 0)
+        {
+            return null;
+        }
+
+        String spec = range.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0)
+        {
+            return null;
+        }
+
+        try
+        {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty())
+            {
+                // A suffix range: the last N bytes
+                long suffixLength = Long.parseLong(last);
+                if (suffixLength < 0)
+                {
+                    return null;
+                }
+                if (suffixLength == 0 || size == 0)
+                {
+                    return UNSATISFIABLE_RANGE;
+                }
+                return new long[] { Math.max(0, size - suffixLength), size - 1 };
+            }
+
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (start < 0 || end < start)
+            {
+                return null;
+            }
+            if (start >= size)
+            {
+                return UNSATISFIABLE_RANGE;
+            }
+            return new long[] { start, Math.min(end, size - 1) };
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.stromberg.durandal.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An HTTP request whose headers have already been sent, and whose body is being
+ * written incrementally using chunked transfer encoding. Call finish() once the
+ * whole body has been written to get the response, or abort() to give up.
+ * @author lostromb
+ */
+public class StreamingHttpRequest
+{
+    private final HttpConnectionPool _connectionPool;
+    private final PooledHttpConnection _connection;
+    private final ChunkedOutputStream _body;
+    // The breaker that let this request through, which hears about its outcome once the response arrives (may be null)
+    private final CircuitBreaker _circuitBreaker;
+    private boolean _completed = false;
+
+    StreamingHttpRequest(HttpConnectionPool connectionPool, PooledHttpConnection connection, CircuitBreaker circuitBreaker)
+    {
+        _connectionPool = connectionPool;
+        _connection = connection;
+        _circuitBreaker = circuitBreaker;
+        _body = new ChunkedOutputStream(connection.getOutputStream());
+    }
+
+    /// <summary>
+    /// The stream to write the request body to. Each write is sent as one chunk;
+    /// call flush() to push buffered chunks onto the wire immediately.
+    /// </summary>
+    public OutputStream getOutputStream()
+    {
+        return _body;
+    }
+
+    /// <summary>
+    /// Terminates the request body and waits for the response. Returns null if the
+    /// server did not respond.
+    /// </summary>
+    public DurandalHttpResponse finish()
+    {
+        return finish(0);
+    }
+
+    /// <summary>
+    /// Terminates the request body and waits at most readTimeout milliseconds (if positive) for the response.
+    /// Returns null if the server did not respond in time.
+    /// </summary>
+    public DurandalHttpResponse finish(int readTimeout)
+    {
+        if (_completed)
+        {
+            throw new IllegalStateException("This streaming request has already completed");
+        }
+
+        _completed = true;
+        boolean reusable = false;
+        DurandalHttpResponse returnVal = null;
+        try
+        {
+            _body.finish();
+            if (readTimeout > 0)
+            {
+                _connection.setDeadline(System.currentTimeMillis() + readTimeout, 0);
+            }
+            DurandalHttpResponse response = DurandalHttpResponse.readResponseFromStream(_connection.getInputStream());
+            reusable = response != null && HttpHelpers.isPersistentConnection(response);
+            if (response != null && response.decodeContent())
+            {
+                returnVal = response;
+            }
+            return returnVal;
+        }
+        catch (IOException e)
+        {
+            System.err.println(e.getMessage());
+            return null;
+        }
+        finally
+        {
+            _connectionPool.release(_connection, reusable);
+            // This is what closes the breaker again if this request was its half-open trial
+            HttpClient.recordOutcome(_circuitBreaker, returnVal);
+        }
+    }
+
+    /// <summary>
+    /// Abandons the request. The connection is closed since it is left in the middle of a message.
+    /// Nothing is reported to the circuit breaker, since giving up says nothing about the server.
+    /// </summary>
+    public void abort()
+    {
+        if (!_completed)
+        {
+            _completed = true;
+            _connectionPool.release(_connection, false);
+        }
+    }
+}
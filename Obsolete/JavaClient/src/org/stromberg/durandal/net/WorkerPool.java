@@ -0,0 +1,217 @@
+package org.stromberg.durandal.net;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the connections accepted by an HttpServer. There are two flavors: a bounded pool of platform
+ * threads with a bounded queue in front of it, which refuses work once both are full; and one virtual
+ * thread per connection, for runtimes that have them (Java 21 and later). Either way the pool keeps
+ * counts of queued, active, completed and rejected work so that it can be sized from real traffic.
+ * @author lostromb
+ */
+public class WorkerPool
+{
+    public static final int DEFAULT_MAX_WORKERS = 64;
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    private static final int IDLE_WORKER_TIMEOUT_SECONDS = 60;
+
+    private final ExecutorService _executor;
+    private final int _maxWorkers;
+    private final boolean _virtual;
+
+    private final AtomicInteger _queued = new AtomicInteger();
+    private final AtomicInteger _active = new AtomicInteger();
+    private final AtomicInteger _peakActive = new AtomicInteger();
+    private final AtomicLong _completed = new AtomicLong();
+    private final AtomicLong _rejected = new AtomicLong();
+
+    private WorkerPool(ExecutorService executor, int maxWorkers, boolean virtual)
+    {
+        _executor = executor;
+        _maxWorkers = maxWorkers;
+        _virtual = virtual;
+    }
+
+    /// <summary>
+    /// Creates a pool of at most maxWorkers platform threads. Up to queueCapacity more tasks wait in line
+    /// for a free worker; beyond that, execute() refuses them. Idle workers exit after a minute.
+    /// </summary>
+    public static WorkerPool createBounded(String name, int maxWorkers, int queueCapacity)
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxWorkers, maxWorkers,
+                IDLE_WORKER_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)),
+                createThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return new WorkerPool(executor, maxWorkers, false);
+    }
+
+    /// <summary>
+    /// Creates a pool that runs each task on its own virtual thread, so blocking I/O never ties up a platform thread.
+    /// On runtimes without virtual threads, this falls back to a bounded pool with the default limits.
+    /// </summary>
+    public static WorkerPool createVirtual(String name)
+    {
+        try
+        {
+            // Looked up reflectively so that this still builds and runs on Java 8
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return new WorkerPool((ExecutorService)factory.invoke(null), Integer.MAX_VALUE, true);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            System.err.println("Virtual threads are not supported by this runtime; using a bounded worker pool for " + name);
+            return createBounded(name, DEFAULT_MAX_WORKERS, DEFAULT_QUEUE_CAPACITY);
+        }
+    }
+
+    public static boolean isVirtualThreadSupported()
+    {
+        try
+        {
+            java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        }
+        catch (NoSuchMethodException e)
+        {
+            return false;
+        }
+    }
+
+    private static ThreadFactory createThreadFactory(final String name)
+    {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return (runnable) ->
+        {
+            Thread thread = new Thread(runnable, name + "-Worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /// <summary>
+    /// Queues a task to run on a worker. Returns false, without running it, if the pool is saturated or shut down.
+    /// </summary>
+    public boolean execute(final Runnable task)
+    {
+        _queued.incrementAndGet();
+        try
+        {
+            _executor.execute(() ->
+            {
+                _queued.decrementAndGet();
+                int active = _active.incrementAndGet();
+                updatePeakActive(active);
+                try
+                {
+                    task.run();
+                }
+                finally
+                {
+                    _active.decrementAndGet();
+                    _completed.incrementAndGet();
+                }
+            });
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            _queued.decrementAndGet();
+            _rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    private void updatePeakActive(int active)
+    {
+        int peak;
+        while (active > (peak = _peakActive.get()) && !_peakActive.compareAndSet(peak, active)) { }
+    }
+
+    /// <summary>
+    /// Stops accepting tasks. Tasks that were already queued still run.
+    /// </summary>
+    public void shutdown()
+    {
+        _executor.shutdown();
+    }
+
+    /// <summary>
+    /// Waits for queued and running tasks to finish after shutdown(). Returns false if they didn't finish in time.
+    /// </summary>
+    public boolean awaitTermination(long timeoutMs) throws InterruptedException
+    {
+        return _executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isVirtual()
+    {
+        return _virtual;
+    }
+
+    /// <summary>
+    /// The most tasks that can run at once (Integer.MAX_VALUE for virtual threads)
+    /// </summary>
+    public int getMaxWorkers()
+    {
+        return _maxWorkers;
+    }
+
+    /// <summary>
+    /// The number of tasks waiting for a free worker
+    /// </summary>
+    public int getQueueDepth()
+    {
+        return _queued.get();
+    }
+
+    /// <summary>
+    /// The number of tasks running right now
+    /// </summary>
+    public int getActiveCount()
+    {
+        return _active.get();
+    }
+
+    public Statistics getStatistics()
+    {
+        Statistics returnVal = new Statistics();
+        returnVal.MaxWorkers = _maxWorkers;
+        returnVal.ActiveWorkers = _active.get();
+        returnVal.PeakActiveWorkers = _peakActive.get();
+        returnVal.QueueDepth = _queued.get();
+        returnVal.CompletedTasks = _completed.get();
+        returnVal.RejectedTasks = _rejected.get();
+        return returnVal;
+    }
+
+    /**
+     * A point-in-time snapshot of pool usage
+     */
+    public static class Statistics
+    {
+        public int MaxWorkers;
+        public int ActiveWorkers;
+        public int PeakActiveWorkers;
+        public int QueueDepth;
+        public long CompletedTasks;
+        public long RejectedTasks;
+
+        @Override
+        public String toString()
+        {
+            return String.format("active=%d/%s peak=%d queued=%d completed=%d rejected=%d",
+                    ActiveWorkers, MaxWorkers == Integer.MAX_VALUE ? "unbounded" : Integer.toString(MaxWorkers),
+                    PeakActiveWorkers, QueueDepth, CompletedTasks, RejectedTasks);
+        }
+    }
+}
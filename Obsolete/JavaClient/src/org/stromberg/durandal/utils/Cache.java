@@ -11,7 +11,9 @@ import java.util.Map;
 import java.util.UUID;
 
 /**
- *
+ * Stores items under random keys for a limited time. Items never change once stored, so anything derived
+ * from an item when it is created, such as an ETag (see CachedItem.computeETag), stays valid for as long
+ * as the item exists. Safe to use from several threads.
  * @author lostromb
  */
 public class Cache<T>
@@ -25,7 +27,7 @@ public class Cache<T>
         minutesToCache = expirationTimeInMinutes;
     }
 
-    public String Store(T item)
+    public synchronized String Store(T item)
     {
         ClearOldEntries();
         UUID newId = UUID.randomUUID();
@@ -35,13 +37,21 @@ public class Cache<T>
         return key;
     }
 
-    public T Retrieve(String key)
+    public synchronized T Retrieve(String key)
     {
         if (cache.containsKey(key))
             return cache.get(key).Value;
         return null;
     }
 
+    /// <summary>
+    /// Returns the item along with when it was stored, or null if there is no such item
+    /// </summary>
+    public synchronized CachedItem<T> RetrieveItem(String key)
+    {
+        return cache.get(key);
+    }
+
     private void ClearOldEntries()
     {
         if (!cache.isEmpty())
@@ -1,5 +1,9 @@
 package org.stromberg.durandal.utils;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Calendar;
 
 /**
@@ -18,4 +22,23 @@ public class CachedItem<T>
         StoreTime = Calendar.getInstance().getTimeInMillis();
         ExpireTime = StoreTime + (minutesToExpire * 60000);
     }
+
+    /// <summary>
+    /// Returns a strong entity tag (quotes included) for the given bytes, or null if they can't be hashed.
+    /// Items never change once stored, so a value can hash its content once, when it is created, and every later
+    /// request for it can be answered with 304 Not Modified by comparing tags (see EncodedPage).
+    /// </summary>
+    public static String computeETag(byte[] content)
+    {
+        try
+        {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+            // 128 bits of the hash is plenty to tell versions of the same resource apart
+            return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(hash, 16)) + "\"";
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            return null;
+        }
+    }
 }